@@ -0,0 +1,81 @@
+package au.org.massive.strudel_web;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the cost of RSA and Ed25519 keys at login and in every SSH handshake. "register" is the local work of
+ * {@link KeyService#registerKey}: generating a key pair and encoding both halves. "sign" and "verify" are the
+ * client's and server's signature operations during public key authentication, over a session-id sized message.
+ * Run with: mvn -P benchmark verify -Dbenchmark=KeyServiceBenchmark
+ *
+ * @author jrigby
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyServiceBenchmark {
+
+    @Param({"rsa", "ed25519"})
+    public String keyType;
+
+    private SSHCertSigningBackend.KeyType type;
+    private String algorithm;
+    private KeyPair keyPair;
+    private byte[] sessionId;
+    private byte[] signature;
+    private BouncyCastleProvider provider;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        type = SSHCertSigningBackend.KeyType.fromString(keyType);
+        // rsa-sha2-256 and ssh-ed25519, as negotiated by current OpenSSH
+        algorithm = type == SSHCertSigningBackend.KeyType.RSA ? "SHA256withRSA" : "Ed25519";
+        provider = new BouncyCastleProvider();
+        keyPair = KeyService.generateKeyPair(type);
+        sessionId = new byte[32];
+        new SecureRandom().nextBytes(sessionId);
+        signature = sign();
+    }
+
+    @Benchmark
+    public String register() throws UnsupportedKeyException {
+        KeyPair kp = KeyService.generateKeyPair(type);
+        return KeyService.publicKeyToString(kp.getPublic()) + KeyService.privateKeyToString(kp.getPrivate());
+    }
+
+    @Benchmark
+    public byte[] sign() throws GeneralSecurityException {
+        Signature s = Signature.getInstance(algorithm, provider);
+        s.initSign(keyPair.getPrivate());
+        s.update(sessionId);
+        return s.sign();
+    }
+
+    @Benchmark
+    public boolean verify() throws GeneralSecurityException {
+        Signature s = Signature.getInstance(algorithm, provider);
+        s.initVerify(keyPair.getPublic());
+        s.update(sessionId);
+        return s.verify(signature);
+    }
+}
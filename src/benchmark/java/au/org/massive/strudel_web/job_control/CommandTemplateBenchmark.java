@@ -0,0 +1,132 @@
+package au.org.massive.strudel_web.job_control;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.text.StrSubstitutor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares rendering a Strudel desktop startServer command with {@link CommandTemplate} against the previous
+ * approach of a required-parameter set check followed by two StrSubstitutor passes.
+ *
+ * @author jrigby
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CommandTemplateBenchmark {
+
+    // startServer commands as they appear after StrudelDesktopConfigurationAdapter has converted them
+    private static final Map<String, String> START_SERVER_PATTERNS = new HashMap<>();
+    static {
+        START_SERVER_PATTERNS.put("slurm", "mkdir ~/.vnc ; rm -f ~/.vnc/clearpass ; touch ~/.vnc/clearpass ; " +
+                "chmod 600 ~/.vnc/clearpass ; passwd=\"'$( dd if=/dev/urandom bs=1 count=8 2>/dev/null | md5sum | cut -b 1-8 )'\" ; " +
+                "echo $passwd > ~/.vnc/clearpass ; cat ~/.vnc/clearpass | vncpasswd -f > ~/.vnc/passwd ; chmod 600 ~/.vnc/passwd ; " +
+                "echo -e '#!/bin/bash\\n/usr/local/bin/vncsession --vnc turbovnc --geometry ${resolution} ; sleep 36000000 ' | " +
+                " sbatch -p batch -N ${nodes} --mincpus ${ppn} --time=${hours}:00:00 -J desktop_${username} -o .vnc/slurm-%j.out");
+        START_SERVER_PATTERNS.put("pbs", "echo -e \"cd \\$HOME\\n/usr/local/bin/vncsession --vnc turbovnc --geometry ${resolution} ; " +
+                "sleep 36000000\" | qsub -q ${queue} -l nodes=${nodes}:ppn=${ppn},walltime=${hours}:00:00,mem=${mem}gb " +
+                "-N desktop_${username} -o .vnc/ -e .vnc/");
+    }
+
+    @Param({"slurm", "pbs"})
+    public String scheduler;
+
+    private String commandPattern;
+    private Map<String, String> defaultParams;
+    private Set<String> requiredParams;
+    private Map<String, String> params;
+    private CommandTemplate template;
+
+    @Setup
+    public void setup() {
+        commandPattern = START_SERVER_PATTERNS.get(scheduler);
+
+        // The adapter supplies these defaults and marks every field in the pattern as required
+        defaultParams = new HashMap<>();
+        defaultParams.put("hours", "4");
+        defaultParams.put("ppn", "1");
+        defaultParams.put("mem", "4");
+        requiredParams = new HashSet<>(Arrays.asList("resolution", "nodes", "ppn", "hours", "username", "queue", "mem"));
+
+        params = new HashMap<>();
+        params.put("resolution", "1440x900");
+        params.put("nodes", "1");
+        params.put("hours", "8");
+        params.put("username", "jrigby");
+        params.put("queue", "desktop");
+
+        template = new CommandTemplate(commandPattern, defaultParams, requiredParams);
+    }
+
+    @Benchmark
+    public String commandTemplate() throws MissingRequiredTaskParametersException {
+        return template.render(params);
+    }
+
+    @Benchmark
+    public String strSubstitutor() throws MissingRequiredTaskParametersException {
+        return createCommand(commandPattern, params, defaultParams, requiredParams);
+    }
+
+    // The implementation previously in TaskFactory.Task
+    private static String createCommand(String commandPattern, Map<String, String> params, Map<String, String> defaultParams, Set<String> requiredParams) throws MissingRequiredTaskParametersException {
+        if (requiredParams != null) {
+            Set<String> suppliedParams = new HashSet<>();
+            suppliedParams.addAll(params.keySet());
+            if (defaultParams != null) {
+                suppliedParams.addAll(defaultParams.keySet());
+            }
+            if (!suppliedParams.containsAll(requiredParams)) {
+                StringBuilder sb = new StringBuilder();
+                sb.append("The following parameters are required: ");
+                Iterator<String> it = requiredParams.iterator();
+                while (it.hasNext()) {
+                    sb.append(it.next());
+                    if (it.hasNext()) {
+                        sb.append(", ");
+                    }
+                }
+                throw new MissingRequiredTaskParametersException(sb.toString());
+            }
+        }
+
+        StrSubstitutor sub = new StrSubstitutor(makeParamsSafe(params));
+        String result = sub.replace(commandPattern);
+
+        if (defaultParams != null) {
+            sub = new StrSubstitutor(makeParamsSafe(defaultParams));
+            return sub.replace(result);
+        } else {
+            return result;
+        }
+    }
+
+    private static Map<String, String> makeParamsSafe(Map<String, String> params) {
+        Map<String, String> safeValues = new HashMap<>();
+        for (String key : params.keySet()) {
+            String value = "'" + params.get(key).replace("'", "\\'") + "'";
+            safeValues.put(key, value);
+        }
+        return safeValues;
+    }
+}
@@ -0,0 +1,97 @@
+package au.org.massive.strudel_web.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the memory cost of a {@link ResultTable} with the previous list of maps when parsing a cluster-wide
+ * squeue listing. Run with the GC profiler to see bytes allocated per operation:
+ * mvn -P benchmark verify -Dbenchmark="ResultTableBenchmark -prof gc"
+ *
+ * @author jrigby
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultTableBenchmark {
+
+    private static final String RESULT_PATTERN =
+            "(?<jobId>[0-9]+) (?<remainingWalltime>\\S+) (?<state>\\S+) (?<jobName>\\S+) (?<partition>\\S+)$";
+    private static final String[] STATES = {"RUNNING", "PENDING", "COMPLETING"};
+    private static final String[] PARTITIONS = {"m3a", "m3c", "m3d", "desktop", "short"};
+
+    @Param({"5000"})
+    public int jobs;
+
+    private Pattern pattern;
+    private String[] groupNames;
+    private String output;
+
+    @Setup
+    public void setup() {
+        pattern = Pattern.compile(RESULT_PATTERN);
+        groupNames = RegexHelper.getNamedGroups(RESULT_PATTERN);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < jobs; i++) {
+            sb.append(1000000 + i).append(' ')
+                    .append(i % 24).append(":").append(10 + i % 50).append(":00 ")
+                    .append(STATES[i % STATES.length]).append(' ')
+                    .append(i % 3 == 0 ? "desktop_user" + (i % 200) : "job" + i).append(' ')
+                    .append(PARTITIONS[i % PARTITIONS.length]).append('\n');
+        }
+        output = sb.toString();
+    }
+
+    @Benchmark
+    public List<Map<String, String>> listOfMaps() throws IOException {
+        List<Map<String, String>> results = new LinkedList<>();
+        Matcher m = pattern.matcher("");
+        BufferedReader br = new BufferedReader(new StringReader(output));
+        String line;
+        while ((line = br.readLine()) != null) {
+            m.reset(line);
+            while (m.find()) {
+                Map<String, String> row = new HashMap<>();
+                for (String groupName : groupNames) {
+                    row.put(groupName, m.group(groupName));
+                }
+                results.add(row);
+            }
+        }
+        return results;
+    }
+
+    @Benchmark
+    public List<Map<String, String>> resultTable() {
+        return RegexHelper.processRegexForEachLine(pattern, groupNames, output, false);
+    }
+
+    @Benchmark
+    public List<Map<String, String>> resultTableInterned() {
+        return RegexHelper.processRegexForEachLine(pattern, groupNames, output, true);
+    }
+}
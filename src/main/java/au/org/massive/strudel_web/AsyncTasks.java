@@ -1,32 +1,109 @@
 package au.org.massive.strudel_web;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
 /**
- * A servlet listener to keep a thread pool active during the life of the application
+ * A servlet listener to keep thread pools active during the life of the application. Work is split across
+ * separate bounded pools so that a burst of one kind of work cannot starve the others or exhaust the JVM:
+ * <ul>
+ * <li>requests: the work of suspended API requests</li>
+ * <li>commands: short SSH commands run asynchronously</li>
+ * <li>shared commands: identical read-only commands shared by several callers, which no single caller may cancel</li>
+ * <li>tunnels: supervision of long-lived tunnel processes, including exit events and uptime limits</li>
+ * <li>maintenance: background upkeep that is not tied to a request</li>
+ * </ul>
  *
  * @author jrigby
  */
 public class AsyncTasks implements ServletContextListener {
 
-    private static ExecutorService executor;
+    private final static Logger logger = LogManager.getLogger(AsyncTasks.class);
+
+    private static ExecutorPool requestPool;
+    private static ExecutorPool commandPool;
+    private static ExecutorPool sharedCommandPool;
+    private static ExecutorPool tunnelPool;
+    private static ExecutorPool maintenancePool;
 
     @Override
     public void contextDestroyed(ServletContextEvent arg0) {
-        executor.shutdown();
+        requestPool.shutdown(true);
+        commandPool.shutdown(false);
+        sharedCommandPool.shutdown(false);
+        tunnelPool.shutdown(false);
+        maintenancePool.shutdown(true);
     }
 
     @Override
     public void contextInitialized(ServletContextEvent arg0) {
-        executor = Executors.newCachedThreadPool();
+        Settings settings = Settings.getInstance();
+        // Only the request and command pools block on IO; the scheduled pools do short, CPU-bound work
+        requestPool = createPool("requests", settings.getRequestThreads(), settings.getRequestVirtualThreads(), settings.getRequestQueueSize());
+        commandPool = createPool("commands", settings.getCommandThreads(), settings.getCommandVirtualThreads(), settings.getCommandQueueSize());
+        sharedCommandPool = createPool("shared-commands", settings.getSharedCommandThreads(), settings.getSharedCommandVirtualThreads(), settings.getSharedCommandQueueSize());
+        tunnelPool = ExecutorPool.createScheduled("tunnels", settings.getTunnelThreads(), settings.getTunnelQueueSize(), 10);
+        maintenancePool = ExecutorPool.createScheduled("maintenance", settings.getMaintenanceThreads(), settings.getMaintenanceQueueSize(), 30);
+    }
+
+    /**
+     * Creates a pool for work that blocks on IO, on virtual threads if they are enabled and supported
+     *
+     * @param name           the name of the pool
+     * @param threads        the number of platform threads
+     * @param virtualThreads the number of tasks that may run at once on virtual threads
+     * @param queueCapacity  the number of tasks that may wait to run
+     * @return the pool
+     */
+    private static ExecutorPool createPool(String name, int threads, int virtualThreads, int queueCapacity) {
+        if (Settings.getInstance().isVirtualThreadsEnabled()) {
+            ExecutorPool pool = ExecutorPool.createVirtual(name, virtualThreads, queueCapacity, 5);
+            if (pool != null) {
+                return pool;
+            }
+            logger.warn("Virtual threads are not supported by this JVM; the " + name + " pool will use platform threads");
+        }
+        return ExecutorPool.create(name, threads, queueCapacity, 5);
+    }
+
+    /**
+     * @return the pool that runs the work of suspended API requests, so that it does not hold servlet container
+     * threads
+     */
+    public static ExecutorPool getRequestPool() {
+        return requestPool;
+    }
+
+    /**
+     * @return the pool that runs asynchronous SSH commands
+     */
+    public static ExecutorPool getCommandPool() {
+        return commandPool;
+    }
+
+    /**
+     * @return the pool that runs commands shared by several callers. Its work never waits on another pool, so
+     * callers on any pool may wait for it.
+     */
+    public static ExecutorPool getSharedCommandPool() {
+        return sharedCommandPool;
+    }
+
+    /**
+     * @return the scheduled pool that supervises tunnels
+     */
+    public static ExecutorPool getTunnelPool() {
+        return tunnelPool;
     }
 
-    public static ExecutorService getExecutorService() {
-        return executor;
+    /**
+     * @return the scheduled pool for background maintenance
+     */
+    public static ExecutorPool getMaintenancePool() {
+        return maintenancePool;
     }
 
 }
@@ -0,0 +1,206 @@
+package au.org.massive.strudel_web;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.net.ssl.HttpsURLConnection;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.oltu.oauth2.client.HttpClient;
+import org.apache.oltu.oauth2.client.request.OAuthClientRequest;
+import org.apache.oltu.oauth2.client.response.OAuthClientResponse;
+import org.apache.oltu.oauth2.client.response.OAuthClientResponseFactory;
+import org.apache.oltu.oauth2.common.OAuth;
+import org.apache.oltu.oauth2.common.exception.OAuthProblemException;
+import org.apache.oltu.oauth2.common.exception.OAuthSystemException;
+import org.apache.oltu.oauth2.common.utils.OAuthUtils;
+
+/**
+ * The HTTP transport for the OAuth and certificate signing requests of one {@link SSHCertSigningBackend}. Connections
+ * are pooled and kept alive between logins, so a login does not pay for a new TLS handshake, and connect and read
+ * timeouts stop a slow backend from holding request threads indefinitely.
+ * <p>
+ * TLS uses the default {@link HttpsURLConnection} socket factory and hostname verifier, so "allow-invalid-ssl-cert"
+ * applies here too. Request latency is published through JMX as
+ * "au.org.massive.strudel_web:type=BackendHttpClient,name=&lt;backend name&gt;". Instances are created and closed
+ * by {@link BackendHttpClients}.
+ *
+ * @author jrigby
+ */
+public class BackendHttpClient implements HttpClient, BackendHttpClientMXBean {
+
+    private final static Logger logger = LogManager.getLogger(BackendHttpClient.class);
+
+    private static final int IDLE_CONNECTION_SECONDS = 60;
+
+    private final String name;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private volatile long lastNanos;
+    private ObjectName objectName;
+
+    BackendHttpClient(SSHCertSigningBackend backend, int connectTimeoutSeconds, int readTimeoutSeconds, int maxConnections) {
+        this.name = backend.getName();
+        connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory(),
+                        HttpsURLConnection.getDefaultHostnameVerifier()))
+                .build());
+        // The backend's OAuth and signing endpoints are usually on one host
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        int connectTimeout = (int) TimeUnit.SECONDS.toMillis(connectTimeoutSeconds);
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setConnectionRequestTimeout(connectTimeout)
+                        .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(readTimeoutSeconds))
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS)
+                .disableCookieManagement()
+                .build();
+
+        try {
+            objectName = new ObjectName("au.org.massive.strudel_web:type=BackendHttpClient,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            logger.warn("Could not publish HTTP statistics for the " + name + " backend", e);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public <T extends OAuthClientResponse> T execute(OAuthClientRequest request, Map<String, String> headers, String requestMethod, Class<T> responseClass)
+            throws OAuthSystemException, OAuthProblemException {
+        String method = OAuthUtils.isEmpty(requestMethod) ? OAuth.HttpMethod.GET : requestMethod;
+        RequestBuilder builder = RequestBuilder.create(method).setUri(request.getLocationUri());
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                builder.addHeader(header.getKey(), header.getValue());
+            }
+        }
+        if (request.getHeaders() != null) {
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                builder.addHeader(header.getKey(), header.getValue());
+            }
+        }
+        if ((OAuth.HttpMethod.POST.equals(method) || OAuth.HttpMethod.PUT.equals(method)) && request.getBody() != null) {
+            // The content type comes from the request headers
+            builder.setEntity(new StringEntity(request.getBody(), StandardCharsets.UTF_8));
+        }
+
+        long start = System.nanoTime();
+        String body;
+        String contentType;
+        int responseCode;
+        try (CloseableHttpResponse response = client.execute(builder.build())) {
+            // Reading the whole entity returns the connection to the pool
+            HttpEntity entity = response.getEntity();
+            body = entity == null ? null : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+            contentType = (entity == null || entity.getContentType() == null) ? null : entity.getContentType().getValue();
+            responseCode = response.getStatusLine().getStatusCode();
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw new OAuthSystemException(e);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            requests.incrementAndGet();
+            totalNanos.addAndGet(elapsed);
+            lastNanos = elapsed;
+        }
+        return OAuthClientResponseFactory.createCustomResponse(body, contentType, responseCode, responseClass);
+    }
+
+    /**
+     * Does nothing: the client is shared, and is closed by {@link BackendHttpClients} when the application stops
+     */
+    @Override
+    public void shutdown() {
+    }
+
+    /**
+     * Closes all pooled connections and unpublishes the client's statistics
+     */
+    void close() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            logger.warn("Could not close the HTTP client for the " + name + " backend", e);
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Could not unpublish HTTP statistics for the " + name + " backend", e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public double getAverageLatencyMillis() {
+        long count = requests.get();
+        return count == 0 ? 0 : totalNanos.get() / 1e6 / count;
+    }
+
+    @Override
+    public double getLastLatencyMillis() {
+        return lastNanos / 1e6;
+    }
+
+    @Override
+    public int getLeasedConnections() {
+        return connectionManager.getTotalStats().getLeased();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return connectionManager.getTotalStats().getAvailable();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return connectionManager.getMaxTotal();
+    }
+}
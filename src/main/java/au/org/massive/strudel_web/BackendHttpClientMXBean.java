@@ -0,0 +1,25 @@
+package au.org.massive.strudel_web;
+
+/**
+ * Exposes the request latency and connection pool of a {@link BackendHttpClient} through JMX
+ *
+ * @author jrigby
+ */
+public interface BackendHttpClientMXBean {
+
+    String getName();
+
+    long getRequestCount();
+
+    long getFailureCount();
+
+    double getAverageLatencyMillis();
+
+    double getLastLatencyMillis();
+
+    int getLeasedConnections();
+
+    int getIdleConnections();
+
+    int getMaxConnections();
+}
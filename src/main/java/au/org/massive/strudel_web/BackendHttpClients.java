@@ -0,0 +1,50 @@
+package au.org.massive.strudel_web;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * A servlet listener that keeps one {@link BackendHttpClient} per {@link SSHCertSigningBackend} for the life of the
+ * application. Clients are created on first use and closed when the application stops.
+ *
+ * @author jrigby
+ */
+public class BackendHttpClients implements ServletContextListener {
+
+    // Backends are loaded once and never replaced, so they are compared by identity. Guarded by itself.
+    private static final Map<SSHCertSigningBackend, BackendHttpClient> clients = new IdentityHashMap<>();
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        synchronized (clients) {
+            for (BackendHttpClient client : clients.values()) {
+                client.close();
+            }
+            clients.clear();
+        }
+    }
+
+    /**
+     * @param backend the backend
+     * @return the shared HTTP client for the backend's OAuth and signing endpoints
+     */
+    public static BackendHttpClient getClient(SSHCertSigningBackend backend) {
+        synchronized (clients) {
+            BackendHttpClient client = clients.get(backend);
+            if (client == null) {
+                Settings settings = Settings.getInstance();
+                client = new BackendHttpClient(backend, settings.getBackendConnectTimeoutInSeconds(),
+                        settings.getBackendReadTimeoutInSeconds(), settings.getBackendMaxConnections());
+                clients.put(backend, client);
+            }
+            return client;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package au.org.massive.strudel_web;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.oltu.oauth2.common.exception.OAuthProblemException;
+import org.apache.oltu.oauth2.common.exception.OAuthSystemException;
+
+import au.org.massive.strudel_web.ssh.CertAuthInfo;
+
+/**
+ * A servlet listener that renews session certificates in the background shortly before they expire, while the
+ * session's OAuth access token is still valid, so that users do not have to register a key again on the critical
+ * path of a request. Certificates are checked on the maintenance pool and renewed on the command pool, and a renewed
+ * certificate is swapped in with {@link Session#replaceCertificate}.
+ * <p>
+ * If the signing service refuses a renewal, the certificate is left to expire and the user registers a key again
+ * as before.
+ *
+ * @author jrigby
+ */
+public class CertificateRenewer implements ServletContextListener, Runnable {
+
+    private final static Logger logger = LogManager.getLogger(CertificateRenewer.class);
+
+    // Ids of sessions with a renewal in progress
+    private static final Set<String> renewing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Certificates whose renewal was refused
+    private static final Set<CertAuthInfo> refused = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<CertAuthInfo, Boolean>()));
+
+    private ScheduledFuture<?> scheduled;
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        Settings settings = Settings.getInstance();
+        if (settings.getCertificateRenewalMarginInSeconds() > 0) {
+            int interval = settings.getCertificateRenewalIntervalInSeconds();
+            scheduled = AsyncTasks.getMaintenancePool().scheduleWithFixedDelay(this, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        if (scheduled != null) {
+            scheduled.cancel(true);
+            scheduled = null;
+        }
+    }
+
+    /**
+     * Starts a renewal for each session whose certificate expires within the margin
+     */
+    @Override
+    public void run() {
+        long margin = TimeUnit.SECONDS.toMillis(Settings.getInstance().getCertificateRenewalMarginInSeconds());
+        for (Session session : SessionManager.getActiveSessions()) {
+            try {
+                CertAuthInfo certificate = session.getCertificate();
+                if (certificate == null || !session.hasOAuthAccessToken()) {
+                    continue;
+                }
+                Long remaining = certificate.timeUntilExpiry();
+                if (remaining == null || remaining > margin || refused.contains(certificate)) {
+                    continue;
+                }
+                String sessionId = session.getSessionId();
+                if (renewing.add(sessionId)) {
+                    try {
+                        submit(session, sessionId, certificate);
+                    } catch (PoolSaturatedException e) {
+                        // Tried again on the next run
+                        renewing.remove(sessionId);
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // The session ended while being checked
+            }
+        }
+    }
+
+    private void submit(final Session session, final String sessionId, final CertAuthInfo certificate) {
+        AsyncTasks.getCommandPool().submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    renew(session, certificate);
+                } finally {
+                    renewing.remove(sessionId);
+                }
+            }
+
+        });
+    }
+
+    private static void renew(Session session, CertAuthInfo certificate) {
+        String userName = certificate.getUserName();
+        try {
+            CertAuthInfo renewed = KeyService.registerKey(session.getOAuthAccessToken(), session.getSSHCertSigningBackend());
+            if (session.replaceCertificate(certificate, renewed)) {
+                Logging.accessLogger.info("Renewed certificate for " + userName + " before expiry");
+            }
+        } catch (OAuthProblemException | UnauthorizedException e) {
+            refused.add(certificate);
+            logger.info("The certificate for " + userName + " could not be renewed; it will expire as usual");
+        } catch (IllegalStateException e) {
+            // The session ended during the renewal
+        } catch (OAuthSystemException | RuntimeException e) {
+            logger.warn("Could not renew the certificate for " + userName + "; will try again", e);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package au.org.massive.strudel_web;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.org.massive.strudel_web.util.VirtualThreads;
+
+/**
+ * A named thread pool with a fixed number of threads and a bounded queue. Work submitted while the queue is full
+ * is rejected with a {@link PoolSaturatedException}, which API endpoints turn into a 503 response. The pool's load
+ * is published through JMX as "au.org.massive.strudel_web:type=ExecutorPool,name=&lt;name&gt;".
+ * <p>
+ * A pool created with {@link #createVirtual} instead starts a new virtual thread for each task, and a semaphore
+ * bulkhead limits how many tasks run at once. Tasks over the limit wait on their own thread, up to the queue
+ * capacity, so the limit can be far higher than the thread count of a platform pool.
+ *
+ * @author jrigby
+ */
+public class ExecutorPool implements ExecutorPoolMXBean {
+
+    private final static Logger logger = LogManager.getLogger(ExecutorPool.class);
+
+    private final String name;
+    // Exactly one of these is set
+    private final ThreadPoolExecutor executor;
+    private final Bulkhead bulkhead;
+    private final int queueCapacity;
+    private final int retryAfterSeconds;
+    private final AtomicLong rejected = new AtomicLong();
+    private final boolean virtualThreads;
+    private ObjectName objectName;
+
+    private ExecutorPool(String name, int queueCapacity, int retryAfterSeconds, ThreadPoolExecutor executor) {
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.executor = executor;
+        this.bulkhead = null;
+        this.virtualThreads = false;
+    }
+
+    private ExecutorPool(String name, int queueCapacity, int retryAfterSeconds, Bulkhead bulkhead, boolean virtualThreads) {
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.executor = null;
+        this.bulkhead = bulkhead;
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Creates a pool for immediate work. Idle threads are stopped, so a quiet pool holds no threads.
+     *
+     * @param name              the name of the pool, used for its threads and JMX
+     * @param threads           the maximum number of threads
+     * @param queueCapacity     the number of tasks that may wait for a thread
+     * @param retryAfterSeconds the suggested retry delay when work is rejected
+     * @return the pool
+     */
+    public static ExecutorPool create(String name, int threads, int queueCapacity, int retryAfterSeconds) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return register(new ExecutorPool(name, queueCapacity, retryAfterSeconds, executor));
+    }
+
+    /**
+     * Creates a pool for immediate work that runs each task on a new virtual thread
+     *
+     * @param name              the name of the pool, used for its threads and JMX
+     * @param limit             the maximum number of tasks that run at once
+     * @param queueCapacity     the number of tasks that may wait to run
+     * @param retryAfterSeconds the suggested retry delay when work is rejected
+     * @return the pool, or null if this JVM does not support virtual threads
+     */
+    public static ExecutorPool createVirtual(String name, int limit, int queueCapacity, int retryAfterSeconds) {
+        ExecutorService perTaskExecutor = VirtualThreads.newThreadPerTaskExecutor(name);
+        if (perTaskExecutor == null) {
+            return null;
+        }
+        return createPerTask(name, perTaskExecutor, limit, queueCapacity, retryAfterSeconds, true);
+    }
+
+    /**
+     * Creates a pool that hands each task to an executor that starts a thread per task
+     *
+     * @param name              the name of the pool, used for JMX
+     * @param perTaskExecutor   the executor; it is shut down with the pool
+     * @param limit             the maximum number of tasks that run at once
+     * @param queueCapacity     the number of tasks that may wait to run
+     * @param retryAfterSeconds the suggested retry delay when work is rejected
+     * @param virtualThreads    whether the executor starts virtual threads
+     * @return the pool
+     */
+    static ExecutorPool createPerTask(String name, ExecutorService perTaskExecutor, int limit, int queueCapacity,
+                                      int retryAfterSeconds, boolean virtualThreads) {
+        Bulkhead bulkhead = new Bulkhead(perTaskExecutor, limit, queueCapacity);
+        return register(new ExecutorPool(name, queueCapacity, retryAfterSeconds, bulkhead, virtualThreads));
+    }
+
+    /**
+     * Creates a pool that can also run delayed and periodic work. Its queue holds the scheduled tasks, so the queue
+     * limit also caps the number of pending timers.
+     *
+     * @param name              the name of the pool, used for its threads and JMX
+     * @param threads           the number of threads
+     * @param queueCapacity     the number of tasks that may be waiting or scheduled
+     * @param retryAfterSeconds the suggested retry delay when work is rejected
+     * @return the pool
+     */
+    public static ExecutorPool createScheduled(String name, int threads, int queueCapacity, int retryAfterSeconds) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, threadFactory(name));
+        executor.setRemoveOnCancelPolicy(true);
+        return register(new ExecutorPool(name, queueCapacity, retryAfterSeconds, executor));
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+
+        };
+    }
+
+    private static ExecutorPool register(final ExecutorPool pool) {
+        if (pool.executor != null) {
+            pool.executor.setRejectedExecutionHandler(new RejectedExecutionHandler() {
+
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    throw pool.reject();
+                }
+
+            });
+        }
+        try {
+            pool.objectName = new ObjectName("au.org.massive.strudel_web:type=ExecutorPool,name=" + pool.name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(pool, pool.objectName);
+        } catch (JMException e) {
+            logger.warn("Could not publish statistics for the " + pool.name + " pool", e);
+            pool.objectName = null;
+        }
+        return pool;
+    }
+
+    private PoolSaturatedException reject() {
+        rejected.incrementAndGet();
+        logger.warn("The " + name + " pool rejected a task (" + getActiveThreads() + " active, " + getQueueDepth() + " queued)");
+        return new PoolSaturatedException(name, retryAfterSeconds);
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        if (bulkhead != null) {
+            Future<T> future = bulkhead.submit(task);
+            if (future == null) {
+                throw reject();
+            }
+            return future;
+        }
+        checkScheduledQueue();
+        return executor.submit(task);
+    }
+
+    public Future<?> submit(Runnable task) {
+        if (bulkhead != null) {
+            return submit(Executors.callable(task));
+        }
+        checkScheduledQueue();
+        return executor.submit(task);
+    }
+
+    /**
+     * Runs a task after a delay. Only available on pools created with {@link #createScheduled}.
+     *
+     * @param task  the task
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @return a future that can be used to cancel the task
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return getScheduledExecutor().schedule(task, delay, unit);
+    }
+
+    /**
+     * Runs a task periodically. Only available on pools created with {@link #createScheduled}.
+     *
+     * @param task         the task
+     * @param initialDelay the delay before the first run
+     * @param delay        the delay between the end of one run and the start of the next
+     * @param unit         the unit of the delays
+     * @return a future that can be used to cancel the task
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        return getScheduledExecutor().scheduleWithFixedDelay(task, initialDelay, delay, unit);
+    }
+
+    private ScheduledThreadPoolExecutor getScheduledExecutor() {
+        if (!(executor instanceof ScheduledThreadPoolExecutor)) {
+            throw new UnsupportedOperationException("The " + name + " pool does not run scheduled tasks");
+        }
+        checkScheduledQueue();
+        return (ScheduledThreadPoolExecutor) executor;
+    }
+
+    /**
+     * A scheduled executor's queue is unbounded, so its limit is checked before submitting instead. This is
+     * approximate under concurrent submission, which is fine for a safety limit.
+     */
+    private void checkScheduledQueue() {
+        if (executor instanceof ScheduledThreadPoolExecutor && executor.getQueue().size() >= queueCapacity) {
+            throw reject();
+        }
+    }
+
+    /**
+     * Stops accepting work and unpublishes the pool's statistics
+     *
+     * @param interrupt whether to interrupt running tasks and discard queued ones
+     */
+    public void shutdown(boolean interrupt) {
+        ExecutorService service = bulkhead != null ? bulkhead.executor : executor;
+        if (interrupt) {
+            service.shutdownNow();
+        } else {
+            service.shutdown();
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Could not unpublish statistics for the " + name + " pool", e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getMaximumThreads() {
+        if (bulkhead != null) {
+            return bulkhead.limit;
+        }
+        // Both kinds of thread pool have a fixed number of core threads and never grow beyond it
+        return executor.getCorePoolSize();
+    }
+
+    @Override
+    public int getPoolSize() {
+        if (bulkhead != null) {
+            return bulkhead.getThreadCount();
+        }
+        return executor.getPoolSize();
+    }
+
+    @Override
+    public int getActiveThreads() {
+        if (bulkhead != null) {
+            return bulkhead.getRunningCount();
+        }
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        if (bulkhead != null) {
+            return Math.max(0, bulkhead.getThreadCount() - bulkhead.getRunningCount());
+        }
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    @Override
+    public long getCompletedTaskCount() {
+        if (bulkhead != null) {
+            return bulkhead.completed.get();
+        }
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Runs each task on a thread of its own. Holding a thread costs little, so tasks over the limit wait for a
+     * permit on their own thread rather than in a queue, and cancelling one interrupts its wait.
+     */
+    private static class Bulkhead {
+        private final ExecutorService executor;
+        private final int limit;
+        // Permits for every task with a thread, whether running or waiting to run
+        private final int admittedLimit;
+        private final Semaphore admitted;
+        private final Semaphore running;
+        private final AtomicLong completed = new AtomicLong();
+
+        Bulkhead(ExecutorService executor, int limit, int queueCapacity) {
+            this.executor = executor;
+            this.limit = limit;
+            this.admittedLimit = limit + queueCapacity;
+            this.admitted = new Semaphore(admittedLimit);
+            this.running = new Semaphore(limit);
+        }
+
+        /**
+         * @return the task's future, or null if the running and waiting limits have been reached
+         */
+        <T> Future<T> submit(final Callable<T> task) {
+            if (!admitted.tryAcquire()) {
+                return null;
+            }
+            final AtomicBoolean released = new AtomicBoolean();
+            FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+
+                @Override
+                public T call() throws Exception {
+                    running.acquire();
+                    try {
+                        return task.call();
+                    } finally {
+                        running.release();
+                        completed.incrementAndGet();
+                    }
+                }
+
+            }) {
+
+                @Override
+                protected void done() {
+                    // Also reached by a task cancelled before its thread started, which never runs
+                    if (released.compareAndSet(false, true)) {
+                        admitted.release();
+                    }
+                }
+
+            };
+            try {
+                executor.execute(future);
+            } catch (RejectedExecutionException e) {
+                // Shut down
+                admitted.release();
+                throw e;
+            }
+            return future;
+        }
+
+        int getThreadCount() {
+            return admittedLimit - admitted.availablePermits();
+        }
+
+        int getRunningCount() {
+            return limit - running.availablePermits();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package au.org.massive.strudel_web;
+
+/**
+ * Exposes the load on an {@link ExecutorPool} through JMX
+ *
+ * @author jrigby
+ */
+public interface ExecutorPoolMXBean {
+
+    String getName();
+
+    int getMaximumThreads();
+
+    int getPoolSize();
+
+    int getActiveThreads();
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    long getRejectedCount();
+
+    long getCompletedTaskCount();
+
+    boolean isVirtualThreads();
+}
@@ -0,0 +1,188 @@
+package au.org.massive.strudel_web;
+
+import java.lang.management.ManagementFactory;
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A servlet listener that keeps a pool of ready RSA key pairs, so that registering a key does not wait for key
+ * generation. One low-priority thread refills the pool whenever it is below its size. A key pair is only generated
+ * on the caller's thread when the pool is empty, or when the pool is disabled with a size of 0. Ed25519 pairs take
+ * microseconds to generate, so they are never pooled.
+ * <p>
+ * Hits, misses and refill times are published through JMX as "au.org.massive.strudel_web:type=KeyPairPool".
+ *
+ * @author jrigby
+ */
+public class KeyPairPool implements ServletContextListener, KeyPairPoolMXBean {
+
+    private final static Logger logger = LogManager.getLogger(KeyPairPool.class);
+
+    // Guarded by KeyPairPool.class
+    private static KeyPairPool instance;
+
+    private final int size;
+    private final BlockingQueue<KeyPair> pairs;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refills = new AtomicLong();
+    private final AtomicLong refillNanos = new AtomicLong();
+    private volatile long lastRefillNanos;
+    private Thread refiller;
+    private ObjectName objectName;
+
+    /**
+     * Used by the servlet container, which also calls {@link #contextInitialized}
+     */
+    public KeyPairPool() {
+        size = Settings.getInstance().getKeyPoolSize();
+        pairs = new ArrayBlockingQueue<>(Math.max(size, 1));
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        if (size > 0) {
+            refiller = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    refill();
+                }
+
+            }, "key-pool");
+            refiller.setDaemon(true);
+            refiller.setPriority(Thread.MIN_PRIORITY);
+            refiller.start();
+        }
+        try {
+            objectName = new ObjectName("au.org.massive.strudel_web:type=KeyPairPool");
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            logger.warn("Could not publish key pool statistics", e);
+            objectName = null;
+        }
+        synchronized (KeyPairPool.class) {
+            instance = this;
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        synchronized (KeyPairPool.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        if (refiller != null) {
+            refiller.interrupt();
+        }
+        pairs.clear();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Could not unpublish key pool statistics", e);
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Takes a key pair from the pool, or generates one if the pool is empty or not running. Each pair is only
+     * handed out once.
+     *
+     * @param keyType the type of key pair
+     * @return a new key pair
+     */
+    static KeyPair take(SSHCertSigningBackend.KeyType keyType) {
+        if (keyType != SSHCertSigningBackend.KeyType.RSA) {
+            return KeyService.generateKeyPair(keyType);
+        }
+        KeyPairPool pool;
+        synchronized (KeyPairPool.class) {
+            pool = instance;
+        }
+        if (pool == null) {
+            return KeyService.generateKeyPair();
+        }
+        KeyPair pair = pool.pairs.poll();
+        if (pair != null) {
+            pool.hits.incrementAndGet();
+            return pair;
+        }
+        // Generating here is quicker than queueing behind the low-priority refill
+        pool.misses.incrementAndGet();
+        return KeyService.generateKeyPair();
+    }
+
+    private void refill() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                long start = System.nanoTime();
+                KeyPair pair = KeyService.generateKeyPair();
+                long elapsed = System.nanoTime() - start;
+                refills.incrementAndGet();
+                refillNanos.addAndGet(elapsed);
+                lastRefillNanos = elapsed;
+                // Blocks while the pool is full
+                pairs.put(pair);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                logger.error("Could not generate a key pair for the pool", e);
+                try {
+                    TimeUnit.SECONDS.sleep(10);
+                } catch (InterruptedException e1) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int getAvailable() {
+        return pairs.size();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getRefillCount() {
+        return refills.get();
+    }
+
+    @Override
+    public double getAverageRefillMillis() {
+        long count = refills.get();
+        return count == 0 ? 0 : refillNanos.get() / 1e6 / count;
+    }
+
+    @Override
+    public double getLastRefillMillis() {
+        return lastRefillNanos / 1e6;
+    }
+}
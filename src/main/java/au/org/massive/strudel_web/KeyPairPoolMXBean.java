@@ -0,0 +1,23 @@
+package au.org.massive.strudel_web;
+
+/**
+ * Exposes how often key registration finds a ready key pair in the {@link KeyPairPool} through JMX
+ *
+ * @author jrigby
+ */
+public interface KeyPairPoolMXBean {
+
+    int getSize();
+
+    int getAvailable();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getRefillCount();
+
+    double getAverageRefillMillis();
+
+    double getLastRefillMillis();
+}
@@ -4,10 +4,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.security.Key;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.interfaces.RSAKey;
 import java.security.interfaces.RSAPrivateKey;
@@ -17,18 +22,27 @@ import java.util.Map;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.oltu.oauth2.client.OAuthClient;
-import org.apache.oltu.oauth2.client.URLConnectionClient;
 import org.apache.oltu.oauth2.client.request.OAuthBearerClientRequest;
 import org.apache.oltu.oauth2.client.request.OAuthClientRequest;
 import org.apache.oltu.oauth2.client.response.OAuthResourceResponse;
 import org.apache.oltu.oauth2.common.OAuth;
 import org.apache.oltu.oauth2.common.exception.OAuthProblemException;
 import org.apache.oltu.oauth2.common.exception.OAuthSystemException;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.crypto.params.Ed25519PrivateKeyParameters;
+import org.bouncycastle.crypto.params.Ed25519PublicKeyParameters;
+import org.bouncycastle.crypto.util.OpenSSHPrivateKeyUtil;
+import org.bouncycastle.crypto.util.OpenSSHPublicKeyUtil;
+import org.bouncycastle.crypto.util.PrivateKeyFactory;
+import org.bouncycastle.crypto.util.PublicKeyFactory;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemWriter;
 
 import au.org.massive.strudel_web.ssh.CertAuthInfo;
 
+import au.org.massive.strudel_web.util.JsonHelper;
 import com.google.gson.Gson;
 
 /**
@@ -40,19 +54,35 @@ public class KeyService {
 
     private static final Settings settings = Settings.getInstance();
 
+    // Building the provider registers all of its algorithms, so one instance is shared
+    private static final Provider provider = new BouncyCastleProvider();
+
     private KeyService() {
 
     }
 
     /**
-     * Generates an RSA key pair
+     * Generates an RSA key pair. Key registration takes pairs from the {@link KeyPairPool} instead.
      *
      * @return a key pair
      */
-    private static KeyPair generateKeyPair() {
+    static KeyPair generateKeyPair() {
+        return generateKeyPair(SSHCertSigningBackend.KeyType.RSA);
+    }
+
+    /**
+     * Generates a key pair: 2048-bit RSA, or Ed25519
+     *
+     * @param keyType the type of key pair
+     * @return a key pair
+     */
+    static KeyPair generateKeyPair(SSHCertSigningBackend.KeyType keyType) {
 
         try {
-            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", new BouncyCastleProvider());
+            if (keyType == SSHCertSigningBackend.KeyType.ED25519) {
+                return KeyPairGenerator.getInstance("Ed25519", provider).generateKeyPair();
+            }
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", provider);
             kpg.initialize(2048, SecureRandom.getInstance("SHA1PRNG", "SUN"));
             return kpg.generateKeyPair();
         } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
@@ -60,6 +90,65 @@ public class KeyService {
         }
     }
 
+    /**
+     * Converts a public key to the SSH format used in authorized_keys
+     *
+     * @param key an RSA or Ed25519 public key
+     * @return String representation of the key
+     * @throws UnsupportedKeyException thrown if the key is of another type
+     */
+    public static String publicKeyToString(PublicKey key) throws UnsupportedKeyException {
+        if (key instanceof RSAPublicKey) {
+            return keyToString((RSAPublicKey) key);
+        }
+        AsymmetricKeyParameter params = toEd25519Parameters(key);
+        try {
+            return "ssh-ed25519 " + new String(Base64.encodeBase64(OpenSSHPublicKeyUtil.encodePublicKey(params)))
+                    + " jobcontrol@" + System.currentTimeMillis();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Converts a private key to the format ssh reads from a key file: PEM for RSA, and the OpenSSH format for
+     * Ed25519, which has no PEM encoding that ssh accepts
+     *
+     * @param key an RSA or Ed25519 private key
+     * @return String representation of the key
+     * @throws UnsupportedKeyException thrown if the key is of another type
+     */
+    public static String privateKeyToString(PrivateKey key) throws UnsupportedKeyException {
+        if (key instanceof RSAPrivateKey) {
+            return keyToString((RSAPrivateKey) key);
+        }
+        AsymmetricKeyParameter params = toEd25519Parameters(key);
+        StringWriter out = new StringWriter();
+        try (PemWriter pemWriter = new PemWriter(out)) {
+            pemWriter.writeObject(new PemObject("OPENSSH PRIVATE KEY", OpenSSHPrivateKeyUtil.encodePrivateKey(params)));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
+    private static AsymmetricKeyParameter toEd25519Parameters(Key key) throws UnsupportedKeyException {
+        AsymmetricKeyParameter params;
+        try {
+            if (key instanceof PublicKey) {
+                params = PublicKeyFactory.createKey(key.getEncoded());
+            } else {
+                params = PrivateKeyFactory.createKey(key.getEncoded());
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new UnsupportedKeyException();
+        }
+        if (!(params instanceof Ed25519PublicKeyParameters || params instanceof Ed25519PrivateKeyParameters)) {
+            throw new UnsupportedKeyException();
+        }
+        return params;
+    }
+
     /**
      * Converts a key that's subclassed from {@link RSAKey} to a string representation
      *
@@ -130,8 +219,8 @@ public class KeyService {
      * @throws UnauthorizedException thrown if the server denies access to a resource
      */
     public static CertAuthInfo registerKey(String oauthAccessToken, SSHCertSigningBackend authBackend) throws OAuthSystemException, OAuthProblemException, UnauthorizedException {
-        Gson gson = new Gson();
-        KeyPair kp = generateKeyPair();
+        Gson gson = JsonHelper.getGson();
+        KeyPair kp = KeyPairPool.take(authBackend.getKeyType());
 
         OAuthClientRequest apiRequest = new OAuthBearerClientRequest(authBackend.getSshApiEndpoint().toString())
                 .setAccessToken(oauthAccessToken)
@@ -140,14 +229,14 @@ public class KeyService {
 
         Map<String, String> data = new HashMap<>();
         try {
-            data.put("public_key", keyToString((RSAPublicKey) kp.getPublic()));
+            data.put("public_key", publicKeyToString(kp.getPublic()));
         } catch (UnsupportedKeyException e) {
             throw new RuntimeException(e);
         }
 
         apiRequest.setBody(gson.toJson(data));
 
-        OAuthClient client = new OAuthClient(new URLConnectionClient());
+        OAuthClient client = new OAuthClient(BackendHttpClients.getClient(authBackend));
         OAuthResourceResponse apiResponse = client.resource(apiRequest, OAuth.HttpMethod.POST, OAuthResourceResponse.class);
 
         // This happens when the user is no longer authorised
@@ -159,7 +248,7 @@ public class KeyService {
         Map<String, String> certificateResponse = (Map<String, String>) gson.fromJson(apiResponse.getBody(), HashMap.class);
 
         try {
-            return new CertAuthInfo(certificateResponse.get("user"), certificateResponse.get("certificate"), keyToString((RSAPrivateKey) kp.getPrivate()));
+            return new CertAuthInfo(certificateResponse.get("user"), certificateResponse.get("certificate"), privateKeyToString(kp.getPrivate()));
         } catch (UnsupportedKeyException e) {
             throw new RuntimeException(e);
         }
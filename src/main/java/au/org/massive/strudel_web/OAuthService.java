@@ -8,7 +8,6 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.oltu.oauth2.client.OAuthClient;
-import org.apache.oltu.oauth2.client.URLConnectionClient;
 import org.apache.oltu.oauth2.client.request.OAuthClientRequest;
 import org.apache.oltu.oauth2.client.response.OAuthAuthzResponse;
 import org.apache.oltu.oauth2.common.exception.OAuthProblemException;
@@ -110,7 +109,7 @@ public class OAuthService {
     public static void doTokenRequest(String code, Session session) throws OAuthSystemException, OAuthProblemException {
         SSHCertSigningBackend authBackend = session.getSSHCertSigningBackend();
         String authHeader = "Basic " + new String(Base64.encodeBase64((authBackend.getOAuthCliendId() + ":" + authBackend.getOAuthClientSecret()).getBytes()));
-        OAuthClient client = new OAuthClient(new URLConnectionClient());
+        OAuthClient client = new OAuthClient(BackendHttpClients.getClient(authBackend));
         OAuthClientRequest req = OAuthClientRequest.tokenLocation(authBackend.getOAuthTokenEndpoint().toString())
                 .setGrantType(GrantType.AUTHORIZATION_CODE)
                 .setRedirectURI(settings.getOAuthRedirect())
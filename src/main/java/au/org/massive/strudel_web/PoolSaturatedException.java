@@ -0,0 +1,34 @@
+package au.org.massive.strudel_web;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when an {@link ExecutorPool} cannot accept more work because its threads are busy and its queue is full,
+ * or because it has been shut down
+ *
+ * @author jrigby
+ */
+public class PoolSaturatedException extends RejectedExecutionException {
+
+    private static final long serialVersionUID = 6130934218746508472L;
+
+    private final String poolName;
+    private final int retryAfterSeconds;
+
+    public PoolSaturatedException(String poolName, int retryAfterSeconds) {
+        super("The " + poolName + " pool cannot accept more work");
+        this.poolName = poolName;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    /**
+     * @return a suggested number of seconds to wait before retrying
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
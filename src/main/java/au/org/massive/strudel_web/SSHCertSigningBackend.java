@@ -7,19 +7,59 @@ import java.net.URL;
  * Created by jason on 29/09/15.
  */
 public class SSHCertSigningBackend {
+
+    /**
+     * The type of key pair generated for certificates signed by a backend. Ed25519 keys are much quicker to
+     * generate and verify, but the signing service and the target hosts must accept them.
+     */
+    public enum KeyType {
+        RSA("rsa"), ED25519("ed25519");
+
+        private final String name;
+
+        KeyType(String name) {
+            this.name = name;
+        }
+
+        public String toString() {
+            return name;
+        }
+
+        public static KeyType fromString(String type) {
+            if (type != null) {
+                for (KeyType t : KeyType.values()) {
+                    if (t.toString().equals(type.toLowerCase())) {
+                        return t;
+                    }
+                }
+            }
+            throw new IllegalArgumentException("Unknown key type: " + type);
+        }
+    }
+
     private final String NAME;
     private final URL OAUTH_AUTHORIZATION_ENDPOINT;
     private final URL OAUTH_TOKEN_ENDPOINT;
     private final URL SSH_API_ENDPOINT;
     private final String OAUTH_CLIENT_ID;
     private final String OAUTH_CLIENT_SECRET;
+    private final KeyType KEY_TYPE;
 
     public SSHCertSigningBackend(String name, String authEndpoint, String tokenEndpoint, String sshApiEndpoint, String clientId, String clientSecret) throws MalformedURLException {
-        this(name, new URL(authEndpoint), new URL(tokenEndpoint), new URL(sshApiEndpoint), clientId, clientSecret);
+        this(name, authEndpoint, tokenEndpoint, sshApiEndpoint, clientId, clientSecret, KeyType.RSA);
+    }
+
+    public SSHCertSigningBackend(String name, String authEndpoint, String tokenEndpoint, String sshApiEndpoint, String clientId, String clientSecret, KeyType keyType) throws MalformedURLException {
+        this(name, new URL(authEndpoint), new URL(tokenEndpoint), new URL(sshApiEndpoint), clientId, clientSecret, keyType);
     }
 
     public SSHCertSigningBackend(String name, URL authEndpoint, URL tokenEndpoint, URL sshApiEndpoint, String clientId, String clientSecret) {
+        this(name, authEndpoint, tokenEndpoint, sshApiEndpoint, clientId, clientSecret, KeyType.RSA);
+    }
+
+    public SSHCertSigningBackend(String name, URL authEndpoint, URL tokenEndpoint, URL sshApiEndpoint, String clientId, String clientSecret, KeyType keyType) {
         this.NAME = name;
+        KEY_TYPE = keyType;
         OAUTH_AUTHORIZATION_ENDPOINT = authEndpoint;
         OAUTH_TOKEN_ENDPOINT = tokenEndpoint;
         SSH_API_ENDPOINT = sshApiEndpoint;
@@ -50,4 +90,8 @@ public class SSHCertSigningBackend {
     public String getOAuthClientSecret() {
         return OAUTH_CLIENT_SECRET;
     }
+
+    public KeyType getKeyType() {
+        return KEY_TYPE;
+    }
 }
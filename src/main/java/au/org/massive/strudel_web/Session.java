@@ -8,8 +8,10 @@ import javax.servlet.http.HttpSession;
 
 import au.org.massive.strudel_web.job_control.UserMessage;
 import au.org.massive.strudel_web.ssh.CertAuthInfo;
+import au.org.massive.strudel_web.ssh.CredentialCache;
 import au.org.massive.strudel_web.util.FixedSizeStack;
 import au.org.massive.strudel_web.vnc.GuacamoleSession;
+import au.org.massive.strudel_web.vnc.GuacamoleSessionManager;
 
 /**
  * An abstraction from the {@link HttpSession} object, mediating access to session attributes
@@ -64,7 +66,34 @@ public class Session {
     }
 
     public void setCertificate(CertAuthInfo cert) {
-        session.setAttribute(KEY_CERT, cert);
+        synchronized (SessionManager.getCertificateLock(getSessionId())) {
+            CertAuthInfo previous = getCertificate();
+            session.setAttribute(KEY_CERT, cert);
+            if (previous != null && previous != cert) {
+                // Wipe the key files of the replaced certificate
+                CredentialCache.retire(previous);
+            }
+        }
+    }
+
+    /**
+     * Swaps in a renewed certificate, unless the session's certificate has changed since the renewal started.
+     * Commands already running keep the key files of the old certificate until they finish. This holds the same
+     * per-session lock as {@link #setCertificate}, so a certificate registered or cleared by the user is never
+     * overwritten by a renewal.
+     *
+     * @param expected    the certificate that was renewed
+     * @param replacement the new certificate
+     * @return true if the certificate was replaced
+     */
+    public boolean replaceCertificate(CertAuthInfo expected, CertAuthInfo replacement) {
+        synchronized (SessionManager.getCertificateLock(getSessionId())) {
+            if (getCertificate() != expected) {
+                return false;
+            }
+            setCertificate(replacement);
+            return true;
+        }
     }
 
     public CertAuthInfo getCertificate() {
@@ -99,10 +128,9 @@ public class Session {
         session.removeAttribute(OAUTH_ACCESS_TOKEN);
     }
 
-    @SuppressWarnings("unchecked")
     public synchronized Set<GuacamoleSession> getGuacamoleSessionsSet() {
-        Set<GuacamoleSession> guacamoleSessions = (Set<GuacamoleSession>) session.getAttribute(GUAC_SESSION);
-        if (session.getAttribute(GUAC_SESSION) == null) {
+        Set<GuacamoleSession> guacamoleSessions = getGuacamoleSessions(session);
+        if (guacamoleSessions == null) {
             guacamoleSessions = Collections.newSetFromMap(new ConcurrentHashMap<GuacamoleSession, Boolean>());
             session.setAttribute(GUAC_SESSION, guacamoleSessions);
         }
@@ -111,8 +139,11 @@ public class Session {
         for (Session activeSession : SessionManager.getActiveSessions()) {
             if (!activeSession.getSessionId().equals(this.getSessionId()) && activeSession.hasCertificate() && this.hasCertificate() &&
                     activeSession.getCertificate().getUserName().equals(this.getCertificate().getUserName())) {
-                Set<GuacamoleSession> otherGuacSessions = (Set<GuacamoleSession>) activeSession.getHttpSession().getAttribute(GUAC_SESSION);
+                Set<GuacamoleSession> otherGuacSessions = getGuacamoleSessions(activeSession.getHttpSession());
                 if (otherGuacSessions != null) {
+                    for (GuacamoleSession guacSession : otherGuacSessions) {
+                        GuacamoleSessionManager.setOwner(guacSession, this);
+                    }
                     guacamoleSessions.addAll(otherGuacSessions);
                     otherGuacSessions.clear();
                 }
@@ -121,6 +152,33 @@ public class Session {
         return guacamoleSessions;
     }
 
+    /**
+     * Removes a Guacamole session from this session only, without gathering those of the user's other sessions
+     * @param guacSession the Guacamole session to remove
+     */
+    public void removeGuacamoleSession(GuacamoleSession guacSession) {
+        try {
+            Set<GuacamoleSession> guacamoleSessions = getGuacamoleSessions(session);
+            if (guacamoleSessions != null) {
+                guacamoleSessions.remove(guacSession);
+            }
+        } catch (IllegalStateException e) {
+            // The session has already been invalidated, taking its Guacamole sessions with it
+        }
+    }
+
+    /**
+     * @param httpSession an HTTP session
+     * @return its Guacamole sessions, or null if it has none. The attribute is only ever set by this class, so the
+     * cast is safe.
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<GuacamoleSession> getGuacamoleSessions(HttpSession httpSession) {
+        return (Set<GuacamoleSession>) httpSession.getAttribute(GUAC_SESSION);
+    }
+
+    // The attribute is only ever set here, so the cast is safe
+    @SuppressWarnings("unchecked")
     private Map<String, FixedSizeStack<UserMessage>> getUserMessageStacks() {
         Map<String, FixedSizeStack<UserMessage>> messageStacks = (Map<String, FixedSizeStack<UserMessage>>) session.getAttribute(USER_MESSAGE_QUEUE);
         if (messageStacks == null) {
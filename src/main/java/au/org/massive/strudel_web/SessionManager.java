@@ -1,14 +1,17 @@
 package au.org.massive.strudel_web;
 
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionListener;
 
+import au.org.massive.strudel_web.ssh.CredentialCache;
+import au.org.massive.strudel_web.ssh.SSHConnectionPool;
+import au.org.massive.strudel_web.ssh.SSHControlMaster;
 import au.org.massive.strudel_web.vnc.GuacamoleSession;
 import au.org.massive.strudel_web.vnc.GuacamoleSessionManager;
 import org.apache.logging.log4j.LogManager;
@@ -22,12 +25,35 @@ import org.apache.logging.log4j.Logger;
 public class SessionManager implements HttpSessionListener {
 
 
-    private static final Map<String, HttpSession> sessionMap = new HashMap<>();
+    // Read by background tasks as well as the container
+    private static final Map<String, HttpSession> sessionMap = new ConcurrentHashMap<>();
+    // Serialises certificate changes per session id, since containers may hand out several objects for one session
+    private static final Map<String, Object> certificateLocks = new ConcurrentHashMap<>();
 
     public static HttpSession getSessionById(String id) {
         return sessionMap.get(id);
     }
 
+    /**
+     * @param id a session id
+     * @return the lock held while the session's certificate is changed
+     */
+    static Object getCertificateLock(String id) {
+        if (!sessionMap.containsKey(id)) {
+            // The session has ended, so there is nothing left to serialise against
+            return new Object();
+        }
+        Object lock = certificateLocks.get(id);
+        if (lock == null) {
+            Object created = new Object();
+            lock = certificateLocks.putIfAbsent(id, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
     public static void endSession(String id) {
         HttpSession session = getSessionById(id);
         if (session != null) {
@@ -77,6 +103,29 @@ public class SessionManager implements HttpSessionListener {
         }
 
         sessionMap.remove(s.getSessionId());
+        certificateLocks.remove(s.getSessionId());
+
+        // Wipe the key files written for this session's certificate
+        if (s.hasCertificate()) {
+            CredentialCache.retire(s.getCertificate());
+        }
+
+        // Close any persistent SSH connections once the user's last session has ended
+        if (s.hasCertificate() && !hasOtherActiveSession(s)) {
+            SSHConnectionPool.closeConnections(s.getCertificate().getUserName());
+            SSHControlMaster.stopAll(s.getCertificate().getUserName());
+        }
+    }
+
+    private static boolean hasOtherActiveSession(Session session) {
+        String userName = session.getCertificate().getUserName();
+        for (Session activeSession : getActiveSessions()) {
+            if (!activeSession.getSessionId().equals(session.getSessionId()) && activeSession.hasCertificate() &&
+                    activeSession.getCertificate().getUserName().equals(userName)) {
+                return true;
+            }
+        }
+        return false;
     }
 
 }
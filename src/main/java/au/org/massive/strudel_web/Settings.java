@@ -1,6 +1,8 @@
 package au.org.massive.strudel_web;
 
 import au.org.massive.strudel_web.job_control.*;
+import au.org.massive.strudel_web.ssh.CertAuthInfo;
+import au.org.massive.strudel_web.ssh.SSHClientFactory;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.PropertiesConfiguration;
@@ -12,6 +14,9 @@ import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -36,6 +41,35 @@ public class Settings {
     private String SMTP_HOST;
     private int SMTP_PORT;
     private String FEEDBACK_EMAIL_SUBJECT;
+    private SSHClientFactory.ClientType SSH_CLIENT_TYPE;
+    private boolean SSH_CONTROL_MASTER;
+    private String SSH_KNOWN_HOSTS;
+    private boolean SSH_ACCEPT_ANY_HOST_KEY;
+    private int REQUEST_THREADS;
+    private int REQUEST_QUEUE_SIZE;
+    private int COMMAND_THREADS;
+    private int COMMAND_QUEUE_SIZE;
+    private int SHARED_COMMAND_THREADS;
+    private int SHARED_COMMAND_QUEUE_SIZE;
+    private int TUNNEL_THREADS;
+    private int TUNNEL_QUEUE_SIZE;
+    private int MAINTENANCE_THREADS;
+    private int MAINTENANCE_QUEUE_SIZE;
+    private boolean VIRTUAL_THREADS;
+    private int REQUEST_VIRTUAL_THREADS;
+    private int COMMAND_VIRTUAL_THREADS;
+    private int SHARED_COMMAND_VIRTUAL_THREADS;
+    private int TASK_CACHE_SIZE;
+    private int TASK_HISTORY_SIZE;
+    private int REQUEST_TIMEOUT;
+    private int EVENTS_REFRESH_INTERVAL;
+    private int RUNNING_WAIT_TIMEOUT;
+    private int KEY_POOL_SIZE;
+    private int BACKEND_CONNECT_TIMEOUT;
+    private int BACKEND_READ_TIMEOUT;
+    private int BACKEND_MAX_CONNECTIONS;
+    private int CERTIFICATE_RENEWAL_MARGIN;
+    private int CERTIFICATE_RENEWAL_INTERVAL;
 
     private static Settings instance;
 
@@ -94,6 +128,35 @@ public class Settings {
         }
         FEEDBACK_EMAIL_SUBJECT = config.getString("feedback-email-subject", "Feedback for Strudel Web");
         BASE_URL = config.getString("base-url", null);
+        SSH_CLIENT_TYPE = SSHClientFactory.ClientType.fromString(config.getString("ssh-client", "forked"));
+        SSH_CONTROL_MASTER = config.getBoolean("ssh-control-master", false);
+        SSH_KNOWN_HOSTS = config.getString("ssh-known-hosts", System.getProperty("user.home") + "/.ssh/known_hosts");
+        SSH_ACCEPT_ANY_HOST_KEY = config.getBoolean("ssh-accept-any-host-key", false);
+        REQUEST_THREADS = config.getInt("request-threads", 256);
+        REQUEST_QUEUE_SIZE = config.getInt("request-queue-size", 1024);
+        COMMAND_THREADS = config.getInt("command-threads", 64);
+        COMMAND_QUEUE_SIZE = config.getInt("command-queue-size", 256);
+        SHARED_COMMAND_THREADS = config.getInt("shared-command-threads", 16);
+        SHARED_COMMAND_QUEUE_SIZE = config.getInt("shared-command-queue-size", 64);
+        TUNNEL_THREADS = config.getInt("tunnel-threads", 4);
+        TUNNEL_QUEUE_SIZE = config.getInt("tunnel-queue-size", 4096);
+        MAINTENANCE_THREADS = config.getInt("maintenance-threads", 2);
+        MAINTENANCE_QUEUE_SIZE = config.getInt("maintenance-queue-size", 1024);
+        VIRTUAL_THREADS = config.getBoolean("virtual-threads", false);
+        REQUEST_VIRTUAL_THREADS = config.getInt("request-virtual-threads", 4096);
+        COMMAND_VIRTUAL_THREADS = config.getInt("command-virtual-threads", 1024);
+        SHARED_COMMAND_VIRTUAL_THREADS = config.getInt("shared-command-virtual-threads", 256);
+        TASK_CACHE_SIZE = config.getInt("task-cache-size", 10000);
+        TASK_HISTORY_SIZE = config.getInt("task-history-size", 10000);
+        REQUEST_TIMEOUT = config.getInt("request-timeout", 120);
+        EVENTS_REFRESH_INTERVAL = config.getInt("events-refresh-interval", 3);
+        RUNNING_WAIT_TIMEOUT = config.getInt("running-wait-timeout", 300);
+        KEY_POOL_SIZE = config.getInt("key-pool-size", 16);
+        BACKEND_CONNECT_TIMEOUT = config.getInt("ssh-cert-backend-connect-timeout", 10);
+        BACKEND_READ_TIMEOUT = config.getInt("ssh-cert-backend-read-timeout", 30);
+        BACKEND_MAX_CONNECTIONS = config.getInt("ssh-cert-backend-max-connections", 20);
+        CERTIFICATE_RENEWAL_MARGIN = config.getInt("certificate-renewal-margin", 600);
+        CERTIFICATE_RENEWAL_INTERVAL = config.getInt("certificate-renewal-interval", 60);
         setupSystemConfigurations(config);
     }
 
@@ -120,7 +183,8 @@ public class Settings {
                                 config.getString("ssh-cert-backend-oauth-token-endpoint" + i),
                                 config.getString("ssh-cert-backend-ssh-api-endpoint" + i),
                                 config.getString("ssh-cert-backend-oauth-client-id" + i),
-                                config.getString("ssh-cert-backend-oauth-client-secret" + i)
+                                config.getString("ssh-cert-backend-oauth-client-secret" + i),
+                                SSHCertSigningBackend.KeyType.fromString(config.getString("ssh-cert-backend-key-type" + i, "rsa"))
                         )
                 );
             }
@@ -134,11 +198,13 @@ public class Settings {
             for (int i = 0; (systemConfigName = config.getString("system-configuration-name"+i)) != null; i++) {
                 URL jsonConfigUrl = new URL(config.getString("system-configuration-json-url"+i));
                 StrudelDesktopConfigurationAdapter strudelConfig = new StrudelDesktopConfigurationAdapter(systemConfigName+"|", jsonConfigUrl);
+                SchedulerPoller.Options pollerOptions = getSchedulerPollerOptions(config, i);
                 for (String configId : strudelConfig.keySet()) {
                     AbstractSystemConfiguration c = strudelConfig.get(configId);
                     for (Object o : config.getList("system-configuration-auth-backends"+i)) {
                         c.addAuthBackend((String) o);
                     }
+                    c.setSchedulerPollerOptions(pollerOptions);
                     CONFIGURATION_REGISTRY.addSystemConfiguration(configId, c);
                 }
             }
@@ -147,6 +213,34 @@ public class Settings {
         }
     }
 
+    /**
+     * Reads the optional cluster-wide scheduler poller for a system configuration
+     *
+     * @param config the application configuration
+     * @param i      the index of the system configuration
+     * @return the poller options, or null if polling is disabled
+     * @throws IOException thrown if the service credential cannot be read
+     */
+    private static SchedulerPoller.Options getSchedulerPollerOptions(Configuration config, int i) throws IOException {
+        int interval = config.getInt("system-configuration-poller-interval" + i, 0);
+        if (interval <= 0) {
+            return null;
+        }
+        CertAuthInfo serviceCredential = new CertAuthInfo(
+                config.getString("system-configuration-poller-user" + i),
+                readFile(config.getString("system-configuration-poller-certificate" + i)),
+                readFile(config.getString("system-configuration-poller-private-key" + i)));
+        return new SchedulerPoller.Options(
+                config.getString("system-configuration-poller-command" + i),
+                interval,
+                config.getString("system-configuration-poller-running-state" + i, "R"),
+                serviceCredential);
+    }
+
+    private static String readFile(String path) throws IOException {
+        return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+    }
+
     public ConfigurationRegistry getSystemConfigurations() {
         return CONFIGURATION_REGISTRY;
     }
@@ -183,4 +277,120 @@ public class Settings {
     public String getBaseUrl() {
         return BASE_URL;
     }
+
+    public SSHClientFactory.ClientType getSSHClientType() {
+        return SSH_CLIENT_TYPE;
+    }
+
+    public boolean isSSHControlMasterEnabled() {
+        return SSH_CONTROL_MASTER;
+    }
+
+    public String getSSHKnownHostsFile() {
+        return SSH_KNOWN_HOSTS;
+    }
+
+    public boolean isSSHAcceptAnyHostKey() {
+        return SSH_ACCEPT_ANY_HOST_KEY;
+    }
+
+    public int getRequestThreads() {
+        return REQUEST_THREADS;
+    }
+
+    public int getRequestQueueSize() {
+        return REQUEST_QUEUE_SIZE;
+    }
+
+    public int getCommandThreads() {
+        return COMMAND_THREADS;
+    }
+
+    public int getCommandQueueSize() {
+        return COMMAND_QUEUE_SIZE;
+    }
+
+    public int getSharedCommandThreads() {
+        return SHARED_COMMAND_THREADS;
+    }
+
+    public int getSharedCommandQueueSize() {
+        return SHARED_COMMAND_QUEUE_SIZE;
+    }
+
+    public int getTunnelThreads() {
+        return TUNNEL_THREADS;
+    }
+
+    public int getTunnelQueueSize() {
+        return TUNNEL_QUEUE_SIZE;
+    }
+
+    public int getMaintenanceThreads() {
+        return MAINTENANCE_THREADS;
+    }
+
+    public int getMaintenanceQueueSize() {
+        return MAINTENANCE_QUEUE_SIZE;
+    }
+
+    public boolean isVirtualThreadsEnabled() {
+        return VIRTUAL_THREADS;
+    }
+
+    public int getRequestVirtualThreads() {
+        return REQUEST_VIRTUAL_THREADS;
+    }
+
+    public int getCommandVirtualThreads() {
+        return COMMAND_VIRTUAL_THREADS;
+    }
+
+    public int getSharedCommandVirtualThreads() {
+        return SHARED_COMMAND_VIRTUAL_THREADS;
+    }
+
+    public int getTaskCacheSize() {
+        return TASK_CACHE_SIZE;
+    }
+
+    public int getTaskHistorySize() {
+        return TASK_HISTORY_SIZE;
+    }
+
+    public int getRequestTimeoutInSeconds() {
+        return REQUEST_TIMEOUT;
+    }
+
+    public int getEventsRefreshIntervalInSeconds() {
+        return EVENTS_REFRESH_INTERVAL;
+    }
+
+    public int getRunningWaitTimeoutInSeconds() {
+        return RUNNING_WAIT_TIMEOUT;
+    }
+
+    public int getKeyPoolSize() {
+        return KEY_POOL_SIZE;
+    }
+
+    public int getBackendConnectTimeoutInSeconds() {
+        return BACKEND_CONNECT_TIMEOUT;
+    }
+
+    public int getBackendReadTimeoutInSeconds() {
+        return BACKEND_READ_TIMEOUT;
+    }
+
+    public int getBackendMaxConnections() {
+        return BACKEND_MAX_CONNECTIONS;
+    }
+
+    public int getCertificateRenewalMarginInSeconds() {
+        return CERTIFICATE_RENEWAL_MARGIN;
+    }
+
+    public int getCertificateRenewalIntervalInSeconds() {
+        return CERTIFICATE_RENEWAL_INTERVAL;
+    }
 }
@@ -0,0 +1,390 @@
+package au.org.massive.strudel_web.jersey;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.MediaType;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+
+import au.org.massive.strudel_web.AsyncTasks;
+import au.org.massive.strudel_web.PoolSaturatedException;
+import au.org.massive.strudel_web.Session;
+import au.org.massive.strudel_web.Settings;
+import au.org.massive.strudel_web.job_control.AbstractSystemConfiguration;
+import au.org.massive.strudel_web.job_control.MissingRequiredTaskParametersException;
+import au.org.massive.strudel_web.job_control.NoSuchTaskTypeException;
+import au.org.massive.strudel_web.job_control.TaskBatch;
+import au.org.massive.strudel_web.job_control.TaskFactory;
+import au.org.massive.strudel_web.job_control.TaskResult;
+import au.org.massive.strudel_web.job_control.UserMessage;
+import au.org.massive.strudel_web.ssh.SSHExecException;
+import au.org.massive.strudel_web.util.JsonHelper;
+
+/**
+ * Refreshes the desktop list of one user on one configuration and pushes it to every subscribed event stream, so
+ * that all of the user's tabs and sessions share one refresh loop instead of each polling /execute.
+ * <p>
+ * Streams receive these events:
+ * <ul>
+ * <li>desktops: the running desktops, in the form [{"jobid", "remainingWalltime", "running"}], sent on subscribe
+ * and whenever the list changes</li>
+ * <li>messages: the subscriber's session messages, in the form returned by /messages, sent whenever they change</li>
+ * <li>error: sent when a refresh fails after the previous one succeeded</li>
+ * </ul>
+ * While nobody is subscribed the list is not refreshed, and the loop checks back at an interval that doubles up to
+ * {@link #MAX_IDLE_DELAY_SECONDS}; it stops once it has been idle for {@link #EXPIRE_AFTER_IDLE_MILLIS}.
+ *
+ * @author jrigby
+ */
+class DesktopStatusPublisher implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger(DesktopStatusPublisher.class);
+
+    private static final int MAX_IDLE_DELAY_SECONDS = 60;
+    private static final long EXPIRE_AFTER_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long HEARTBEAT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // Guarded by itself
+    private static final Map<String, DesktopStatusPublisher> publishers = new HashMap<>();
+
+    private final String key;
+    private final String userName;
+    private final String configuration;
+    private final int intervalSeconds = Settings.getInstance().getEventsRefreshIntervalInSeconds();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    // Guarded by this
+    private ScheduledFuture<?> next;
+    private boolean refreshing = false;
+    private int delaySeconds = intervalSeconds;
+
+    // Only accessed by the refresh, which never runs concurrently with itself
+    private volatile String desktopsJson;
+    private boolean failing = false;
+    private long idleSince = 0;
+
+    private DesktopStatusPublisher(String key, String userName, String configuration) {
+        this.key = key;
+        this.userName = userName;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Subscribes an event stream to the desktop status of a session's user, starting the user's refresh loop if
+     * it is not running
+     *
+     * @param session       the session, which must have a certificate
+     * @param configuration the configuration id
+     * @param output        the event stream
+     */
+    static void subscribe(Session session, String configuration, EventOutput output) {
+        String userName = session.getCertificate().getUserName();
+        String key = userName + "|" + configuration;
+        Subscriber subscriber = new Subscriber(session, output);
+        DesktopStatusPublisher publisher;
+        synchronized (publishers) {
+            publisher = publishers.get(key);
+            if (publisher == null) {
+                publisher = new DesktopStatusPublisher(key, userName, configuration);
+                publishers.put(key, publisher);
+            }
+            publisher.subscribers.add(subscriber);
+        }
+
+        String desktops = publisher.desktopsJson;
+        if (desktops != null) {
+            subscriber.send(event("desktops", desktops));
+        }
+        publisher.wake();
+    }
+
+    /**
+     * Refreshes as soon as possible, unless a refresh is already in progress
+     */
+    private synchronized void wake() {
+        delaySeconds = intervalSeconds;
+        if (refreshing) {
+            return;
+        }
+        // If the scheduled run has already started it cannot be cancelled, but it is about to refresh anyway
+        if (next == null || next.cancel(false)) {
+            schedule(0);
+        }
+    }
+
+    private synchronized void schedule(int delay) {
+        try {
+            next = AsyncTasks.getMaintenancePool().schedule(this, delay, TimeUnit.SECONDS);
+        } catch (PoolSaturatedException e) {
+            logger.warn("Could not schedule a desktop refresh for " + userName + "; closing event streams");
+            synchronized (publishers) {
+                if (publishers.get(key) == this) {
+                    publishers.remove(key);
+                }
+            }
+            for (Subscriber subscriber : subscribers) {
+                subscriber.close();
+            }
+        }
+    }
+
+    /**
+     * Runs on the maintenance pool, and hands the refresh to the request pool since it blocks on SSH. The refresh
+     * waits for a {@link TaskBatch} on the command pool, so it must not run there itself.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (refreshing) {
+                return;
+            }
+            refreshing = true;
+            next = null;
+        }
+        try {
+            AsyncTasks.getRequestPool().submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    refresh();
+                }
+
+            });
+        } catch (PoolSaturatedException e) {
+            synchronized (this) {
+                refreshing = false;
+                delaySeconds = Math.min(delaySeconds * 2, MAX_IDLE_DELAY_SECONDS);
+                schedule(delaySeconds);
+            }
+        }
+    }
+
+    private void refresh() {
+        boolean expired = false;
+        try {
+            Session session = null;
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.isClosed()) {
+                    subscribers.remove(subscriber);
+                    subscriber.close();
+                } else if (session == null) {
+                    session = subscriber.session;
+                }
+            }
+
+            if (session == null) {
+                if (idleSince == 0) {
+                    idleSince = System.currentTimeMillis();
+                }
+                synchronized (this) {
+                    delaySeconds = Math.min(delaySeconds * 2, MAX_IDLE_DELAY_SECONDS);
+                }
+                // Nobody would see the list, so do not run remote commands for it
+                if (System.currentTimeMillis() - idleSince > EXPIRE_AFTER_IDLE_MILLIS) {
+                    expired = expire();
+                }
+                return;
+            }
+            idleSince = 0;
+
+            refreshDesktops(session);
+            for (Subscriber subscriber : subscribers) {
+                subscriber.sendMessagesIfChanged();
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error refreshing desktops for " + userName, e);
+        } finally {
+            synchronized (this) {
+                refreshing = false;
+                if (!expired) {
+                    schedule(delaySeconds);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes this publisher unless someone subscribed in the meantime
+     *
+     * @return whether the publisher was removed
+     */
+    private boolean expire() {
+        synchronized (publishers) {
+            if (!subscribers.isEmpty()) {
+                return false;
+            }
+            if (publishers.get(key) == this) {
+                publishers.remove(key);
+            }
+            return true;
+        }
+    }
+
+    private void refreshDesktops(Session session) {
+        AbstractSystemConfiguration systemConfiguration = Settings.getInstance().getSystemConfigurations().getSystemConfigurationById(configuration);
+        List<Desktop> desktops = new ArrayList<>();
+        try {
+            TaskResult<List<Map<String, String>>> listed = new TaskFactory(systemConfiguration).getInstance("listall", session)
+                    .run(Collections.singletonMap("username", userName));
+            addUserMessages(listed.getUserMessages());
+
+            List<TaskBatch.Entry> entries = new ArrayList<>(listed.getCommandResult().size());
+            for (Map<String, String> job : listed.getCommandResult()) {
+                Map<String, String> parameters = new HashMap<>();
+                parameters.put("jobid", job.get("jobid"));
+                parameters.put("jobidNumber", job.get("jobid"));
+                entries.add(new TaskBatch.Entry("running", configuration, null, parameters));
+            }
+            List<TaskBatch.Result> running = new TaskBatch(Settings.getInstance().getSystemConfigurations(), session).run(entries);
+            for (int i = 0; i < running.size(); i++) {
+                TaskBatch.Result result = running.get(i);
+                if (result.isSuccessful()) {
+                    addUserMessages(result.getUserMessages());
+                    Map<String, String> job = listed.getCommandResult().get(i);
+                    desktops.add(new Desktop(job.get("jobid"), job.get("remainingWalltime"), result.getResult().size() == 1));
+                }
+            }
+        } catch (IOException | SSHExecException | NoSuchTaskTypeException | MissingRequiredTaskParametersException e) {
+            logger.warn("Could not refresh desktops for " + userName, e);
+            if (!failing) {
+                failing = true;
+                broadcast(event("error", JsonHelper.getGson().toJson("Could not refresh desktop list!")));
+            }
+            return;
+        }
+        failing = false;
+
+        String json = JsonHelper.getGson().toJson(desktops);
+        if (!json.equals(desktopsJson)) {
+            desktopsJson = json;
+            broadcast(event("desktops", json));
+        } else {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.heartbeat();
+            }
+        }
+    }
+
+    private void addUserMessages(List<UserMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.session.addUserMessages(messages, configuration);
+            } catch (IllegalStateException e) {
+                // The session has ended
+            }
+        }
+    }
+
+    private void broadcast(OutboundEvent event) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.send(event);
+        }
+    }
+
+    private static boolean isValid(Session session) {
+        try {
+            return session != null && session.hasCertificate();
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    private static OutboundEvent event(String name, String json) {
+        return new OutboundEvent.Builder()
+                .name(name)
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(String.class, json)
+                .build();
+    }
+
+    /**
+     * An event stream and the session that opened it
+     */
+    private static class Subscriber {
+        private final Session session;
+        private final EventOutput output;
+        private String messagesJson;
+        private long lastSent = System.currentTimeMillis();
+
+        Subscriber(Session session, EventOutput output) {
+            this.session = session;
+            this.output = output;
+        }
+
+        boolean isClosed() {
+            return output.isClosed() || !isValid(session);
+        }
+
+        void sendMessagesIfChanged() {
+            String json;
+            try {
+                json = JsonHelper.getGson().toJson(session.getUserMessages((String) null));
+            } catch (IllegalStateException e) {
+                close();
+                return;
+            }
+            if (!json.equals(messagesJson)) {
+                messagesJson = json;
+                send(event("messages", json));
+            }
+        }
+
+        /**
+         * Writes a comment if nothing has been sent for a while, so that a disconnected client is noticed
+         */
+        void heartbeat() {
+            if (System.currentTimeMillis() - lastSent > HEARTBEAT_MILLIS) {
+                send(new OutboundEvent.Builder().comment("keep-alive").build());
+            }
+        }
+
+        synchronized void send(OutboundEvent event) {
+            if (output.isClosed()) {
+                return;
+            }
+            try {
+                output.write(event);
+                lastSent = System.currentTimeMillis();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                // Already disconnected
+            }
+        }
+    }
+
+    /**
+     * A desktop in the "desktops" event
+     */
+    private static class Desktop {
+        private final String jobid;
+        private final String remainingWalltime;
+        private final boolean running;
+
+        Desktop(String jobid, String remainingWalltime, boolean running) {
+            this.jobid = jobid;
+            this.remainingWalltime = remainingWalltime;
+            this.running = running;
+        }
+    }
+}
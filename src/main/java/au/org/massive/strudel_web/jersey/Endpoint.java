@@ -4,6 +4,8 @@ import java.io.IOException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
 
 import au.org.massive.strudel_web.Session;
 
@@ -30,4 +32,18 @@ public abstract class Endpoint {
         }
         return null;
     }
+
+    protected Session getSessionWithCertificateOrResume(HttpServletRequest request, AsyncResponse asyncResponse) {
+        Session session = getSession(request);
+        if (session != null) {
+            if (!session.hasCertificate()) {
+                asyncResponse.resume(SuspendedRequest.error(Response.Status.FORBIDDEN, "Session requires a valid SSH certificate. Access the /api/register_key endpoint first."));
+                return null;
+            } else {
+                return session;
+            }
+        }
+        asyncResponse.resume(Response.status(Response.Status.FORBIDDEN).build());
+        return null;
+    }
 }
@@ -1,5 +1,6 @@
 package au.org.massive.strudel_web.jersey;
 
+import au.org.massive.strudel_web.util.JsonHelper;
 import com.google.gson.Gson;
 import org.apache.commons.codec.binary.Base64;
 
@@ -15,7 +16,7 @@ public class FeedbackDebugData {
     String url, html, img, note;
 
     public static FeedbackDebugData fromJson(String json) {
-        return new Gson().fromJson(json, FeedbackDebugData.class);
+        return JsonHelper.getGson().fromJson(json, FeedbackDebugData.class);
     }
 
     public byte[] getImage() {
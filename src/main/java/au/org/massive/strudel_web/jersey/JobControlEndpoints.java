@@ -6,14 +6,19 @@ import au.org.massive.strudel_web.Session;
 import au.org.massive.strudel_web.job_control.*;
 import au.org.massive.strudel_web.job_control.TaskFactory.Task;
 import au.org.massive.strudel_web.ssh.SSHExecException;
+import au.org.massive.strudel_web.util.JsonHelper;
 import au.org.massive.strudel_web.vnc.GuacamoleSession;
 import au.org.massive.strudel_web.vnc.GuacamoleSessionManager;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.lang3.text.StrSubstitutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.oltu.oauth2.common.exception.OAuthProblemException;
 import org.apache.oltu.oauth2.common.exception.OAuthSystemException;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
@@ -26,10 +31,20 @@ import javax.mail.util.ByteArrayDataSource;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +61,9 @@ public class JobControlEndpoints extends Endpoint {
 
     private static final Logger logger = LogManager.getLogger(JobControlEndpoints.class);
 
+    static final String RESULT_VERSION_HEADER = "X-Result-Version";
+    static final String RESULT_SINCE_HEADER = "X-Result-Since";
+
     /**
      * Gets (and creates, if necessary) a session and returns the id and whether the session
      * currently has a certificate associated with it.
@@ -57,7 +75,7 @@ public class JobControlEndpoints extends Endpoint {
     @Path("session_info")
     @Produces(MediaType.APPLICATION_JSON)
     public String getSessionInfo(@Context HttpServletRequest request) {
-        Gson gson = new Gson();
+        Gson gson = JsonHelper.getGson();
         Map<String, String> response = new HashMap<>();
         String sessionId = request.getSession(true).getId();
         Session session;
@@ -90,42 +108,45 @@ public class JobControlEndpoints extends Endpoint {
     }
 
     /**
-     * Gets a key pair and get the public key signed
+     * Gets a key pair and get the public key signed. The request is suspended while the signing server is contacted.
      *
-     * @param request  the {@link HttpServletRequest} object injected from the {@link Context}
-     * @param response the {@link HttpServletResponse} object injected from the {@link Context}
-     * @return a status message
-     * @throws IOException thrown on network IO errors
+     * @param request       the {@link HttpServletRequest} object injected from the {@link Context}
+     * @param asyncResponse the suspended response, resumed with a status message
      */
     @GET
     @Path("register_key")
     @Produces(MediaType.APPLICATION_JSON)
-    public String registerKey(@Context HttpServletRequest request, @Context HttpServletResponse response) throws IOException {
-        Session session = getSession(request);
+    public void registerKey(@Context HttpServletRequest request, @Suspended AsyncResponse asyncResponse) {
+        final Session session = getSession(request);
 
         if (!session.hasOAuthAccessToken()) {
-            response.sendError(HttpServletResponse.SC_FORBIDDEN, "No access token for the SSH AuthZ server in session");
-            return null;
-        } else {
-            try {
-                session.setCertificate(KeyService.registerKey(session.getOAuthAccessToken(), session.getSSHCertSigningBackend()));
-                Logging.accessLogger.info("User session started for " + getUserString(session));
-            } catch (OAuthSystemException e) {
-                e.printStackTrace();
-                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                return null;
-            } catch (OAuthProblemException | UnauthorizedException e) {
-                session.clearOAuthAccessToken();
-                response.sendError(HttpServletResponse.SC_FORBIDDEN, "The user did not authorise this request during the OAuth2 flow, or authorization has expired.");
-                return null;
-            }
+            asyncResponse.resume(SuspendedRequest.error(Response.Status.FORBIDDEN, "No access token for the SSH AuthZ server in session"));
+            return;
         }
 
-        Gson gson = new Gson();
-        Map<String, String> responseMessage = new HashMap<>();
-        responseMessage.put("status", "OK");
-        responseMessage.put("message", "Key pair generated and public key signed successfully");
-        return gson.toJson(responseMessage);
+        SuspendedRequest.submit(asyncResponse, new SuspendedRequest.Work() {
+
+            @Override
+            public Response run(ExecuteWatchdog watchdog) {
+                try {
+                    session.setCertificate(KeyService.registerKey(session.getOAuthAccessToken(), session.getSSHCertSigningBackend()));
+                    Logging.accessLogger.info("User session started for " + getUserString(session));
+                } catch (OAuthSystemException e) {
+                    e.printStackTrace();
+                    return Response.serverError().build();
+                } catch (OAuthProblemException | UnauthorizedException e) {
+                    session.clearOAuthAccessToken();
+                    return SuspendedRequest.error(Response.Status.FORBIDDEN, "The user did not authorise this request during the OAuth2 flow, or authorization has expired.");
+                }
+
+                Gson gson = JsonHelper.getGson();
+                Map<String, String> responseMessage = new HashMap<>();
+                responseMessage.put("status", "OK");
+                responseMessage.put("message", "Key pair generated and public key signed successfully");
+                return Response.ok(gson.toJson(responseMessage)).build();
+            }
+
+        });
     }
 
     private String getUserString(Session session) {
@@ -144,7 +165,7 @@ public class JobControlEndpoints extends Endpoint {
     @Path("end_session")
     @Produces(MediaType.APPLICATION_JSON)
     public String invalidateSession(@Context HttpServletRequest request, @Context HttpServletResponse response) throws IOException {
-        Gson gson = new Gson();
+        Gson gson = JsonHelper.getGson();
 
         Session session = getSession(request);
         SessionManager.endSession(session);
@@ -158,36 +179,30 @@ public class JobControlEndpoints extends Endpoint {
     /**
      * Runs preconfigured commands on the remote HPC system. These commands are defined as part of a {@link TaskConfiguration} object.
      *
-     * @param task     the name of the task to run
-     * @param request  the {@link HttpServletRequest} object injected from the {@link Context}
-     * @param response the {@link HttpServletResponse} object injected from the {@link Context}
-     * @return the result of the command
-     * @throws IOException      thrown on network IO errors
-     * @throws SSHExecException thrown if there are any issues executing the task via SSH
+     * @param task          the name of the task to run
+     * @param request       the {@link HttpServletRequest} object injected from the {@link Context}
+     * @param asyncResponse the suspended response, resumed with the result of the command
      */
     @GET
     @Path("/execute/{task}/")
     @Produces(MediaType.APPLICATION_JSON)
-    public String executeJob0(@PathParam("task") String task, @Context HttpServletRequest request, @Context HttpServletResponse response) throws IOException, SSHExecException {
-        return executeJob(null, task, null, request, response, 0);
+    public void executeJob0(@PathParam("task") String task, @Context HttpServletRequest request, @Suspended AsyncResponse asyncResponse) {
+        executeJob(null, task, null, request, 0, asyncResponse);
     }
 
     /**
      * Runs preconfigured commands on the remote HPC system. These commands are defined as part of a {@link TaskConfiguration} object.
      *
-     * @param host     the name of the host on which to run the task
-     * @param task     the name of the task to run
-     * @param request  the {@link HttpServletRequest} object injected from the {@link Context}
-     * @param response the {@link HttpServletResponse} object injected from the {@link Context}
-     * @return the result of the command
-     * @throws IOException      thrown on network IO errors
-     * @throws SSHExecException thrown if there are any issues executing the task via SSH
+     * @param host          the name of the host on which to run the task
+     * @param task          the name of the task to run
+     * @param request       the {@link HttpServletRequest} object injected from the {@link Context}
+     * @param asyncResponse the suspended response, resumed with the result of the command
      */
     @GET
     @Path("/execute/{task}/on/{host}/")
     @Produces(MediaType.APPLICATION_JSON)
-    public String executeJob1(@PathParam("host") String host, @PathParam("task") String task, @Context HttpServletRequest request, @Context HttpServletResponse response) throws IOException, SSHExecException {
-        return executeJob(host, task, null, request, response, 0);
+    public void executeJob1(@PathParam("host") String host, @PathParam("task") String task, @Context HttpServletRequest request, @Suspended AsyncResponse asyncResponse) {
+        executeJob(host, task, null, request, 0, asyncResponse);
     }
 
     /**
@@ -196,94 +211,257 @@ public class JobControlEndpoints extends Endpoint {
      * @param configuration the name of the configuration from which the task should be run
      * @param task          the name of the task to run
      * @param request       the {@link HttpServletRequest} object injected from the {@link Context}
-     * @param response      the {@link HttpServletResponse} object injected from the {@link Context}
-     * @return the result of the command
-     * @throws IOException      thrown on network IO errors
-     * @throws SSHExecException thrown if there are any issues executing the task via SSH
+     * @param asyncResponse the suspended response, resumed with the result of the command
      */
     @GET
     @Path("/execute/{task}/in/{configuration}/")
     @Produces(MediaType.APPLICATION_JSON)
-    public String executeJob2(@PathParam("task") String task, @PathParam("configuration") String configuration, @Context HttpServletRequest request, @Context HttpServletResponse response) throws IOException, SSHExecException {
-        return executeJob(null, task, configuration, request, response, 0);
+    public void executeJob2(@PathParam("task") String task, @PathParam("configuration") String configuration, @Context HttpServletRequest request, @Suspended AsyncResponse asyncResponse) {
+        executeJob(null, task, configuration, request, 0, asyncResponse);
     }
 
     /**
      * Runs preconfigured commands on the remote HPC system. These commands are defined as part of a {@link TaskConfiguration} object.
+     * <p>
+     * For tasks with an identity group, such as "listall", the response has an {@value #RESULT_VERSION_HEADER}
+     * header. A client that passes that version back in an {@value #RESULT_SINCE_HEADER} header receives 304 if the
+     * result has not
+     * changed, or a JSON object of the form {"version", "added", "changed", "removed"} holding only the rows that
+     * changed, where "removed" lists identities. If the server no longer holds the client's version, the full result
+     * is returned as usual.
      *
      * @param host          the name of the host on which to run the task
      * @param configuration the name of the configuration from which the task should be run
      * @param task          the name of the task to run
      * @param request       the {@link HttpServletRequest} object injected from the {@link Context}
-     * @param response      the {@link HttpServletResponse} object injected from the {@link Context}
-     * @return the result of the command
-     * @throws IOException      thrown on network IO errors
-     * @throws SSHExecException thrown if there are any issues executing the task via SSH
+     * @param asyncResponse the suspended response, resumed with the result of the command
      */
     @GET
     @Path("/execute/{task}/in/{configuration}/on/{host}/")
     @Produces(MediaType.APPLICATION_JSON)
-    public String executeJob(@PathParam("host") String host,
-                             @PathParam("task") String task,
-                             @PathParam("configuration") String configuration,
-                             @Context HttpServletRequest request,
-                             @Context HttpServletResponse response,
-                             @DefaultValue("0") @QueryParam("retries") Integer retries) throws IOException, SSHExecException {
-        Session session = getSessionWithCertificateOrSendError(request, response);
+    public void executeJob(@PathParam("host") final String host,
+                           @PathParam("task") final String task,
+                           @PathParam("configuration") final String configuration,
+                           @Context HttpServletRequest request,
+                           @DefaultValue("0") @QueryParam("retries") final Integer retries,
+                           @Suspended AsyncResponse asyncResponse) {
+        final Session session = getSessionWithCertificateOrResume(request, asyncResponse);
         if (session == null) {
-            return null;
+            return;
+        }
+
+        // Request parameters are read before the request is suspended
+        final Map<String, String> parameters = new HashMap<>();
+        for (String key : request.getParameterMap().keySet()) {
+            String value = request.getParameterMap().get(key)[0]; // Only one value is accepted
+            parameters.put(key, value);
         }
+        final String since = request.getHeader(RESULT_SINCE_HEADER);
 
+        SuspendedRequest.submit(asyncResponse, new SuspendedRequest.Work() {
+
+            @Override
+            public Response run(ExecuteWatchdog watchdog) throws IOException, SSHExecException {
+                return executeTask(host, task, configuration, parameters, since, session, retries, watchdog);
+            }
+
+        });
+    }
+
+    /**
+     * Runs a preconfigured task on behalf of {@link #executeJob(String, String, String, HttpServletRequest, Integer, AsyncResponse)}
+     *
+     * @param host          the name of the host on which to run the task, or null for the task's default host
+     * @param task          the name of the task to run
+     * @param configuration the name of the configuration from which the task should be run
+     * @param parameters    the task parameters
+     * @param since         the result version the client holds, or null
+     * @param session       the current session
+     * @param retries       the number of times the task has been retried
+     * @param watchdog      can be used to kill the remote command
+     * @return the response
+     * @throws IOException      thrown on network IO errors
+     * @throws SSHExecException thrown if there are any issues executing the task via SSH
+     */
+    private Response executeTask(String host, String task, String configuration, Map<String, String> parameters, String since, Session session, int retries, ExecuteWatchdog watchdog) throws IOException, SSHExecException {
         ConfigurationRegistry systemConfigurations = settings.getSystemConfigurations();
         AbstractSystemConfiguration systemConfiguration = (configuration == null) ? systemConfigurations.getDefaultSystemConfiguration() : systemConfigurations.getSystemConfigurationById(configuration);
         if (systemConfiguration == null) {
-            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid configuration name");
-            return null;
+            return SuspendedRequest.error(Response.Status.BAD_REQUEST, "Invalid configuration name");
         }
 
         Task remoteTask;
         try {
             if (host == null) {
                 if (systemConfiguration.findByTaskType(task).getRemoteHost().isEmpty()) {
-                    response.sendError(HttpServletResponse.SC_BAD_REQUEST, "This task requires a target host to be explicitly specified, e.g. /execute/" + task + "/in/" + configuration + "/on/127.0.0.1/");
-                    return null;
+                    return SuspendedRequest.error(Response.Status.BAD_REQUEST, "This task requires a target host to be explicitly specified, e.g. /execute/" + task + "/in/" + configuration + "/on/127.0.0.1/");
                 }
                 remoteTask = new TaskFactory(systemConfiguration).getInstance(task, session);
             } else {
                 remoteTask = new TaskFactory(systemConfiguration).getInstance(task, session, host);
             }
 
-            Map<String, String> parameters = new HashMap<>();
-            for (String key : request.getParameterMap().keySet()) {
-                String value = request.getParameterMap().get(key)[0]; // Only one value is accepted
-                parameters.put(key, value);
-            }
-
             try {
-                TaskResult<List<Map<String, String>>> result = remoteTask.run(parameters);
+                TaskResult<List<Map<String, String>>> result = remoteTask.run(parameters, watchdog);
                 Logging.accessLogger.info("Ran task \"" + task + "\" on \"" + host + "\" from configuration \"" + configuration + "\" for " + getUserString(session));
                 if (!result.getUserMessages().isEmpty()) {
                     session.addUserMessages(result.getUserMessages(), configuration);
                 }
-                return result.getCommandResultAsJson();
+                TaskResultHistory.Comparison comparison = remoteTask.compareWithVersion(parameters, since, result);
+                if (comparison == null) {
+                    return Response.ok(streamCommandResult(result)).build();
+                } else if (comparison.isNotModified()) {
+                    return Response.notModified().header(RESULT_VERSION_HEADER, comparison.getVersion()).build();
+                } else if (comparison.getDelta() != null) {
+                    return Response.ok(JsonHelper.getGson().toJson(comparison.getDelta()))
+                            .header(RESULT_VERSION_HEADER, comparison.getVersion()).build();
+                }
+                return Response.ok(streamCommandResult(result)).header(RESULT_VERSION_HEADER, comparison.getVersion()).build();
             } catch (MissingRequiredTaskParametersException e) {
-                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
-                return null;
+                return SuspendedRequest.error(Response.Status.BAD_REQUEST, e.getMessage());
             } catch (SSHExecException e1) {
                 // If this request fails, try using the default remote host
                 if (retries < 1 && !systemConfiguration.findByTaskType(task).getRemoteHost().isEmpty()) {
-                    return executeJob(null, task, configuration, request, response, 1);
+                    return executeTask(null, task, configuration, parameters, since, session, 1, watchdog);
                 } else {
                     throw e1;
                 }
             }
         } catch (NoSuchTaskTypeException e) {
-            response.sendError(HttpServletResponse.SC_NOT_FOUND);
-            return null;
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+
+    }
+
+    /**
+     * Waits for a newly started job to run. The request is held open until the "running" task reports the job, or
+     * until the timeout passes, and is answered with {"jobid", "running"}. Requests for the same job share one
+     * check, which backs off between attempts; see {@link RunningWaiter}.
+     *
+     * @param configuration the name of the configuration the job was started from
+     * @param jobId         the job id
+     * @param timeout       how long to wait in seconds, up to the server's limit
+     * @param request       the {@link HttpServletRequest} object injected from the {@link Context}
+     * @param asyncResponse the suspended response, resumed when the job runs or the timeout passes
+     */
+    @GET
+    @Path("/execute/running/wait")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void waitUntilRunning(@QueryParam("configuration") String configuration,
+                                 @QueryParam("jobid") String jobId,
+                                 @QueryParam("timeout") Integer timeout,
+                                 @Context HttpServletRequest request,
+                                 @Suspended AsyncResponse asyncResponse) {
+        Session session = getSessionWithCertificateOrResume(request, asyncResponse);
+        if (session == null) {
+            return;
+        }
+        ConfigurationRegistry systemConfigurations = settings.getSystemConfigurations();
+        AbstractSystemConfiguration systemConfiguration = (configuration == null) ? systemConfigurations.getDefaultSystemConfiguration() : systemConfigurations.getSystemConfigurationById(configuration);
+        if (systemConfiguration == null) {
+            asyncResponse.resume(SuspendedRequest.error(Response.Status.BAD_REQUEST, "Invalid configuration name"));
+            return;
+        }
+        if (jobId == null) {
+            asyncResponse.resume(SuspendedRequest.error(Response.Status.BAD_REQUEST, "A jobid is required"));
+            return;
+        }
+
+        // The remaining parameters are passed to the "running" task
+        Map<String, String> parameters = new HashMap<>();
+        for (String key : request.getParameterMap().keySet()) {
+            parameters.put(key, request.getParameterMap().get(key)[0]);
+        }
+        parameters.remove("configuration");
+        parameters.remove("timeout");
+        if (!parameters.containsKey("jobidNumber")) {
+            parameters.put("jobidNumber", jobId);
+        }
+
+        int maxTimeout = settings.getRunningWaitTimeoutInSeconds();
+        int timeoutSeconds = (timeout == null || timeout <= 0) ? maxTimeout : Math.min(timeout, maxTimeout);
+        RunningWaiter.await(session, systemConfiguration, configuration, parameters, timeoutSeconds, asyncResponse);
+    }
+
+    /**
+     * Runs several preconfigured tasks in one request. Tasks are grouped by target host and each group is run in a
+     * single SSH invocation. The request body is a JSON array of objects with the fields "task", "configuration"
+     * (optional), "host" (optional) and "parameters" (optional). The response is a JSON array with one object per
+     * task, in the same order, holding either a "result" or an "error".
+     *
+     * @param body          the tasks to run
+     * @param request       the {@link HttpServletRequest} object injected from the {@link Context}
+     * @param asyncResponse the suspended response, resumed with the results of the tasks
+     */
+    @POST
+    @Path("/execute/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void executeBatch(String body, @Context HttpServletRequest request, @Suspended AsyncResponse asyncResponse) {
+        final Session session = getSessionWithCertificateOrResume(request, asyncResponse);
+        if (session == null) {
+            return;
         }
 
+        final TaskBatch.Entry[] entries;
+        try {
+            entries = JsonHelper.getGson().fromJson(body, TaskBatch.Entry[].class);
+        } catch (JsonParseException e) {
+            asyncResponse.resume(SuspendedRequest.error(Response.Status.BAD_REQUEST, "Invalid batch request"));
+            return;
+        }
+        if (entries == null) {
+            asyncResponse.resume(SuspendedRequest.error(Response.Status.BAD_REQUEST, "Invalid batch request"));
+            return;
+        }
+
+        SuspendedRequest.submit(asyncResponse, new SuspendedRequest.Work() {
+
+            @Override
+            public Response run(ExecuteWatchdog watchdog) {
+                final List<TaskBatch.Result> results = new TaskBatch(settings.getSystemConfigurations(), session).run(Arrays.asList(entries));
+                for (TaskBatch.Result result : results) {
+                    if (result.isSuccessful()) {
+                        Logging.accessLogger.info("Ran task \"" + result.getTask() + "\" on \"" + result.getHost() + "\" from configuration \"" + result.getConfiguration() + "\" for " + getUserString(session) + " (batch)");
+                        if (!result.getUserMessages().isEmpty()) {
+                            session.addUserMessages(result.getUserMessages(), result.getConfiguration());
+                        }
+                    }
+                }
+
+                return Response.ok(new StreamingOutput() {
+
+                    @Override
+                    public void write(OutputStream output) throws IOException {
+                        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                        JsonHelper.getGson().toJson(results, writer);
+                        writer.flush();
+                    }
+
+                }).build();
+            }
+
+        });
     }
 
+    /**
+     * Writes a task result straight to the response, so the JSON document is never held in memory as a whole
+     *
+     * @param result the task result
+     * @return the response entity
+     */
+    private static StreamingOutput streamCommandResult(final TaskResult<?> result) {
+        return new StreamingOutput() {
+
+            @Override
+            public void write(OutputStream output) throws IOException {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                result.writeCommandResultAsJson(writer);
+                writer.flush();
+            }
+
+        };
+    }
 
     /**
      * Starts a VNC tunnel for use with a Guacamole server
@@ -295,45 +473,143 @@ public class JobControlEndpoints extends Endpoint {
      * @param viaGateway        a gateway through which the tunnel is created (optional, can be inferred if configurationName provided)
      * @param configurationName the name of the configuration used for this tunnel (optional, recommended)
      * @param request           the {@link HttpServletRequest} object injected from the {@link Context}
-     * @param response          the {@link HttpServletResponse} object injected from the {@link Context}
-     * @return a vnc session id and desktop name
-     * @throws IOException thrown on network IO errors
+     * @param asyncResponse     the suspended response, resumed with a vnc session id and desktop name
      */
     @GET
     @Path("/startvnctunnel")
     @Produces(MediaType.APPLICATION_JSON)
-    public String startVncTunnel(
-            @QueryParam("desktopname") String desktopName,
-            @QueryParam("vncpassword") String vncPassword,
+    public void startVncTunnel(
+            @QueryParam("desktopname") final String desktopName,
+            @QueryParam("vncpassword") final String vncPassword,
             @QueryParam("remotehost") String remoteHost,
             @QueryParam("display") int display,
             @QueryParam("via_gateway") String viaGateway,
             @QueryParam("configuration") String configurationName,
-            @Context HttpServletRequest request, @Context HttpServletResponse response) throws IOException {
-        Session session = getSessionWithCertificateOrSendError(request, response);
+            @Context HttpServletRequest request, @Suspended AsyncResponse asyncResponse) {
+        final Session session = getSessionWithCertificateOrResume(request, asyncResponse);
         if (session == null) {
-            return null;
+            return;
         }
-        int remotePort = display + 5900;
-
-        // This code uses the configuration, if provided, to determine whether the tunnel should use
-        // the login host as a gateway, or whether the tunnel is direct to the target.
+        final int remotePort = display + 5900;
         AbstractSystemConfiguration systemConfiguration = settings.getSystemConfigurations().getSystemConfigurationById(configurationName);
+        final String[] tunnelEnds = getTunnelEnds(systemConfiguration, viaGateway, remoteHost);
+
+        SuspendedRequest.submit(asyncResponse, new SuspendedRequest.Work() {
+
+            @Override
+            public Response run(ExecuteWatchdog watchdog) {
+                GuacamoleSession guacSession = GuacamoleSessionManager.startSession(desktopName, vncPassword, tunnelEnds[0], tunnelEnds[1], remotePort, session);
+
+                Gson gson = JsonHelper.getGson();
+                Map<String, Object> responseData = new HashMap<>();
+                responseData.put("id", guacSession.getId());
+                responseData.put("desktopName", desktopName);
+                responseData.put("localPort", guacSession.getLocalPort());
+                return Response.ok(gson.toJson(responseData)).build();
+            }
+
+        });
+    }
+
+    /**
+     * Uses the configuration, if provided, to determine whether a tunnel should use the login host as a gateway,
+     * or whether the tunnel is direct to the target.
+     *
+     * @param systemConfiguration the configuration of the desktop, or null
+     * @param viaGateway          the requested gateway, or null
+     * @param remoteHost          the host on which the vnc server is running
+     * @return the gateway and the target of the tunnel
+     */
+    private static String[] getTunnelEnds(AbstractSystemConfiguration systemConfiguration, String viaGateway, String remoteHost) {
         if (viaGateway == null && (systemConfiguration == null || !systemConfiguration.isTunnelTerminatedOnLoginHost())) {
             viaGateway = remoteHost;
             remoteHost = "localhost";
         } else if (viaGateway == null) {
             viaGateway = systemConfiguration.getLoginHost();
         }
+        return new String[]{viaGateway, remoteHost};
+    }
 
-        GuacamoleSession guacSession = GuacamoleSessionManager.startSession(desktopName, vncPassword, viaGateway, remoteHost, remotePort, session);
+    /**
+     * Connects to a desktop in one request. The configuration's "connect" workflow runs on the server to find the
+     * desktop's execution host, display and a one-time password, running independent steps in parallel, and a VNC
+     * tunnel is then started. The workflow must produce "execHost", "vncDisplay" and "vncPasswd".
+     *
+     * @param configuration the name of the configuration of the desktop
+     * @param jobId         the job id of the desktop
+     * @param desktopName   the name to assign to the desktop (optional)
+     * @param request       the {@link HttpServletRequest} object injected from the {@link Context}
+     * @param asyncResponse the suspended response, resumed with the vnc session id, desktop name, local port and
+     *                      password
+     */
+    @POST
+    @Path("/connect/{configuration}/{jobid}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void connect(@PathParam("configuration") final String configuration,
+                        @PathParam("jobid") final String jobId,
+                        @QueryParam("desktopname") String desktopName,
+                        @Context HttpServletRequest request, @Suspended AsyncResponse asyncResponse) {
+        final Session session = getSessionWithCertificateOrResume(request, asyncResponse);
+        if (session == null) {
+            return;
+        }
+        final AbstractSystemConfiguration systemConfiguration = settings.getSystemConfigurations().getSystemConfigurationById(configuration);
+        if (systemConfiguration == null) {
+            asyncResponse.resume(SuspendedRequest.error(Response.Status.BAD_REQUEST, "Invalid configuration name"));
+            return;
+        }
+        final TaskWorkflow workflow = systemConfiguration.getWorkflow("connect");
+        if (workflow == null) {
+            asyncResponse.resume(SuspendedRequest.error(Response.Status.NOT_FOUND, "This configuration does not support connecting in one request"));
+            return;
+        }
+        final String name = desktopName == null ? "desktop" + System.currentTimeMillis() : desktopName;
 
-        Gson gson = new Gson();
-        Map<String, Object> responseData = new HashMap<>();
-        responseData.put("id", guacSession.getId());
-        responseData.put("desktopName", desktopName);
-        responseData.put("localPort", guacSession.getLocalPort());
-        return gson.toJson(responseData);
+        SuspendedRequest.submit(asyncResponse, new SuspendedRequest.Work() {
+
+            @Override
+            public Response run(ExecuteWatchdog watchdog) throws IOException, SSHExecException {
+                Map<String, String> parameters = new HashMap<>();
+                parameters.put("jobid", jobId);
+                parameters.put("jobidNumber", jobId);
+
+                TaskResult<Map<String, String>> result;
+                try {
+                    result = workflow.run(systemConfiguration, session, parameters);
+                } catch (NoSuchTaskTypeException | MissingRequiredTaskParametersException | TaskWorkflowException e) {
+                    return SuspendedRequest.error(Response.Status.BAD_GATEWAY, "Could not connect to the desktop: " + e.getMessage());
+                }
+                if (!result.getUserMessages().isEmpty()) {
+                    session.addUserMessages(result.getUserMessages(), configuration);
+                }
+
+                Map<String, String> values = result.getCommandResult();
+                String host = values.get("execHost");
+                String display = values.get("vncDisplay");
+                String password = values.get("vncPasswd");
+                if (host == null || display == null || password == null) {
+                    return SuspendedRequest.error(Response.Status.BAD_GATEWAY, "Could not connect to the desktop: the connect workflow did not find its host, display and password");
+                }
+                int remotePort;
+                try {
+                    remotePort = Integer.parseInt(display.replace(":", "").trim()) + 5900;
+                } catch (NumberFormatException e) {
+                    return SuspendedRequest.error(Response.Status.BAD_GATEWAY, "Could not connect to the desktop: invalid display " + display);
+                }
+                Logging.accessLogger.info("Ran connect workflow for job \"" + jobId + "\" from configuration \"" + configuration + "\" for " + getUserString(session));
+
+                String[] tunnelEnds = getTunnelEnds(systemConfiguration, null, host);
+                GuacamoleSession guacSession = GuacamoleSessionManager.startSession(name, password, tunnelEnds[0], tunnelEnds[1], remotePort, session);
+
+                Map<String, Object> responseData = new HashMap<>();
+                responseData.put("id", guacSession.getId());
+                responseData.put("desktopName", name);
+                responseData.put("localPort", guacSession.getLocalPort());
+                responseData.put("password", password);
+                return Response.ok(JsonHelper.getGson().toJson(responseData)).build();
+            }
+
+        });
     }
 
     /**
@@ -364,7 +640,7 @@ public class JobControlEndpoints extends Endpoint {
             }
         }
 
-        Gson gson = new Gson();
+        Gson gson = JsonHelper.getGson();
         Map<String, String> responseData = new HashMap<>();
         if (guacSession == null) {
             response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No active session found by supplied ID");
@@ -404,7 +680,7 @@ public class JobControlEndpoints extends Endpoint {
             tunnel.put("localPort", s.getLocalPort());
         }
 
-        Gson gson = new Gson();
+        Gson gson = JsonHelper.getGson();
         return gson.toJson(tunnels);
     }
 
@@ -429,7 +705,7 @@ public class JobControlEndpoints extends Endpoint {
     @Path("/messages/")
     @Produces("application/json")
     public String systemMessages(@Context HttpServletRequest request, @Context HttpServletResponse response, @DefaultValue("") @QueryParam("tag") String tag, @QueryParam("type") String type) throws IOException {
-        Gson gson = new Gson();
+        Gson gson = JsonHelper.getGson();
         if (tag == null || tag.isEmpty()) {
             return gson.toJson(getSession(request).getUserMessages(type));
         } else {
@@ -437,6 +713,31 @@ public class JobControlEndpoints extends Endpoint {
         }
     }
 
+    /**
+     * Opens a stream of server-sent events carrying the user's desktop list and messages for a configuration.
+     * The desktop list is refreshed by one loop per user that is shared by all of the user's streams, and only
+     * changes are sent. See {@link DesktopStatusPublisher} for the events.
+     *
+     * @param configuration the configuration id
+     * @param request       the {@link HttpServletRequest} object injected from the {@link Context}
+     * @return the event stream
+     */
+    @GET
+    @Path("/events")
+    @Produces(SseFeature.SERVER_SENT_EVENTS)
+    public EventOutput events(@QueryParam("configuration") String configuration, @Context HttpServletRequest request) {
+        Session session = getSession(request);
+        if (!session.hasCertificate()) {
+            throw new WebApplicationException(SuspendedRequest.error(Response.Status.FORBIDDEN, "Session requires a valid SSH certificate. Access the /api/register_key endpoint first."));
+        }
+        if (configuration == null || settings.getSystemConfigurations().getSystemConfigurationById(configuration) == null) {
+            throw new WebApplicationException(SuspendedRequest.error(Response.Status.BAD_REQUEST, "Invalid configuration name"));
+        }
+        EventOutput output = new EventOutput();
+        DesktopStatusPublisher.subscribe(session, configuration, output);
+        return output;
+    }
+
     @POST
     @Path("/feedback/")
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
@@ -0,0 +1,31 @@
+package au.org.massive.strudel_web.jersey;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+import au.org.massive.strudel_web.PoolSaturatedException;
+
+/**
+ * Responds with 503 and a Retry-After header when a thread pool cannot accept more work
+ *
+ * @author jrigby
+ */
+@Provider
+public class PoolSaturatedExceptionMapper implements ExceptionMapper<PoolSaturatedException> {
+
+    @Override
+    public Response toResponse(PoolSaturatedException e) {
+        return toServiceUnavailable(e);
+    }
+
+    static Response toServiceUnavailable(PoolSaturatedException e) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, e.getRetryAfterSeconds())
+                .type(MediaType.TEXT_PLAIN_TYPE)
+                .entity("The server is busy, please try again shortly")
+                .build();
+    }
+}
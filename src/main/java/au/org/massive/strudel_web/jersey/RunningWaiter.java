@@ -0,0 +1,228 @@
+package au.org.massive.strudel_web.jersey;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.org.massive.strudel_web.AsyncTasks;
+import au.org.massive.strudel_web.PoolSaturatedException;
+import au.org.massive.strudel_web.Session;
+import au.org.massive.strudel_web.job_control.AbstractSystemConfiguration;
+import au.org.massive.strudel_web.job_control.MissingRequiredTaskParametersException;
+import au.org.massive.strudel_web.job_control.NoSuchTaskTypeException;
+import au.org.massive.strudel_web.job_control.TaskFactory;
+import au.org.massive.strudel_web.job_control.TaskResult;
+import au.org.massive.strudel_web.ssh.SSHExecException;
+import au.org.massive.strudel_web.util.JsonHelper;
+
+/**
+ * Holds suspended requests waiting for a job to start running, and checks the job with the "running" task until it
+ * is running. Requests for the same user, configuration and job share one check, and no thread is held between
+ * checks.
+ * <p>
+ * Checks back off exponentially from {@link #INITIAL_DELAY_SECONDS} to {@link #MAX_DELAY_SECONDS}, with random
+ * jitter so that many waiters started together do not check in step. Each request is resumed with
+ * {"jobid", "running": true} as soon as the job runs, or with "running": false when its own deadline passes.
+ *
+ * @author jrigby
+ */
+class RunningWaiter implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger(RunningWaiter.class);
+
+    private static final int INITIAL_DELAY_SECONDS = 2;
+    private static final int MAX_DELAY_SECONDS = 60;
+
+    private static final Random random = new Random();
+
+    // Guarded by itself
+    private static final Map<String, RunningWaiter> waiters = new HashMap<>();
+
+    private final String key;
+    private final AbstractSystemConfiguration configuration;
+    private final String configurationName;
+    private final String jobId;
+    private final Map<String, String> parameters;
+    private final List<Waiter> requests = new CopyOnWriteArrayList<>();
+    private int attempts = 0;
+
+    private RunningWaiter(String key, AbstractSystemConfiguration configuration, String configurationName, String jobId, Map<String, String> parameters) {
+        this.key = key;
+        this.configuration = configuration;
+        this.configurationName = configurationName;
+        this.jobId = jobId;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Suspends a request until a job is running
+     *
+     * @param session           the session, which must have a certificate
+     * @param configuration     the configuration of the job
+     * @param configurationName the configuration id
+     * @param parameters        the parameters of the "running" task, including "jobid"
+     * @param timeoutSeconds    how long the request may wait
+     * @param asyncResponse     the suspended request
+     */
+    static void await(Session session, AbstractSystemConfiguration configuration, String configurationName,
+                      Map<String, String> parameters, int timeoutSeconds, AsyncResponse asyncResponse) {
+        final String jobId = parameters.get("jobid");
+        asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+
+            @Override
+            public void handleTimeout(AsyncResponse asyncResponse) {
+                asyncResponse.resume(status(jobId, false));
+            }
+
+        });
+        asyncResponse.setTimeout(timeoutSeconds, TimeUnit.SECONDS);
+
+        String key = session.getCertificate().getUserName() + "|" + configurationName + "|" + jobId;
+        RunningWaiter waiter;
+        boolean created = false;
+        synchronized (waiters) {
+            waiter = waiters.get(key);
+            if (waiter == null) {
+                waiter = new RunningWaiter(key, configuration, configurationName, jobId, parameters);
+                waiters.put(key, waiter);
+                created = true;
+            }
+            waiter.requests.add(new Waiter(session, asyncResponse));
+        }
+        if (created) {
+            waiter.schedule(0);
+        }
+    }
+
+    private void schedule(long delaySeconds) {
+        try {
+            AsyncTasks.getMaintenancePool().schedule(this, delaySeconds, TimeUnit.SECONDS);
+        } catch (PoolSaturatedException e) {
+            finish(SuspendedRequest.error(Response.Status.SERVICE_UNAVAILABLE, "The server is busy; please try again later"));
+        }
+    }
+
+    /**
+     * @return the delay before the next check: exponential backoff, with the upper half of the delay randomised
+     */
+    private long nextDelayMillis() {
+        long delay = TimeUnit.SECONDS.toMillis(Math.min(MAX_DELAY_SECONDS, INITIAL_DELAY_SECONDS << Math.min(attempts, 16)));
+        attempts++;
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Runs on the maintenance pool, and hands the check to the command pool since it blocks on SSH
+     */
+    @Override
+    public void run() {
+        try {
+            AsyncTasks.getCommandPool().submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    check();
+                }
+
+            });
+        } catch (PoolSaturatedException e) {
+            reschedule();
+        }
+    }
+
+    private void reschedule() {
+        try {
+            AsyncTasks.getMaintenancePool().schedule(this, nextDelayMillis(), TimeUnit.MILLISECONDS);
+        } catch (PoolSaturatedException e) {
+            finish(SuspendedRequest.error(Response.Status.SERVICE_UNAVAILABLE, "The server is busy; please try again later"));
+        }
+    }
+
+    private void check() {
+        Session session = null;
+        for (Waiter waiter : requests) {
+            if (!waiter.asyncResponse.isSuspended()) {
+                requests.remove(waiter);
+            } else if (session == null) {
+                session = waiter.session;
+            }
+        }
+        if (session == null) {
+            synchronized (waiters) {
+                if (requests.isEmpty()) {
+                    waiters.remove(key);
+                    return;
+                }
+            }
+            // A request arrived in the meantime
+            reschedule();
+            return;
+        }
+
+        try {
+            TaskResult<List<Map<String, String>>> result = new TaskFactory(configuration).getInstance("running", session).run(parameters);
+            if (!result.getUserMessages().isEmpty()) {
+                session.addUserMessages(result.getUserMessages(), configurationName);
+            }
+            if (!result.getCommandResult().isEmpty()) {
+                finish(status(jobId, true));
+                return;
+            }
+        } catch (IOException | SSHExecException e) {
+            logger.warn("Could not check whether job " + jobId + " is running", e);
+        } catch (NoSuchTaskTypeException | MissingRequiredTaskParametersException e) {
+            finish(SuspendedRequest.error(Response.Status.BAD_REQUEST, "Cannot check whether this job is running: " + e.getMessage()));
+            return;
+        } catch (IllegalStateException e) {
+            // The session ended during the check; its request will be dropped on the next check
+        } catch (RuntimeException e) {
+            logger.error("Error checking whether job " + jobId + " is running", e);
+        }
+        reschedule();
+    }
+
+    /**
+     * Stops checking and resumes every waiting request. Requests that arrive afterwards start a new check.
+     */
+    private void finish(Response response) {
+        synchronized (waiters) {
+            if (waiters.get(key) == this) {
+                waiters.remove(key);
+            }
+        }
+        for (Waiter waiter : requests) {
+            waiter.asyncResponse.resume(response);
+        }
+    }
+
+    private static Response status(String jobId, boolean running) {
+        Map<String, Object> status = new HashMap<>();
+        status.put("jobid", jobId);
+        status.put("running", running);
+        return Response.ok(JsonHelper.getGson().toJson(status)).build();
+    }
+
+    /**
+     * A suspended request and the session that made it
+     */
+    private static class Waiter {
+        private final Session session;
+        private final AsyncResponse asyncResponse;
+
+        Waiter(Session session, AsyncResponse asyncResponse) {
+            this.session = session;
+            this.asyncResponse = asyncResponse;
+        }
+    }
+}
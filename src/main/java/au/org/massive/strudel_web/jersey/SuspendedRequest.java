@@ -0,0 +1,117 @@
+package au.org.massive.strudel_web.jersey;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.ConnectionCallback;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.org.massive.strudel_web.AsyncTasks;
+import au.org.massive.strudel_web.PoolSaturatedException;
+import au.org.massive.strudel_web.Settings;
+import au.org.massive.strudel_web.ssh.CancellableWatchdog;
+
+/**
+ * Runs the work of a suspended request on the request executor rather than a servlet container thread.
+ * <p>
+ * The request is resumed with the work's response, or with 504 if the work does not finish within the configured
+ * timeout. On timeout, or if the client disconnects, the work is cancelled: its thread is interrupted and any
+ * process started with the supplied watchdog is killed.
+ *
+ * @author jrigby
+ */
+class SuspendedRequest implements Runnable, TimeoutHandler, ConnectionCallback {
+
+    private static final Logger logger = LogManager.getLogger(SuspendedRequest.class);
+
+    /**
+     * The work of a request
+     */
+    interface Work {
+        /**
+         * @param watchdog pass to {@link au.org.massive.strudel_web.ssh.SSHClient#exec(String, ExecuteWatchdog)} so
+         *                 the remote command can be killed if the request is cancelled
+         * @return the response
+         * @throws Exception resumes the request with the exception, which is mapped to an error response
+         */
+        Response run(ExecuteWatchdog watchdog) throws Exception;
+    }
+
+    private final AsyncResponse asyncResponse;
+    private final Work work;
+    private final CancellableWatchdog watchdog = new CancellableWatchdog();
+    private volatile Future<?> future;
+
+    private SuspendedRequest(AsyncResponse asyncResponse, Work work) {
+        this.asyncResponse = asyncResponse;
+        this.work = work;
+    }
+
+    /**
+     * Submits the work of a suspended request
+     *
+     * @param asyncResponse the suspended request
+     * @param work          the work that produces the response
+     */
+    static void submit(AsyncResponse asyncResponse, Work work) {
+        SuspendedRequest request = new SuspendedRequest(asyncResponse, work);
+        asyncResponse.setTimeoutHandler(request);
+        asyncResponse.setTimeout(Settings.getInstance().getRequestTimeoutInSeconds(), TimeUnit.SECONDS);
+        asyncResponse.register(request);
+        try {
+            request.future = AsyncTasks.getRequestPool().submit(request);
+        } catch (PoolSaturatedException e) {
+            asyncResponse.resume(PoolSaturatedExceptionMapper.toServiceUnavailable(e));
+        }
+    }
+
+    /**
+     * Builds an error response
+     *
+     * @param status  the response status
+     * @param message a message describing the error
+     * @return the response
+     */
+    static Response error(Response.Status status, String message) {
+        return Response.status(status).type(MediaType.TEXT_PLAIN_TYPE).entity(message).build();
+    }
+
+    @Override
+    public void run() {
+        Response response;
+        try {
+            response = work.run(watchdog);
+        } catch (Exception e) {
+            asyncResponse.resume(e);
+            return;
+        }
+        asyncResponse.resume(response);
+    }
+
+    @Override
+    public void handleTimeout(AsyncResponse asyncResponse) {
+        asyncResponse.resume(error(Response.Status.GATEWAY_TIMEOUT, "The remote system did not respond in time"));
+        cancel();
+    }
+
+    @Override
+    public void onDisconnect(AsyncResponse disconnected) {
+        logger.info("Client disconnected; cancelling request");
+        cancel();
+    }
+
+    private void cancel() {
+        Future<?> f = future;
+        if (f != null) {
+            f.cancel(true);
+        }
+        watchdog.cancel();
+    }
+}
@@ -1,7 +1,5 @@
 package au.org.massive.strudel_web.job_control;
 
-import au.org.massive.strudel_web.util.RegexHelper;
-
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -27,6 +25,12 @@ public abstract class AbstractSystemConfiguration implements TaskConfiguration {
     private final boolean terminateTunnelOnLoginHost;
 
     private final List<String> messageRegexs;
+    private transient MessageExtractor messageExtractor;
+
+    // Holds a service credential, so it must not be published with the configuration
+    private transient SchedulerPoller.Options schedulerPollerOptions;
+
+    private transient Map<String, TaskWorkflow> workflows = new HashMap<>();
 
     public AbstractSystemConfiguration(String loginHost) {
         this(loginHost, false);
@@ -38,6 +42,7 @@ public abstract class AbstractSystemConfiguration implements TaskConfiguration {
         this.loginHost = loginHost;
         this.terminateTunnelOnLoginHost = terminateTunnelOnLoginHost;
         messageRegexs = new LinkedList<>();
+        messageExtractor = new MessageExtractor(messageRegexs);
     }
 
     public String getLoginHost() {
@@ -48,6 +53,17 @@ public abstract class AbstractSystemConfiguration implements TaskConfiguration {
         return terminateTunnelOnLoginHost;
     }
 
+    /**
+     * @return the options for the cluster-wide scheduler poller, or null if this system is not polled
+     */
+    public SchedulerPoller.Options getSchedulerPollerOptions() {
+        return schedulerPollerOptions;
+    }
+
+    public void setSchedulerPollerOptions(SchedulerPoller.Options schedulerPollerOptions) {
+        this.schedulerPollerOptions = schedulerPollerOptions;
+    }
+
     public void addAuthBackend(String name) {
         authBackendNames.add(name);
     }
@@ -91,8 +107,12 @@ public abstract class AbstractSystemConfiguration implements TaskConfiguration {
      * Adds a regex pattern used to extract command output that is to be displayed to the user via a dialogue box,
      * for example.
      * @param messageRegex the regex pattern
+     * @throws java.util.regex.PatternSyntaxException if the regex is invalid
      */
     protected void addMessageRegex(String messageRegex) {
+        List<String> updatedRegexs = new LinkedList<>(messageRegexs);
+        updatedRegexs.add(messageRegex);
+        messageExtractor = new MessageExtractor(updatedRegexs);
         messageRegexs.add(messageRegex);
     }
 
@@ -104,30 +124,19 @@ public abstract class AbstractSystemConfiguration implements TaskConfiguration {
      */
     @Override
     public List<UserMessage> getMessagesFromCommandOutput(String commandOutput) {
-        List<UserMessage> messages = new LinkedList<>();
-        for (String regex : messageRegexs) {
-            List<Map<String, String>> extractedMessages = RegexHelper.processRegex(regex, commandOutput);
-            for (Map<String,String> msg : extractedMessages) {
-                for (final String key : msg.keySet()) {
-                    UserMessage.MessageType messageType;
-                    switch (key) {
-                        case "info":
-                            messageType = UserMessage.MessageType.INFORMATION;
-                            break;
-                        case "warn":
-                            messageType = UserMessage.MessageType.WARNING;
-                            break;
-                        case "error":
-                            messageType = UserMessage.MessageType.ERROR;
-                            break;
-                        default:
-                            messageType = UserMessage.MessageType.INFORMATION;
-                    }
-                    messages.add(new UserMessage(messageType, msg.get(key)));
-                }
-            }
-        }
-        return messages;
+        return messageExtractor.extract(commandOutput);
+    }
+
+    protected void addWorkflow(String name, TaskWorkflow workflow) {
+        workflows.put(name.toLowerCase(), workflow);
+    }
+
+    /**
+     * @param name the workflow name, such as "connect"
+     * @return the workflow, or null if this configuration does not define it
+     */
+    public TaskWorkflow getWorkflow(String name) {
+        return workflows.get(name.toLowerCase());
     }
 
     @Override
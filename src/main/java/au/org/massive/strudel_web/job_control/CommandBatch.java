@@ -0,0 +1,105 @@
+package au.org.massive.strudel_web.job_control;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Combines several commands into one script so they can be run in a single SSH invocation. The output of each
+ * command is framed by marker lines carrying a per-batch token, so the combined output can be split back into the
+ * output and exit status of each command.
+ * <p>
+ * Each command runs in its own subshell with stdin closed and stderr merged into stdout on the remote side, so
+ * a failing or exiting command does not affect the others and its output cannot escape its frame.
+ *
+ * @author jrigby
+ */
+public class CommandBatch {
+
+    private static final String MARKER_PREFIX = "<<<strudel-batch ";
+    private static final Pattern MARKER = Pattern.compile("^<<<strudel-batch (\\S+) (begin|end) (\\d+)(?: (\\d+))?>>>$\\n?", Pattern.MULTILINE);
+
+    private final String token = UUID.randomUUID().toString();
+    private final StringBuilder script = new StringBuilder();
+    private int size = 0;
+
+    /**
+     * Adds a command to the batch
+     *
+     * @param command the command
+     * @return the index of the command's output in {@link #split(String)}
+     */
+    public int add(String command) {
+        int index = size++;
+        script.append("printf '%s\\n' '").append(MARKER_PREFIX).append(token).append(" begin ").append(index).append(">>>'\n");
+        script.append("(\n").append(command).append("\n) </dev/null 2>&1\n");
+        // The leading newline ensures the end marker starts a line even if the output does not end with one
+        script.append("printf '\\n%s %d>>>\\n' '").append(MARKER_PREFIX).append(token).append(" end ").append(index).append("' $?\n");
+        return index;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the script that runs every command in the batch
+     */
+    public String getScript() {
+        return script.toString();
+    }
+
+    /**
+     * Splits the output of {@link #getScript()} back into the output of each command
+     *
+     * @param output the combined output
+     * @return the output of each command, in the order they were added; an element is null if the command's
+     * output was not framed completely, e.g. because the connection was lost
+     */
+    public List<Output> split(String output) {
+        Output[] outputs = new Output[size];
+        Matcher m = MARKER.matcher(output);
+        int begin = -1;
+        int beginIndex = -1;
+        while (m.find()) {
+            if (!token.equals(m.group(1))) {
+                continue;
+            }
+            int index = Integer.parseInt(m.group(3));
+            if (m.group(2).equals("begin")) {
+                begin = m.end();
+                beginIndex = index;
+            } else if (index == beginIndex && index < size && m.group(4) != null) {
+                // Drop the newline added before the end marker
+                int end = Math.max(begin, m.start() - 1);
+                outputs[index] = new Output(output.substring(begin, end), Integer.parseInt(m.group(4)));
+                beginIndex = -1;
+            }
+        }
+        return new ArrayList<>(Arrays.asList(outputs));
+    }
+
+    /**
+     * The output and exit status of one command
+     */
+    public static class Output {
+        private final String output;
+        private final int exitStatus;
+
+        private Output(String output, int exitStatus) {
+            this.output = output;
+            this.exitStatus = exitStatus;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public int getExitStatus() {
+            return exitStatus;
+        }
+    }
+}
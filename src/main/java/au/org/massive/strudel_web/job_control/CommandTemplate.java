@@ -0,0 +1,185 @@
+package au.org.massive.strudel_web.job_control;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A command pattern split once into literal text and ${variable} slots, so that commands can be rendered in a
+ * single pass. Supports the subset of StrSubstitutor syntax used by task configurations: ${name},
+ * ${name:-inline default} and $${ as an escaped ${. As with the two StrSubstitutor passes this replaces, a supplied
+ * parameter wins over an inline default, and an inline default wins over a configured default. Supplied values are
+ * single-quoted; values are never substituted into again.
+ *
+ * @author jrigby
+ */
+public class CommandTemplate {
+
+    private static final String VARIABLE_PREFIX = "${";
+    private static final char VARIABLE_SUFFIX = '}';
+    private static final String INLINE_DEFAULT_DELIMITER = ":-";
+
+    // literals[i] precedes slot i; the last literal follows the final slot
+    private final String[] literals;
+    private final String[] slotNames;
+    private final String[] slotFallbacks;
+    private final boolean[] slotHasInlineDefault;
+    private final int literalLength;
+
+    private final Map<String, String> defaultParams;
+    private final Set<String> requiredParams;
+    private final List<String> requiredWithoutDefaults;
+
+    /**
+     * @param commandPattern the command pattern
+     * @param defaultParams values used when a parameter is not supplied
+     * @param requiredParams parameters that must be supplied or have a default
+     */
+    public CommandTemplate(String commandPattern, Map<String, String> defaultParams, Set<String> requiredParams) {
+        this.defaultParams = defaultParams == null ? Collections.<String, String>emptyMap() : defaultParams;
+        this.requiredParams = requiredParams == null ? Collections.<String>emptySet() : requiredParams;
+
+        // Resolve the defaults against the required parameters once, so rendering only checks what is left
+        Set<String> missingDefaults = new LinkedHashSet<>(this.requiredParams);
+        missingDefaults.removeAll(this.defaultParams.keySet());
+        requiredWithoutDefaults = new ArrayList<>(missingDefaults);
+
+        List<String> literalList = new ArrayList<>();
+        List<String> nameList = new ArrayList<>();
+        List<String> fallbackList = new ArrayList<>();
+        List<Boolean> inlineDefaultList = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int pos = 0;
+        while (pos < commandPattern.length()) {
+            int start = commandPattern.indexOf(VARIABLE_PREFIX, pos);
+            if (start < 0) {
+                break;
+            }
+            if (start > 0 && commandPattern.charAt(start - 1) == '$') {
+                // $${ is an escaped ${
+                literal.append(commandPattern, pos, start - 1).append(VARIABLE_PREFIX);
+                pos = start + VARIABLE_PREFIX.length();
+                continue;
+            }
+            int end = findVariableEnd(commandPattern, start + VARIABLE_PREFIX.length());
+            String variable = end < 0 ? null : commandPattern.substring(start + VARIABLE_PREFIX.length(), end);
+            if (variable == null || variable.isEmpty() || variable.contains(VARIABLE_PREFIX)) {
+                // Not a variable this template can resolve; keep it as text
+                int next = end < 0 ? commandPattern.length() : end + 1;
+                literal.append(commandPattern, pos, next);
+                pos = next;
+                continue;
+            }
+
+            literal.append(commandPattern, pos, start);
+            literalList.add(literal.toString());
+            literal.setLength(0);
+
+            int delimiter = variable.indexOf(INLINE_DEFAULT_DELIMITER);
+            if (delimiter >= 0) {
+                nameList.add(variable.substring(0, delimiter));
+                fallbackList.add(variable.substring(delimiter + INLINE_DEFAULT_DELIMITER.length()));
+                inlineDefaultList.add(true);
+            } else {
+                nameList.add(variable);
+                // An unknown variable is left in the command as written
+                fallbackList.add(commandPattern.substring(start, end + 1));
+                inlineDefaultList.add(false);
+            }
+            pos = end + 1;
+        }
+        literal.append(commandPattern, pos, commandPattern.length());
+        literalList.add(literal.toString());
+
+        literals = literalList.toArray(new String[literalList.size()]);
+        slotNames = nameList.toArray(new String[nameList.size()]);
+        slotFallbacks = fallbackList.toArray(new String[fallbackList.size()]);
+        slotHasInlineDefault = new boolean[inlineDefaultList.size()];
+        for (int i = 0; i < slotHasInlineDefault.length; i++) {
+            slotHasInlineDefault[i] = inlineDefaultList.get(i);
+        }
+        int length = 0;
+        for (String l : literals) {
+            length += l.length();
+        }
+        literalLength = length;
+    }
+
+    private static int findVariableEnd(String commandPattern, int from) {
+        int depth = 0;
+        for (int i = from; i < commandPattern.length(); i++) {
+            if (commandPattern.startsWith(VARIABLE_PREFIX, i)) {
+                depth++;
+                i++;
+            } else if (commandPattern.charAt(i) == VARIABLE_SUFFIX) {
+                if (depth == 0) {
+                    return i;
+                }
+                depth--;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Renders the command, substituting supplied parameters first, inline defaults second and configured defaults last
+     *
+     * @param params the user supplied parameters
+     * @return the command
+     * @throws MissingRequiredTaskParametersException thrown if a required parameter has no value
+     */
+    public String render(Map<String, String> params) throws MissingRequiredTaskParametersException {
+        for (String required : requiredWithoutDefaults) {
+            if (!params.containsKey(required)) {
+                throw new MissingRequiredTaskParametersException(getMissingParametersMessage());
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(literalLength + 16 * slotNames.length);
+        for (int i = 0; i < slotNames.length; i++) {
+            sb.append(literals[i]);
+            String value = params.get(slotNames[i]);
+            if (value == null && !slotHasInlineDefault[i]) {
+                value = defaultParams.get(slotNames[i]);
+            }
+            if (value != null) {
+                appendQuoted(sb, value);
+            } else {
+                sb.append(slotFallbacks[i]);
+            }
+        }
+        sb.append(literals[slotNames.length]);
+        return sb.toString();
+    }
+
+    private static void appendQuoted(StringBuilder sb, String value) {
+        sb.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\'') {
+                // A backslash is literal inside single quotes, so close the quotes, add a double-quoted ' and reopen
+                sb.append("'\"'\"'");
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('\'');
+    }
+
+    private String getMissingParametersMessage() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("The following parameters are required: ");
+        Iterator<String> it = requiredParams.iterator();
+        while (it.hasNext()) {
+            sb.append(it.next());
+            if (it.hasNext()) {
+                sb.append(", ");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -2,6 +2,7 @@ package au.org.massive.strudel_web.job_control;
 
 import au.org.massive.strudel_web.SSHCertSigningBackend;
 import au.org.massive.strudel_web.Settings;
+import au.org.massive.strudel_web.util.JsonHelper;
 import com.google.gson.Gson;
 
 import java.io.IOException;
@@ -55,6 +56,15 @@ public class ConfigurationRegistry {
         }
     }
 
+    /**
+     * @return every system configuration once, without the "default" alias
+     */
+    public Collection<AbstractSystemConfiguration> getAllSystemConfigurations() {
+        Set<AbstractSystemConfiguration> configurations = Collections.newSetFromMap(new IdentityHashMap<AbstractSystemConfiguration, Boolean>());
+        configurations.addAll(systemConfigurations.values());
+        return configurations;
+    }
+
     public AbstractSystemConfiguration getSystemConfigurationById(String id) {
         return systemConfigurations.get(id);
     }
@@ -69,7 +79,7 @@ public class ConfigurationRegistry {
     }
 
     public String getSystemConfigurationAsJson() {
-        Gson gson = new Gson();
+        Gson gson = JsonHelper.getGson();
         Set<String> configurationKeys = systemConfigurations.keySet();
         configurationKeys.remove("default");
         HashMap<String, AbstractSystemConfiguration> systemConfigurationsCopy = new HashMap<>();
@@ -1,5 +1,6 @@
 package au.org.massive.strudel_web.job_control;
 
+import au.org.massive.strudel_web.util.JsonHelper;
 import com.google.gson.Gson;
 
 import java.io.BufferedReader;
@@ -7,6 +8,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.util.*;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Created by jason on 21/09/15.
@@ -49,7 +51,7 @@ public class JsonSystemConfiguration extends AbstractSystemConfiguration {
     }
 
     public static JsonSystemConfiguration getInstance(String jsonConfig) throws InvalidJsonConfigurationException {
-        Gson gson = new Gson();
+        Gson gson = JsonHelper.getGson();
         //noinspection unchecked
         return getInstance(gson.fromJson(jsonConfig, HashMap.class));
     }
@@ -72,7 +74,11 @@ public class JsonSystemConfiguration extends AbstractSystemConfiguration {
         List<String> messageRegexs = (List<String>)config.get("messageRegexs");
         if (messageRegexs != null) {
             for (String pattern : messageRegexs) {
-                addMessageRegex(pattern);
+                try {
+                    addMessageRegex(pattern);
+                } catch (PatternSyntaxException e) {
+                    throw new InvalidJsonConfigurationException("JSON configuration has an invalid message regex '" + pattern + "'", e);
+                }
             }
         }
 
@@ -110,15 +116,79 @@ public class JsonSystemConfiguration extends AbstractSystemConfiguration {
                 throw new InvalidJsonConfigurationException("JSON configuration for task '" + taskName + "' must define 'resultPattern'");
             }
 
-            TaskParameters taskParameters = new TaskParameters(
-                    remoteHost,
-                    commandPattern,
-                    resultsPattern,
-                    defaults,
-                    requiredParams
-            );
+            int cacheTtl = 0;
+            if (task.containsKey("cacheTtl")) {
+                try {
+                    cacheTtl = ((Number) task.get("cacheTtl")).intValue();
+                } catch (ClassCastException e) {
+                    throw new InvalidJsonConfigurationException("JSON configuration for task '" + taskName + "' has an invalid 'cacheTtl'", e);
+                }
+            }
+            Set<String> invalidates = new HashSet<>();
+            if (task.containsKey("invalidates")) {
+                for (String invalidatedTask : (List<String>) task.get("invalidates")) {
+                    invalidates.add(invalidatedTask.toLowerCase());
+                }
+            }
+
+            String identityGroup = null;
+            if (task.containsKey("identity")) {
+                try {
+                    identityGroup = (String) task.get("identity");
+                } catch (ClassCastException e) {
+                    throw new InvalidJsonConfigurationException("JSON configuration for task '" + taskName + "' has an invalid 'identity'", e);
+                }
+            }
+
+            TaskParameters taskParameters;
+            try {
+                taskParameters = new TaskParameters(
+                        remoteHost,
+                        commandPattern,
+                        resultsPattern,
+                        defaults,
+                        requiredParams,
+                        cacheTtl,
+                        invalidates,
+                        identityGroup
+                );
+            } catch (PatternSyntaxException e) {
+                throw new InvalidJsonConfigurationException("JSON configuration for task '" + taskName + "' has an invalid 'resultPattern'", e);
+            }
+            if (identityGroup != null && !Arrays.asList(taskParameters.getResultGroupNames()).contains(identityGroup)) {
+                throw new InvalidJsonConfigurationException("JSON configuration for task '" + taskName + "' has an 'identity' that is not a group of its 'resultPattern'");
+            }
 
             addRemoteCommand(taskName, taskParameters);
         }
+
+        Map<String, Map<String, Object>> workflows = (Map<String, Map<String, Object>>) config.get("workflows");
+        if (workflows != null) {
+            for (String workflowName : workflows.keySet()) {
+                parseWorkflow(workflowName, workflows.get(workflowName));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void parseWorkflow(String workflowName, Map<String, Object> workflow) throws InvalidJsonConfigurationException {
+        if (!workflow.containsKey("steps")) {
+            throw new InvalidJsonConfigurationException("JSON configuration for workflow '" + workflowName + "' must define 'steps'");
+        }
+        List<TaskWorkflow.Step> steps = new LinkedList<>();
+        for (Map<String, Object> step : (List<Map<String, Object>>) workflow.get("steps")) {
+            if (!step.containsKey("task")) {
+                throw new InvalidJsonConfigurationException("JSON configuration for workflow '" + workflowName + "' has a step without a 'task'");
+            }
+            List<String> after = step.containsKey("after") ? (List<String>) step.get("after") : Collections.<String>emptyList();
+            steps.add(new TaskWorkflow.Step((String) step.get("task"), (String) step.get("host"), after));
+        }
+        try {
+            addWorkflow(workflowName, new TaskWorkflow(this, steps));
+        } catch (NoSuchTaskTypeException e) {
+            throw new InvalidJsonConfigurationException("JSON configuration for workflow '" + workflowName + "' has a step with an undefined task", e);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidJsonConfigurationException("JSON configuration for workflow '" + workflowName + "' is invalid: " + e.getMessage(), e);
+        }
     }
 }
@@ -0,0 +1,106 @@
+package au.org.massive.strudel_web.job_control;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import au.org.massive.strudel_web.util.RegexHelper;
+
+/**
+ * Extracts {@link UserMessage}s from command output using a configuration's message regexs, compiled once.
+ * All patterns are also combined into a single alternation that is used as a prefilter, so output that contains
+ * no messages (the usual case) is scanned once rather than once per pattern.
+ *
+ * @author jrigby
+ */
+public class MessageExtractor {
+
+    private static final Pattern NAMED_GROUP_START = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+
+    private final Pattern[] patterns;
+    private final String[][] groupNames;
+
+    // Matches wherever any of the prefiltered patterns match; null if there are none
+    private final Pattern prefilter;
+    // Patterns that cannot be combined into the prefilter and are always run
+    private final int[] unfilteredPatterns;
+
+    /**
+     * @param messageRegexs the message regexs, in the order their messages should be reported
+     * @throws java.util.regex.PatternSyntaxException if any regex is invalid
+     */
+    public MessageExtractor(List<String> messageRegexs) {
+        int n = messageRegexs.size();
+        patterns = new Pattern[n];
+        groupNames = new String[n][];
+
+        StringBuilder combined = new StringBuilder();
+        List<Integer> unfiltered = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            String regex = messageRegexs.get(i);
+            patterns[i] = Pattern.compile(regex);
+            groupNames[i] = RegexHelper.getNamedGroups(regex);
+
+            // Group numbers shift and group names clash once the patterns are combined,
+            // so patterns with back references are left out of the prefilter
+            if (BACK_REFERENCE.matcher(regex).find()) {
+                unfiltered.add(i);
+            } else {
+                if (combined.length() > 0) {
+                    combined.append('|');
+                }
+                combined.append("(?:").append(NAMED_GROUP_START.matcher(regex).replaceAll("(?:")).append(')');
+            }
+        }
+        prefilter = combined.length() > 0 ? Pattern.compile(combined.toString()) : null;
+        unfilteredPatterns = new int[unfiltered.size()];
+        for (int i = 0; i < unfilteredPatterns.length; i++) {
+            unfilteredPatterns[i] = unfiltered.get(i);
+        }
+    }
+
+    /**
+     * Applies the message regexs to command output
+     * @param commandOutput text from remote command execution
+     * @return a list of {@link UserMessage}
+     */
+    public List<UserMessage> extract(String commandOutput) {
+        List<UserMessage> messages = new LinkedList<>();
+        if (prefilter != null && prefilter.matcher(commandOutput).find()) {
+            for (int i = 0; i < patterns.length; i++) {
+                extract(i, commandOutput, messages);
+            }
+        } else {
+            for (int i : unfilteredPatterns) {
+                extract(i, commandOutput, messages);
+            }
+        }
+        return messages;
+    }
+
+    private void extract(int pattern, String commandOutput, List<UserMessage> messages) {
+        List<Map<String, String>> extractedMessages = RegexHelper.processRegex(patterns[pattern], groupNames[pattern], commandOutput);
+        for (Map<String, String> msg : extractedMessages) {
+            for (final String key : msg.keySet()) {
+                UserMessage.MessageType messageType;
+                switch (key) {
+                    case "info":
+                        messageType = UserMessage.MessageType.INFORMATION;
+                        break;
+                    case "warn":
+                        messageType = UserMessage.MessageType.WARNING;
+                        break;
+                    case "error":
+                        messageType = UserMessage.MessageType.ERROR;
+                        break;
+                    default:
+                        messageType = UserMessage.MessageType.INFORMATION;
+                }
+                messages.add(new UserMessage(messageType, msg.get(key)));
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package au.org.massive.strudel_web.job_control;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.org.massive.strudel_web.ssh.CertAuthInfo;
+import au.org.massive.strudel_web.ssh.SSHClientFactory;
+import au.org.massive.strudel_web.ssh.SSHExecException;
+import au.org.massive.strudel_web.util.RegexHelper;
+import au.org.massive.strudel_web.util.ResultTable;
+
+/**
+ * Periodically runs one cluster-wide scheduler query for a system configuration under a service credential, and
+ * answers the "listall" and "running" tasks of every user from the resulting snapshot instead of running them over
+ * each user's own SSH connection.
+ * <p>
+ * Each line of the query output must be the owning user name, whitespace, and then a line in the format produced
+ * by the configuration's "listall" command, e.g. <code>squeue -h -o "%u %i %T %L"</code>. The rest of the line is
+ * parsed with the "listall" result pattern, so the snapshot rows are exactly what "listall" would have returned.
+ * "running" is answered from the row's "state" group, so it is only answered if the "listall" pattern has one.
+ * <p>
+ * If the snapshot is missing or stale, for example because the query failed, tasks fall back to per-user SSH. A
+ * user's jobs in the snapshot are also stale once a task that invalidates "listall" or "running" has run for them,
+ * such as starting or stopping a job, until a query started after that task has completed.
+ *
+ * @author jrigby
+ */
+public class SchedulerPoller implements Runnable {
+
+    private final static Logger logger = LogManager.getLogger(SchedulerPoller.class);
+
+    private static final String LIST_TASK = "listall";
+    private static final String RUNNING_TASK = "running";
+    private static final String JOB_ID = "jobid";
+    private static final String STATE = "state";
+
+    // A snapshot older than this many intervals is not used
+    private static final int MAX_AGE_IN_INTERVALS = 3;
+
+    private final AbstractSystemConfiguration configuration;
+    private final Options options;
+    private volatile Snapshot snapshot;
+    // When each user's jobs were last changed by one of their own tasks
+    private final ConcurrentMap<String, Long> invalidatedAt = new ConcurrentHashMap<>();
+
+    /**
+     * Settings for a poller, read from strudel-web.properties
+     */
+    public static class Options {
+        private final String command;
+        private final int intervalSeconds;
+        private final String runningState;
+        private final CertAuthInfo serviceCredential;
+
+        /**
+         * @param command           the cluster-wide scheduler query
+         * @param intervalSeconds   the delay between queries
+         * @param runningState      the value of the "state" group for a running job
+         * @param serviceCredential the credential the query runs under
+         */
+        public Options(String command, int intervalSeconds, String runningState, CertAuthInfo serviceCredential) {
+            this.command = command;
+            this.intervalSeconds = intervalSeconds;
+            this.runningState = runningState;
+            this.serviceCredential = serviceCredential;
+        }
+
+        public int getIntervalSeconds() {
+            return intervalSeconds;
+        }
+    }
+
+    public SchedulerPoller(AbstractSystemConfiguration configuration, Options options) {
+        this.configuration = configuration;
+        this.options = options;
+    }
+
+    @Override
+    public void run() {
+        try {
+            TaskParameters listParams = configuration.findByTaskType(LIST_TASK);
+            long startedAt = System.nanoTime();
+            String output = SSHClientFactory.getInstance(options.serviceCredential, configuration.getLoginHost()).exec(options.command);
+            update(output, listParams, startedAt);
+        } catch (NoSuchTaskTypeException e) {
+            logger.error("Cannot poll the scheduler for a configuration without a \"" + LIST_TASK + "\" task");
+        } catch (IOException | SSHExecException e) {
+            logger.warn("Scheduler query on " + configuration.getLoginHost() + " failed", e);
+        } catch (RuntimeException e) {
+            // Keep the periodic task alive
+            logger.error("Error polling the scheduler on " + configuration.getLoginHost(), e);
+        }
+    }
+
+    /**
+     * Replaces the snapshot with the output of a query
+     *
+     * @param output     the query output
+     * @param listParams the "listall" task
+     * @param startedAt  the {@link System#nanoTime()} at which the query started
+     */
+    void update(String output, TaskParameters listParams, long startedAt) {
+        snapshot = parse(output, listParams, startedAt);
+        // The new snapshot includes every change made before the query started
+        for (Iterator<Long> it = invalidatedAt.values().iterator(); it.hasNext(); ) {
+            if (it.next() - startedAt < 0) {
+                it.remove();
+            }
+        }
+    }
+
+    private static Snapshot parse(String output, TaskParameters listParams, long startedAt) {
+        // Group the lines by user first so each user's jobs are parsed into one table
+        Map<String, StringBuilder> linesByUser = new HashMap<>();
+        int start = 0;
+        while (start < output.length()) {
+            int end = output.indexOf('\n', start);
+            if (end < 0) {
+                end = output.length();
+            }
+            String line = output.substring(start, end).trim();
+            start = end + 1;
+
+            int split = indexOfWhitespace(line);
+            if (split < 0) {
+                continue;
+            }
+            String user = line.substring(0, split);
+            StringBuilder lines = linesByUser.get(user);
+            if (lines == null) {
+                lines = new StringBuilder();
+                linesByUser.put(user, lines);
+            }
+            lines.append(line, split + 1, line.length()).append('\n');
+        }
+
+        Map<String, ResultTable> jobsByUser = new HashMap<>(linesByUser.size() * 2);
+        Map<String, Map<String, Map<String, String>>> jobsByUserAndId = new HashMap<>(linesByUser.size() * 2);
+        for (Map.Entry<String, StringBuilder> entry : linesByUser.entrySet()) {
+            // Unlike a one-off task result, the snapshot is kept for a whole poll interval, so repeated job states
+            // and queue names are worth storing once
+            ResultTable jobs = RegexHelper.processRegexForEachLine(listParams.getResultRegex(), listParams.getResultGroupNames(), entry.getValue().toString(), true);
+            jobsByUser.put(entry.getKey(), jobs);
+
+            Map<String, Map<String, String>> byId = new HashMap<>(jobs.size() * 2);
+            for (Map<String, String> job : jobs) {
+                String jobId = job.get(JOB_ID);
+                if (jobId != null) {
+                    byId.put(jobId, job);
+                }
+            }
+            jobsByUserAndId.put(entry.getKey(), byId);
+        }
+        return new Snapshot(jobsByUser, jobsByUserAndId, listParams.getResultGroupNames(), startedAt);
+    }
+
+    private static int indexOfWhitespace(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (Character.isWhitespace(line.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks a user's jobs in the current snapshot as stale if a task that ran for them invalidates the tasks answered
+     * by this poller, so that those tasks run over SSH until the next query
+     *
+     * @param userName the user
+     * @param tasks    the names of the tasks that are invalidated
+     */
+    public void invalidate(String userName, Set<String> tasks) {
+        if (tasks.contains(LIST_TASK) || tasks.contains(RUNNING_TASK)) {
+            invalidatedAt.put(userName, System.nanoTime());
+        }
+    }
+
+    /**
+     * Answers a task from the latest snapshot
+     *
+     * @param taskType   the task
+     * @param userName   the user running the task
+     * @param parameters the task parameters
+     * @return the task result, or null if the task must be run over SSH
+     */
+    public TaskResult<List<Map<String, String>>> answer(String taskType, String userName, Map<String, String> parameters) {
+        Snapshot s = snapshot;
+        if (s == null || System.nanoTime() - s.takenAt > TimeUnit.SECONDS.toNanos((long) options.intervalSeconds * MAX_AGE_IN_INTERVALS)) {
+            return null;
+        }
+        Long invalidated = invalidatedAt.get(userName);
+        if (invalidated != null && invalidated - s.takenAt >= 0) {
+            return null;
+        }
+
+        if (LIST_TASK.equals(taskType)) {
+            List<Map<String, String>> jobs = s.jobsByUser.get(userName);
+            if (jobs == null) {
+                jobs = new ResultTable(s.columns, false);
+            }
+            return new TaskResult<>(Collections.<UserMessage>emptyList(), jobs);
+        } else if (RUNNING_TASK.equals(taskType) && s.hasState && parameters.containsKey(JOB_ID)) {
+            Map<String, Map<String, String>> jobs = s.jobsByUserAndId.get(userName);
+            Map<String, String> job = jobs == null ? null : jobs.get(parameters.get(JOB_ID));
+            List<Map<String, String>> running;
+            if (job != null && options.runningState.equals(job.get(STATE))) {
+                running = Collections.singletonList(job);
+            } else {
+                running = Collections.emptyList();
+            }
+            return new TaskResult<>(Collections.<UserMessage>emptyList(), running);
+        }
+        return null;
+    }
+
+    private static class Snapshot {
+        private final Map<String, ResultTable> jobsByUser;
+        private final Map<String, Map<String, Map<String, String>>> jobsByUserAndId;
+        private final String[] columns;
+        private final boolean hasState;
+        // When the query started
+        private final long takenAt;
+
+        Snapshot(Map<String, ResultTable> jobsByUser, Map<String, Map<String, Map<String, String>>> jobsByUserAndId, String[] columns, long takenAt) {
+            this.jobsByUser = jobsByUser;
+            this.takenAt = takenAt;
+            this.jobsByUserAndId = jobsByUserAndId;
+            this.columns = columns;
+            boolean hasState = false;
+            for (String column : columns) {
+                if (STATE.equals(column)) {
+                    hasState = true;
+                }
+            }
+            this.hasState = hasState;
+        }
+    }
+}
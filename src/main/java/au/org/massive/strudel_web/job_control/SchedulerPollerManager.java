@@ -0,0 +1,65 @@
+package au.org.massive.strudel_web.job_control;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.org.massive.strudel_web.AsyncTasks;
+import au.org.massive.strudel_web.Settings;
+
+/**
+ * A servlet listener that starts a {@link SchedulerPoller} on the maintenance pool for each system configuration
+ * that has one configured, and stops them when the application stops
+ *
+ * @author jrigby
+ */
+public class SchedulerPollerManager implements ServletContextListener {
+
+    private final static Logger logger = LogManager.getLogger(SchedulerPollerManager.class);
+
+    // Written once on startup, before any requests are served
+    private static volatile Map<TaskConfiguration, SchedulerPoller> pollers = new IdentityHashMap<>();
+    private static final List<ScheduledFuture<?>> scheduled = new LinkedList<>();
+
+    /**
+     * @param configuration a system configuration
+     * @return the poller for the configuration, or null if it is not polled
+     */
+    public static SchedulerPoller getPoller(TaskConfiguration configuration) {
+        return pollers.get(configuration);
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        Map<TaskConfiguration, SchedulerPoller> started = new IdentityHashMap<>();
+        for (AbstractSystemConfiguration configuration : Settings.getInstance().getSystemConfigurations().getAllSystemConfigurations()) {
+            SchedulerPoller.Options options = configuration.getSchedulerPollerOptions();
+            if (options == null) {
+                continue;
+            }
+            SchedulerPoller poller = new SchedulerPoller(configuration, options);
+            scheduled.add(AsyncTasks.getMaintenancePool().scheduleWithFixedDelay(poller, 0, options.getIntervalSeconds(), TimeUnit.SECONDS));
+            started.put(configuration, poller);
+            logger.info("Polling the scheduler on " + configuration.getLoginHost() + " every " + options.getIntervalSeconds() + " seconds");
+        }
+        pollers = started;
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        for (ScheduledFuture<?> f : scheduled) {
+            f.cancel(true);
+        }
+        scheduled.clear();
+        pollers = new IdentityHashMap<>();
+    }
+}
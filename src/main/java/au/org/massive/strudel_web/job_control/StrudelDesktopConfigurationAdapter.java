@@ -1,6 +1,7 @@
 package au.org.massive.strudel_web.job_control;
 
 import au.org.massive.strudel_web.util.RegexHelper;
+import au.org.massive.strudel_web.util.JsonHelper;
 import com.google.gson.Gson;
 
 import java.io.BufferedReader;
@@ -78,7 +79,7 @@ public class StrudelDesktopConfigurationAdapter extends HashMap<String, JsonSyst
      * @throws InvalidJsonConfigurationException thrown if invalid JSON configuration is encountered
      */
     private void parseConfig(String configurationNamePrefix, String jsonConfig) throws InvalidJsonConfigurationException {
-        Gson gson = new Gson();
+        Gson gson = JsonHelper.getGson();
         @SuppressWarnings("unchecked") Map<String, Map<String, Object>> configurations = (Map<String, Map<String, Object>>) ((List<Object>) gson.fromJson(jsonConfig, ArrayList.class)).get(1);
         for (String configurationName : configurations.keySet()) {
             put(configurationNamePrefix + configurationName, parseConfig(configurations.get(configurationName)));
@@ -125,27 +126,62 @@ public class StrudelDesktopConfigurationAdapter extends HashMap<String, JsonSyst
             }
         }
 
+        // Read-only tasks are cached briefly, and tasks that change the job list discard the cached results
+        // that depend on it. A "cacheTtl" on a function in the JSON file overrides the default.
         Map<String, Object> tasks = new HashMap<>();
         parsedConfig.put("tasks", tasks);
-        tasks.put("exechost", extractFunctionFromStrudelConfig("execHost", config));
-        tasks.put("getprojects", extractFunctionFromStrudelConfig("getProjects", config));
-        tasks.put("listall", extractFunctionFromStrudelConfig("listAll", config));
+        Map<String, Object> execHost = cacheable(extractFunctionFromStrudelConfig("execHost", config), "execHost", config, 30);
+        tasks.put("exechost", execHost);
+        tasks.put("getprojects", cacheable(extractFunctionFromStrudelConfig("getProjects", config), "getProjects", config, 300));
+        tasks.put("listall", identifiedBy(cacheable(extractFunctionFromStrudelConfig("listAll", config), "listAll", config, 2), "jobid"));
         tasks.put("otp", extractFunctionFromStrudelConfig("otp", config));
-        tasks.put("running", extractFunctionFromStrudelConfig("running", config));
+        tasks.put("running", cacheable(extractFunctionFromStrudelConfig("running", config), "running", config, 2));
 
         Map<String, String> defaults = new HashMap<>();
         defaults.put("hours", String.valueOf(jobHours));
         defaults.put("ppn", String.valueOf(jobPPN));
         defaults.put("mem", String.valueOf(jobMem));
-        tasks.put("startserver", extractFunctionFromStrudelConfig("startServer", config, defaults));
-
-        tasks.put("stop", extractFunctionFromStrudelConfig("stop", config));
-        tasks.put("stopforrestart", extractFunctionFromStrudelConfig("stopForRestart", config));
-        tasks.put("vncdisplay", extractFunctionFromStrudelConfig("vncDisplay", config));
+        tasks.put("startserver", invalidating(extractFunctionFromStrudelConfig("startServer", config, defaults), "listall", "running"));
+
+        tasks.put("stop", invalidating(extractFunctionFromStrudelConfig("stop", config), "listall", "running", "exechost", "vncdisplay"));
+        tasks.put("stopforrestart", invalidating(extractFunctionFromStrudelConfig("stopForRestart", config), "listall", "running", "exechost", "vncdisplay"));
+        tasks.put("vncdisplay", cacheable(extractFunctionFromStrudelConfig("vncDisplay", config), "vncDisplay", config, 30));
+
+        // Server-side chains of tasks. A "workflows" object in the JSON file replaces the default connect chain,
+        // which needs the execution host to be found from the login host.
+        boolean execHostOnLoginHost = !"".equals(execHost.get("remoteHost"));
+        if (config.containsKey("workflows")) {
+            parsedConfig.put("workflows", config.get("workflows"));
+        } else if (execHostOnLoginHost) {
+            parsedConfig.put("workflows", Collections.singletonMap("connect", defaultConnectWorkflow()));
+        }
 
         return JsonSystemConfiguration.getInstance(parsedConfig);
     }
 
+    /**
+     * The steps to connect to a desktop: find its execution host, then look up the display and generate a one-time
+     * password on that host. Dependencies are inferred from the parameters each task needs.
+     *
+     * @return the workflow in the web app format
+     */
+    private static Map<String, Object> defaultConnectWorkflow() {
+        List<Map<String, Object>> steps = new LinkedList<>();
+        steps.add(workflowStep("exechost", null));
+        steps.add(workflowStep("vncdisplay", "execHost"));
+        steps.add(workflowStep("otp", "execHost"));
+        return Collections.<String, Object>singletonMap("steps", steps);
+    }
+
+    private static Map<String, Object> workflowStep(String task, String host) {
+        Map<String, Object> step = new HashMap<>();
+        step.put("task", task);
+        if (host != null) {
+            step.put("host", host);
+        }
+        return step;
+    }
+
     /**
      * Attempts to determine whether the vnc tunnels need to terminate at the login or execution host
      * @param sshCommand the ssh command from the json file
@@ -184,14 +220,55 @@ public class StrudelDesktopConfigurationAdapter extends HashMap<String, JsonSyst
 
         // The exec host is not known in advance, so if the command is to be targeted on the exec host, set the remote host as an empty string.
         // This will require the API endpoint to include a remote host - it becomes the client's responsibility to know this in advnace.
-        //noinspection unchecked
-        if (((Map<String, Object>) config.get(functionName)).get("host").equals("exec")) {
+        if (((Map<?, ?>) config.get(functionName)).get("host").equals("exec")) {
             function.put("remoteHost", "");
         }
 
         return function;
     }
 
+    /**
+     * Sets the cache lifetime of a converted function
+     *
+     * @param function      the converted function
+     * @param functionName  the name of the function in the desktop configuration
+     * @param config        the configuration object
+     * @param defaultTtl    the cache lifetime in seconds if the desktop configuration does not set "cacheTtl"
+     * @return the converted function
+     */
+    private static Map<String, Object> cacheable(Map<String, Object> function, String functionName, Map<String, Object> config, int defaultTtl) {
+        Object cacheTtl = ((Map<?, ?>) config.get(functionName)).get("cacheTtl");
+        function.put("cacheTtl", cacheTtl != null ? cacheTtl : defaultTtl);
+        return function;
+    }
+
+    /**
+     * Sets the result group that identifies a row of a converted function, if its result pattern has that group,
+     * so that repeated runs can be answered with only the changed rows
+     *
+     * @param function      the converted function
+     * @param identityGroup the identifying group
+     * @return the converted function
+     */
+    private static Map<String, Object> identifiedBy(Map<String, Object> function, String identityGroup) {
+        if (RegexHelper.getNamedGroupCandidates((String) function.get("resultPattern")).contains(identityGroup)) {
+            function.put("identity", identityGroup);
+        }
+        return function;
+    }
+
+    /**
+     * Sets the tasks whose cached results are discarded when a converted function runs
+     *
+     * @param function         the converted function
+     * @param invalidatedTasks the names of the invalidated tasks
+     * @return the converted function
+     */
+    private static Map<String, Object> invalidating(Map<String, Object> function, String... invalidatedTasks) {
+        function.put("invalidates", Arrays.asList(invalidatedTasks));
+        return function;
+    }
+
     /**
      * Gets a command pattern, removing outer quotes and prefixing curly bracket value substitution with a dollar sign
      *
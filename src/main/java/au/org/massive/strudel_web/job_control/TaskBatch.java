@@ -0,0 +1,282 @@
+package au.org.massive.strudel_web.job_control;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.org.massive.strudel_web.Session;
+import au.org.massive.strudel_web.Settings;
+import au.org.massive.strudel_web.job_control.TaskFactory.Task;
+import au.org.massive.strudel_web.ssh.SSHClient;
+
+/**
+ * Runs a list of tasks, possibly from different configurations, for one session. Tasks are grouped by target host
+ * and each group is run in a single SSH invocation using a {@link CommandBatch}; groups run concurrently on the command
+ * pool, so a batch must not be run from a command pool thread. Failures are reported per task rather than failing
+ * the whole batch, and groups that do not finish within the request timeout are killed.
+ *
+ * @author jrigby
+ */
+public class TaskBatch {
+
+    private static final Logger logger = LogManager.getLogger(TaskBatch.class);
+
+    private final ConfigurationRegistry configurations;
+    private final Session session;
+
+    public TaskBatch(ConfigurationRegistry configurations, Session session) {
+        this.configurations = configurations;
+        this.session = session;
+    }
+
+    /**
+     * Runs the batch
+     *
+     * @param entries the tasks to run
+     * @return one result per entry, in the same order
+     */
+    public List<Result> run(List<Entry> entries) {
+        List<Result> results = new ArrayList<>(entries.size());
+        Map<String, HostGroup> groups = new LinkedHashMap<>();
+
+        for (Entry entry : entries) {
+            Result result = new Result(entry);
+            results.add(result);
+
+            AbstractSystemConfiguration systemConfiguration = (entry.configuration == null) ? configurations.getDefaultSystemConfiguration() : configurations.getSystemConfigurationById(entry.configuration);
+            if (systemConfiguration == null) {
+                result.error = "Invalid configuration name";
+                continue;
+            }
+            try {
+                TaskFactory taskFactory = new TaskFactory(systemConfiguration);
+                Task task;
+                if (entry.host == null) {
+                    if (systemConfiguration.findByTaskType(entry.task).getRemoteHost().isEmpty()) {
+                        result.error = "This task requires a target host to be explicitly specified";
+                        continue;
+                    }
+                    task = taskFactory.getInstance(entry.task, session);
+                } else {
+                    task = taskFactory.getInstance(entry.task, session, entry.host);
+                }
+                result.host = task.getRemoteHost();
+                Map<String, String> parameters = entry.parameters == null ? Collections.<String, String>emptyMap() : entry.parameters;
+                String command = task.renderCommand(parameters);
+                TaskResult<List<Map<String, String>>> cached = task.getPolledResult(parameters);
+                if (cached == null) {
+                    cached = task.getCachedResult(command);
+                }
+                if (cached != null) {
+                    result.result = cached.getCommandResult();
+                    continue;
+                }
+
+                HostGroup group = groups.get(task.getRemoteHost());
+                if (group == null) {
+                    group = new HostGroup(task.getSSHClient());
+                    groups.put(task.getRemoteHost(), group);
+                }
+                group.add(command, task, result);
+            } catch (NoSuchTaskTypeException e) {
+                result.error = "No such task";
+            } catch (MissingRequiredTaskParametersException e) {
+                result.error = e.getMessage();
+            } catch (IOException e) {
+                result.error = "Could not create SSH client";
+            }
+        }
+
+        for (HostGroup group : groups.values()) {
+            group.start();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Settings.getInstance().getRequestTimeoutInSeconds());
+        for (Map.Entry<String, HostGroup> group : groups.entrySet()) {
+            group.getValue().finish(group.getKey(), deadline);
+        }
+        return results;
+    }
+
+    /**
+     * Tasks that target the same host
+     */
+    private static class HostGroup {
+        private final SSHClient sshClient;
+        private final CommandBatch batch = new CommandBatch();
+        private final List<Task> tasks = new ArrayList<>();
+        private final List<String> commands = new ArrayList<>();
+        private final List<Result> results = new ArrayList<>();
+        private SSHClient.AsyncCommand<String> command;
+
+        HostGroup(SSHClient sshClient) {
+            this.sshClient = sshClient;
+        }
+
+        void add(String command, Task task, Result result) {
+            batch.add(command);
+            tasks.add(task);
+            commands.add(command);
+            results.add(result);
+        }
+
+        void start() {
+            try {
+                command = sshClient.execAsync(batch.getScript());
+            } catch (RejectedExecutionException e) {
+                command = null;
+            }
+        }
+
+        void finish(String host, long deadline) {
+            try {
+                collectResults(host, deadline);
+            } finally {
+                for (Task task : tasks) {
+                    task.invalidateCachedResults();
+                }
+            }
+        }
+
+        private void collectResults(String host, long deadline) {
+            if (command == null) {
+                setError("The server is busy, please try again shortly");
+                return;
+            }
+            String output;
+            try {
+                output = command.getFuture().get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                command.cancel();
+                Thread.currentThread().interrupt();
+                setError("Interrupted");
+                return;
+            } catch (TimeoutException e) {
+                command.cancel();
+                logger.warn("Batch of " + batch.size() + " commands on " + host + " did not finish in time");
+                setError("The remote system did not respond in time");
+                return;
+            } catch (ExecutionException e) {
+                logger.error("Batch of " + batch.size() + " commands failed on " + host, e.getCause());
+                setError("SSH command failed");
+                return;
+            }
+
+            List<CommandBatch.Output> outputs = batch.split(output);
+            for (int i = 0; i < outputs.size(); i++) {
+                CommandBatch.Output commandOutput = outputs.get(i);
+                Result result = results.get(i);
+                if (commandOutput == null) {
+                    result.error = "No output received for this task";
+                } else if (commandOutput.getExitStatus() != 0) {
+                    result.error = "Remote command exited with status " + commandOutput.getExitStatus();
+                } else {
+                    TaskResult<List<Map<String, String>>> taskResult = tasks.get(i).processOutput(commandOutput.getOutput());
+                    tasks.get(i).cacheResult(commands.get(i), taskResult);
+                    result.result = taskResult.getCommandResult();
+                    result.userMessages = taskResult.getUserMessages();
+                }
+            }
+        }
+
+        private void setError(String error) {
+            for (Result result : results) {
+                result.error = error;
+            }
+        }
+    }
+
+    /**
+     * A task to run, as read from the request
+     */
+    public static class Entry {
+        private String task;
+        private String configuration;
+        private String host;
+        private Map<String, String> parameters;
+
+        private Entry() {
+
+        }
+
+        /**
+         * @param task          the task name
+         * @param configuration the configuration id, or null for the default configuration
+         * @param host          the target host, or null for the task's default host
+         * @param parameters    the task parameters
+         */
+        public Entry(String task, String configuration, String host, Map<String, String> parameters) {
+            this.task = task;
+            this.configuration = configuration;
+            this.host = host;
+            this.parameters = parameters;
+        }
+
+        public String getTask() {
+            return task;
+        }
+
+        public String getConfiguration() {
+            return configuration;
+        }
+
+        public String getHost() {
+            return host;
+        }
+    }
+
+    /**
+     * The outcome of one {@link Entry}; exactly one of result and error is set
+     */
+    public static class Result {
+        private final String task;
+        private final String configuration;
+        private String host;
+        private List<Map<String, String>> result;
+        private String error;
+        private transient List<UserMessage> userMessages = Collections.emptyList();
+
+        private Result(Entry entry) {
+            this.task = entry.task;
+            this.configuration = entry.configuration;
+            this.host = entry.host;
+        }
+
+        public String getTask() {
+            return task;
+        }
+
+        public String getConfiguration() {
+            return configuration;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        public List<Map<String, String>> getResult() {
+            return result;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public List<UserMessage> getUserMessages() {
+            return userMessages;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package au.org.massive.strudel_web.job_control;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.org.massive.strudel_web.AsyncTasks;
+import au.org.massive.strudel_web.ExecutorPool;
+import au.org.massive.strudel_web.PoolSaturatedException;
+import au.org.massive.strudel_web.ssh.CancellableWatchdog;
+import au.org.massive.strudel_web.ssh.SSHExecException;
+
+/**
+ * Coalesces identical concurrent remote commands. The first caller for a given user, host and command starts it on
+ * the shared command pool; callers that arrive while it is in flight wait for and share its output instead of running
+ * their own.
+ * <p>
+ * A shared command runs under its own watchdog rather than any caller's. A caller is cancelled by interrupting it,
+ * which only stops that caller waiting; the command is killed once every caller waiting for it has been cancelled.
+ * If the shared command pool is saturated, the caller runs the command itself.
+ * <p>
+ * Execution and coalesced counts are published through JMX as "au.org.massive.strudel_web:type=TaskCoalescer".
+ *
+ * @author jrigby
+ */
+public class TaskCoalescer implements TaskCoalescerMXBean {
+
+    private final static Logger logger = LogManager.getLogger(TaskCoalescer.class);
+
+    private static TaskCoalescer instance;
+
+    // Null to use the application's shared command pool
+    private final ExecutorPool pool;
+    private final ConcurrentMap<Key, SharedExecution> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    TaskCoalescer(ExecutorPool pool) {
+        this.pool = pool;
+    }
+
+    public static synchronized TaskCoalescer getInstance() {
+        if (instance == null) {
+            instance = new TaskCoalescer(null);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName("au.org.massive.strudel_web:type=TaskCoalescer"));
+            } catch (JMException e) {
+                logger.warn("Could not publish task coalescing statistics", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Discards the coalescer and unpublishes its statistics, if it was created
+     */
+    static synchronized void shutdown() {
+        if (instance == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName("au.org.massive.strudel_web:type=TaskCoalescer"));
+        } catch (JMException e) {
+            logger.warn("Could not unpublish task coalescing statistics", e);
+        }
+        instance = null;
+    }
+
+    /**
+     * Runs a remote command
+     */
+    public interface Execution {
+        /**
+         * @param watchdog can be used to kill the command
+         * @return the command output
+         * @throws IOException      thrown on errors running the SSH client
+         * @throws SSHExecException thrown if the remote command fails
+         */
+        String run(ExecuteWatchdog watchdog) throws IOException, SSHExecException;
+    }
+
+    /**
+     * Runs a command, or waits for an identical command that is already running
+     *
+     * @param userName  the user running the command
+     * @param host      the host the command runs on
+     * @param command   the rendered command
+     * @param watchdog  the caller's watchdog, only used if the caller has to run the command itself; may be null
+     * @param execution runs the command
+     * @return the command output
+     * @throws IOException      thrown on errors running the SSH client, or if the caller is interrupted while waiting
+     * @throws SSHExecException thrown if the remote command fails
+     */
+    public String exec(String userName, String host, String command, ExecuteWatchdog watchdog, Execution execution) throws IOException, SSHExecException {
+        Key key = new Key(userName, host, command);
+        while (true) {
+            SharedExecution shared = inFlight.get(key);
+            if (shared == null) {
+                SharedExecution created = new SharedExecution(key, execution);
+                shared = inFlight.putIfAbsent(key, created);
+                if (shared == null) {
+                    try {
+                        (pool != null ? pool : AsyncTasks.getSharedCommandPool()).submit(created.task);
+                    } catch (PoolSaturatedException e) {
+                        inFlight.remove(key, created);
+                        executions.incrementAndGet();
+                        return execution.run(watchdog);
+                    }
+                    executions.incrementAndGet();
+                    return created.getOutput();
+                }
+            }
+            if (shared.join()) {
+                coalesced.incrementAndGet();
+                return shared.getOutput();
+            }
+            // Every caller of that execution was cancelled and it is being killed
+            inFlight.remove(key, shared);
+        }
+    }
+
+    /**
+     * A command and the callers waiting for it
+     */
+    private class SharedExecution implements Callable<String> {
+        private final Key key;
+        private final Execution execution;
+        private final CancellableWatchdog watchdog = new CancellableWatchdog();
+        private final FutureTask<String> task = new FutureTask<>(this);
+        // Guarded by this
+        private int waiters = 1;
+
+        SharedExecution(Key key, Execution execution) {
+            this.key = key;
+            this.execution = execution;
+        }
+
+        @Override
+        public String call() throws Exception {
+            try {
+                return execution.run(watchdog);
+            } finally {
+                inFlight.remove(key, this);
+            }
+        }
+
+        /**
+         * @return false if every caller has already left and the command is being killed
+         */
+        synchronized boolean join() {
+            if (waiters == 0) {
+                return false;
+            }
+            waiters++;
+            return true;
+        }
+
+        private synchronized void leave() {
+            waiters--;
+            if (waiters == 0 && !task.isDone()) {
+                inFlight.remove(key, this);
+                task.cancel(true);
+                watchdog.cancel();
+            }
+        }
+
+        String getOutput() throws IOException, SSHExecException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                leave();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a remote command");
+            } catch (CancellationException e) {
+                throw new InterruptedIOException("The remote command was cancelled");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof SSHExecException) {
+                    throw (SSHExecException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    @Override
+    public long getExecutionCount() {
+        return executions.get();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    @Override
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private static class Key {
+        private final String userName;
+        private final String host;
+        private final String command;
+
+        Key(String userName, String host, String command) {
+            this.userName = userName;
+            this.host = host;
+            this.command = command;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return userName.equals(other.userName) && host.equals(other.host) && command.equals(other.command);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = userName.hashCode();
+            result = 31 * result + host.hashCode();
+            result = 31 * result + command.hashCode();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package au.org.massive.strudel_web.job_control;
+
+/**
+ * Exposes how many remote commands the {@link TaskCoalescer} has saved through JMX
+ *
+ * @author jrigby
+ */
+public interface TaskCoalescerMXBean {
+
+    /**
+     * @return the number of commands that were run
+     */
+    long getExecutionCount();
+
+    /**
+     * @return the number of callers that shared an in-flight command instead of running their own
+     */
+    long getCoalescedCount();
+
+    int getInFlightCount();
+}
@@ -1,19 +1,15 @@
 package au.org.massive.strudel_web.job_control;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import org.apache.commons.lang3.text.StrSubstitutor;
+import org.apache.commons.exec.ExecuteWatchdog;
 
 import au.org.massive.strudel_web.util.RegexHelper;
 import au.org.massive.strudel_web.Session;
-import au.org.massive.strudel_web.ssh.ForkedSSHClient;
 import au.org.massive.strudel_web.ssh.SSHClient;
+import au.org.massive.strudel_web.ssh.SSHClientFactory;
 import au.org.massive.strudel_web.ssh.SSHExecException;
 
 /**
@@ -31,9 +27,8 @@ public class TaskFactory {
 
     public Task getInstance(String taskType, Session session, String remoteHost) throws IOException, NoSuchTaskTypeException {
         TaskParameters params = config.findByTaskType(taskType);
-        return new Task(new ForkedSSHClient(session.getCertificate(), remoteHost),
-                params.getCommandPattern(), params.getResultRegexPattern(), params.getDefaultParams(),
-                params.getRequiredParams());
+        return new Task(SSHClientFactory.getInstance(session.getCertificate(), remoteHost), taskType.toLowerCase(),
+                session.getCertificate().getUserName(), remoteHost, params);
     }
 
     public Task getInstance(String taskType, Session session) throws IOException, NoSuchTaskTypeException {
@@ -44,68 +39,168 @@ public class TaskFactory {
     public class Task {
 
         private final SSHClient sshClient;
-        private final String commandPattern;
-        private final String resultRegexPattern;
-        private final Map<String, String> defaultParams;
-        private final Set<String> requiredParams;
+        private final String taskType;
+        private final String userName;
+        private final String remoteHost;
+        private final TaskParameters params;
 
-        private Task(SSHClient sshClient, String commandPattern, String resultRegexPattern, Map<String, String> defaultParams, Set<String> requiredParams) {
+        private Task(SSHClient sshClient, String taskType, String userName, String remoteHost, TaskParameters params) {
             this.sshClient = sshClient;
-            this.commandPattern = commandPattern;
-            this.resultRegexPattern = resultRegexPattern;
-            this.defaultParams = defaultParams;
-            this.requiredParams = requiredParams;
+            this.taskType = taskType;
+            this.userName = userName;
+            this.remoteHost = remoteHost;
+            this.params = params;
+        }
+
+        public SSHClient getSSHClient() {
+            return sshClient;
+        }
+
+        public String getRemoteHost() {
+            return remoteHost;
         }
 
         public TaskResult<List<Map<String, String>>> run(Map<String, String> parameters) throws IOException, SSHExecException, MissingRequiredTaskParametersException {
-            String rawCmdResult = sshClient.exec(createCommand(commandPattern, parameters, defaultParams, requiredParams));
-            List<UserMessage> messages = config.getMessagesFromCommandOutput(rawCmdResult);
-            List<Map<String,String>> processedCmdResult = RegexHelper.processRegexForEachLine(resultRegexPattern, rawCmdResult);
-            return new TaskResult<>(messages, processedCmdResult);
+            return run(parameters, null);
         }
 
-        private String createCommand(String commandPattern, Map<String, String> params, Map<String, String> defaultParams, Set<String> requiredParams) throws MissingRequiredTaskParametersException {
-            if (requiredParams != null) {
-                // Verify all required parameters are present
-                Set<String> suppliedParams = new HashSet<>();
-                suppliedParams.addAll(params.keySet());
-                if (defaultParams != null) {
-                    suppliedParams.addAll(defaultParams.keySet());
-                }
-                if (!suppliedParams.containsAll(requiredParams)) {
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("The following parameters are required: ");
-                    Iterator<String> it = requiredParams.iterator();
-                    while (it.hasNext()) {
-                        sb.append(it.next());
-                        if (it.hasNext()) {
-                            sb.append(", ");
-                        }
-                    }
-                    throw new MissingRequiredTaskParametersException(sb.toString());
+        /**
+         * Runs this task, or answers it from the configuration's {@link SchedulerPoller} snapshot, or returns a
+         * result from {@link TaskResultCache} if the task is cacheable and an identical command ran recently
+         *
+         * @param parameters the task parameters
+         * @param watchdog   can be used to kill the remote command, unless it is shared with other callers, in which
+         *                   case interrupting the caller stops it waiting; may be null
+         * @return the task result
+         * @throws IOException thrown on errors running the SSH client
+         * @throws SSHExecException thrown if the remote command fails
+         * @throws MissingRequiredTaskParametersException thrown if a required parameter is missing
+         */
+        public TaskResult<List<Map<String, String>>> run(Map<String, String> parameters, ExecuteWatchdog watchdog) throws IOException, SSHExecException, MissingRequiredTaskParametersException {
+            String command = renderCommand(parameters);
+            TaskResult<List<Map<String, String>>> result = getPolledResult(parameters);
+            if (result != null) {
+                return result;
+            }
+            result = getCachedResult(command);
+            if (result != null) {
+                return result;
+            }
+            try {
+                result = processOutput(exec(command, watchdog));
+            } finally {
+                invalidateCachedResults();
+            }
+            cacheResult(command, result);
+            return result;
+        }
+
+        /**
+         * Runs the command. Cacheable tasks are read-only, so identical concurrent runs of them share one execution,
+         * which the watchdog does not control.
+         */
+        private String exec(final String command, final ExecuteWatchdog watchdog) throws IOException, SSHExecException {
+            if (params.getCacheTtlSeconds() <= 0) {
+                return sshClient.exec(command, watchdog);
+            }
+            return TaskCoalescer.getInstance().exec(userName, remoteHost, command, watchdog, new TaskCoalescer.Execution() {
+
+                @Override
+                public String run(ExecuteWatchdog sharedWatchdog) throws IOException, SSHExecException {
+                    return sshClient.exec(command, sharedWatchdog);
                 }
+
+            });
+        }
+
+        /**
+         * @param parameters the task parameters
+         * @return the result from the configuration's cluster-wide scheduler snapshot, or null if the configuration
+         * is not polled, the snapshot is stale, or this task cannot be answered from it
+         */
+        public TaskResult<List<Map<String, String>>> getPolledResult(Map<String, String> parameters) {
+            SchedulerPoller poller = SchedulerPollerManager.getPoller(config);
+            if (poller == null) {
+                return null;
             }
+            return poller.answer(taskType, userName, parameters);
+        }
 
-            // Replace user supplied parameters
-            StrSubstitutor sub = new StrSubstitutor(makeParamsSafe(params));
-            String result = sub.replace(commandPattern);
+        /**
+         * @param command the rendered command
+         * @return a cached result of the command, or null if there is none or this task is not cacheable
+         */
+        public TaskResult<List<Map<String, String>>> getCachedResult(String command) {
+            if (params.getCacheTtlSeconds() <= 0) {
+                return null;
+            }
+            return TaskResultCache.getInstance().get(userName, config, taskType, remoteHost, command);
+        }
 
-            if (defaultParams != null) {
-                // Fill in the rest with defaults
-                sub = new StrSubstitutor(makeParamsSafe(defaultParams));
-                return sub.replace(result);
-            } else {
-                return result;
+        /**
+         * Caches a result of this task if it is cacheable
+         *
+         * @param command the rendered command
+         * @param result  the result
+         */
+        public void cacheResult(String command, TaskResult<List<Map<String, String>>> result) {
+            if (params.getCacheTtlSeconds() > 0) {
+                TaskResultCache.getInstance().put(userName, config, taskType, remoteHost, command, result, params.getCacheTtlSeconds());
+            }
+        }
+
+        /**
+         * Discards the user's cached results for the tasks that this task invalidates, and stops answering them from
+         * the scheduler snapshot until it is next refreshed. Called once the task has run, whether or not it
+         * succeeded, since a failed command may still have changed the remote state.
+         */
+        public void invalidateCachedResults() {
+            TaskResultCache.getInstance().invalidate(userName, config, params.getInvalidates());
+            SchedulerPoller poller = SchedulerPollerManager.getPoller(config);
+            if (poller != null) {
+                poller.invalidate(userName, params.getInvalidates());
             }
         }
 
-        private Map<String, String> makeParamsSafe(Map<String, String> params) {
-            Map<String, String> safeValues = new HashMap<>();
-            for (String key : params.keySet()) {
-                String value = "'" + params.get(key).replace("'", "\\'") + "'";
-                safeValues.put(key, value);
+        /**
+         * Records a result of this task in {@link TaskResultHistory} and compares it with a version the client
+         * already holds
+         *
+         * @param parameters the task parameters
+         * @param since      the version the client holds, or null
+         * @param result     the result
+         * @return the comparison, or null if this task's rows have no identity group
+         * @throws MissingRequiredTaskParametersException thrown if a required parameter is missing
+         */
+        public TaskResultHistory.Comparison compareWithVersion(Map<String, String> parameters, String since, TaskResult<List<Map<String, String>>> result) throws MissingRequiredTaskParametersException {
+            if (params.getIdentityGroup() == null) {
+                return null;
             }
-            return safeValues;
+            return TaskResultHistory.getInstance().compare(userName, config, taskType, remoteHost, renderCommand(parameters),
+                    params.getIdentityGroup(), since, result.getCommandResult());
+        }
+
+        /**
+         * Renders the command for this task without running it
+         *
+         * @param parameters the task parameters
+         * @return the command
+         * @throws MissingRequiredTaskParametersException thrown if a required parameter is missing
+         */
+        public String renderCommand(Map<String, String> parameters) throws MissingRequiredTaskParametersException {
+            return params.getCommandTemplate().render(parameters);
+        }
+
+        /**
+         * Extracts user messages and results from the output of this task's command
+         *
+         * @param rawCmdResult the command output
+         * @return the task result
+         */
+        public TaskResult<List<Map<String, String>>> processOutput(String rawCmdResult) {
+            List<UserMessage> messages = config.getMessagesFromCommandOutput(rawCmdResult);
+            List<Map<String,String>> processedCmdResult = RegexHelper.processRegexForEachLine(params.getResultRegex(), params.getResultGroupNames(), rawCmdResult, false);
+            return new TaskResult<>(messages, processedCmdResult);
         }
     }
 }
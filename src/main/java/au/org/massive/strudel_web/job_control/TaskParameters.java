@@ -1,8 +1,11 @@
 package au.org.massive.strudel_web.job_control;
 
-import java.util.List;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
+
+import au.org.massive.strudel_web.util.RegexHelper;
 
 /**
  * Defines a particular job to execute on the remote host.
@@ -15,16 +18,60 @@ public class TaskParameters {
 	private final String resultRegexPattern;
 	private final Map<String,String> defaultParams;
 	private final Set<String> requiredParams;
+	private final int cacheTtlSeconds;
+	private final Set<String> invalidates;
+	private final String identityGroup;
+
+	// Compiled once when the configuration is loaded; transient to keep them out of the JSON configuration
+	private final transient CommandTemplate commandTemplate;
+	private final transient Pattern resultRegex;
+	private final transient String[] resultGroupNames;
 
+	/**
+	 * @throws java.util.regex.PatternSyntaxException if resultRegexPattern is not a valid regular expression
+	 */
 	public TaskParameters(String remoteHost, String commandPattern,
 						  String resultRegexPattern, Map<String, String> defaultParams,
 						  Set<String> requiredParams) {
+		this(remoteHost, commandPattern, resultRegexPattern, defaultParams, requiredParams, 0, Collections.<String>emptySet());
+	}
+
+	/**
+	 * @param cacheTtlSeconds how long a result of this task may be served from {@link TaskResultCache}; zero
+	 *                        disables caching. Only read-only tasks should be cached.
+	 * @param invalidates     names of tasks whose cached results are discarded when this task runs
+	 * @throws java.util.regex.PatternSyntaxException if resultRegexPattern is not a valid regular expression
+	 */
+	public TaskParameters(String remoteHost, String commandPattern,
+						  String resultRegexPattern, Map<String, String> defaultParams,
+						  Set<String> requiredParams, int cacheTtlSeconds, Set<String> invalidates) {
+		this(remoteHost, commandPattern, resultRegexPattern, defaultParams, requiredParams, cacheTtlSeconds, invalidates, null);
+	}
+
+	/**
+	 * @param cacheTtlSeconds how long a result of this task may be served from {@link TaskResultCache}; zero
+	 *                        disables caching. Only read-only tasks should be cached.
+	 * @param invalidates     names of tasks whose cached results are discarded when this task runs
+	 * @param identityGroup   the result group that identifies a row, such as "jobid", so that repeated runs can be
+	 *                        answered with the changes since a previous result; null if rows have no identity
+	 * @throws java.util.regex.PatternSyntaxException if resultRegexPattern is not a valid regular expression
+	 */
+	public TaskParameters(String remoteHost, String commandPattern,
+						  String resultRegexPattern, Map<String, String> defaultParams,
+						  Set<String> requiredParams, int cacheTtlSeconds, Set<String> invalidates,
+						  String identityGroup) {
 		super();
 		this.remoteHost = remoteHost;
 		this.commandPattern = commandPattern;
 		this.resultRegexPattern = resultRegexPattern;
 		this.defaultParams = defaultParams;
 		this.requiredParams = requiredParams;
+		this.cacheTtlSeconds = cacheTtlSeconds;
+		this.invalidates = invalidates;
+		this.identityGroup = identityGroup;
+		this.commandTemplate = new CommandTemplate(commandPattern, defaultParams, requiredParams);
+		this.resultRegex = Pattern.compile(resultRegexPattern);
+		this.resultGroupNames = RegexHelper.getNamedGroups(resultRegexPattern);
 	}
 	public String getRemoteHost() {
 		return remoteHost;
@@ -35,10 +82,28 @@ public class TaskParameters {
 	public String getResultRegexPattern() {
 		return resultRegexPattern;
 	}
+	public CommandTemplate getCommandTemplate() {
+		return commandTemplate;
+	}
+	public Pattern getResultRegex() {
+		return resultRegex;
+	}
+	public String[] getResultGroupNames() {
+		return resultGroupNames;
+	}
 	public Map<String,String> getDefaultParams() {
 		return defaultParams;
 	}
 	public Set<String> getRequiredParams() {
 		return requiredParams;
 	}
+	public int getCacheTtlSeconds() {
+		return cacheTtlSeconds;
+	}
+	public Set<String> getInvalidates() {
+		return invalidates;
+	}
+	public String getIdentityGroup() {
+		return identityGroup;
+	}
 }
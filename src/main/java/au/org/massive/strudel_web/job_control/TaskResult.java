@@ -1,9 +1,13 @@
 package au.org.massive.strudel_web.job_control;
 
+import au.org.massive.strudel_web.util.JsonHelper;
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Encapsulates both user messages and the processed command result
@@ -30,6 +34,26 @@ public class TaskResult<T> {
     }
 
     public String getCommandResultAsJson() {
-        return new Gson().toJson(getCommandResult());
+        return JsonHelper.getGson().toJson(getCommandResult());
+    }
+
+    /**
+     * Writes the command result as JSON without building the whole document in memory first
+     * @param out the destination; flushing and closing it is left to the caller
+     * @throws IOException thrown on errors writing to the destination
+     */
+    public void writeCommandResultAsJson(Writer out) throws IOException {
+        Gson gson = JsonHelper.getGson();
+        JsonWriter jsonWriter = new JsonWriter(out);
+        if (cmdResult == null) {
+            jsonWriter.nullValue();
+        } else {
+            try {
+                gson.toJson(cmdResult, cmdResult.getClass(), jsonWriter);
+            } catch (JsonIOException e) {
+                throw new IOException(e);
+            }
+        }
+        jsonWriter.flush();
     }
 }
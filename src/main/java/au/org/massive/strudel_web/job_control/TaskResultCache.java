@@ -0,0 +1,246 @@
+package au.org.massive.strudel_web.job_control;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.org.massive.strudel_web.Settings;
+
+/**
+ * Caches the results of read-only tasks per user, so that repeated identical requests do not each run a remote
+ * command. Entries are keyed on user, configuration, task, host and the rendered command, and expire after the
+ * task's {@link TaskParameters#getCacheTtlSeconds()}. The least recently used entry is evicted when the cache is
+ * full. Running a task discards the user's cached results for the tasks it {@link TaskParameters#getInvalidates()}.
+ * <p>
+ * Hit, miss, eviction and invalidation counts are published through JMX as
+ * "au.org.massive.strudel_web:type=TaskResultCache".
+ *
+ * @author jrigby
+ */
+public class TaskResultCache implements TaskResultCacheMXBean {
+
+    private final static Logger logger = LogManager.getLogger(TaskResultCache.class);
+
+    private static TaskResultCache instance;
+
+    private final int maxSize;
+    private final Map<Key, CachedResult> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    TaskResultCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+                if (size() > TaskResultCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+
+        };
+    }
+
+    public static synchronized TaskResultCache getInstance() {
+        if (instance == null) {
+            instance = new TaskResultCache(Settings.getInstance().getTaskCacheSize());
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName("au.org.massive.strudel_web:type=TaskResultCache"));
+            } catch (JMException e) {
+                logger.warn("Could not publish task cache statistics", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Discards the cache and unpublishes its statistics, if it was created
+     */
+    static synchronized void shutdown() {
+        if (instance == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName("au.org.massive.strudel_web:type=TaskResultCache"));
+        } catch (JMException e) {
+            logger.warn("Could not unpublish task cache statistics", e);
+        }
+        instance = null;
+    }
+
+    /**
+     * Gets a cached result
+     *
+     * @param userName      the user who ran the task
+     * @param configuration the configuration the task belongs to
+     * @param task          the task name
+     * @param host          the host the task ran on
+     * @param command       the rendered command
+     * @return the cached result, or null if there is none or it has expired
+     */
+    public TaskResult<List<Map<String, String>>> get(String userName, TaskConfiguration configuration, String task, String host, String command) {
+        Key key = new Key(userName, configuration, task, host, command);
+        synchronized (entries) {
+            CachedResult entry = entries.get(key);
+            if (entry != null && entry.expires > System.nanoTime()) {
+                hits.incrementAndGet();
+                return entry.result;
+            }
+            if (entry != null) {
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches a result. User messages are not cached, since they have already been delivered with the original
+     * result.
+     *
+     * @param userName      the user who ran the task
+     * @param configuration the configuration the task belongs to
+     * @param task          the task name
+     * @param host          the host the task ran on
+     * @param command       the rendered command
+     * @param result        the result
+     * @param ttlSeconds    how long the result may be served
+     */
+    public void put(String userName, TaskConfiguration configuration, String task, String host, String command,
+                    TaskResult<List<Map<String, String>>> result, int ttlSeconds) {
+        CachedResult entry = new CachedResult(new TaskResult<>(Collections.<UserMessage>emptyList(), result.getCommandResult()),
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        synchronized (entries) {
+            entries.put(new Key(userName, configuration, task, host, command), entry);
+        }
+    }
+
+    /**
+     * Discards a user's cached results for some tasks, on every host
+     *
+     * @param userName      the user
+     * @param configuration the configuration the tasks belong to
+     * @param tasks         the task names
+     */
+    public void invalidate(String userName, TaskConfiguration configuration, Set<String> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        synchronized (entries) {
+            // Invalidating tasks are rare, so a scan is cheaper than maintaining a per-user index
+            for (Iterator<Key> it = entries.keySet().iterator(); it.hasNext(); ) {
+                Key key = it.next();
+                if (key.configuration == configuration && key.userName.equals(userName) && tasks.contains(key.task)) {
+                    it.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    private static class CachedResult {
+        private final TaskResult<List<Map<String, String>>> result;
+        private final long expires;
+
+        CachedResult(TaskResult<List<Map<String, String>>> result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Configurations are loaded once and never replaced, so they are compared by identity
+     */
+    private static class Key {
+        private final String userName;
+        private final TaskConfiguration configuration;
+        private final String task;
+        private final String host;
+        private final String command;
+
+        Key(String userName, TaskConfiguration configuration, String task, String host, String command) {
+            this.userName = userName;
+            this.configuration = configuration;
+            this.task = task;
+            this.host = host;
+            this.command = command;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return configuration == other.configuration
+                    && userName.equals(other.userName)
+                    && task.equals(other.task)
+                    && host.equals(other.host)
+                    && command.equals(other.command);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = userName.hashCode();
+            result = 31 * result + System.identityHashCode(configuration);
+            result = 31 * result + task.hashCode();
+            result = 31 * result + host.hashCode();
+            result = 31 * result + command.hashCode();
+            return result;
+        }
+    }
+}
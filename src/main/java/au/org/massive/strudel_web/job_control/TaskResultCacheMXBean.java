@@ -0,0 +1,21 @@
+package au.org.massive.strudel_web.job_control;
+
+/**
+ * Exposes the effectiveness of the {@link TaskResultCache} through JMX
+ *
+ * @author jrigby
+ */
+public interface TaskResultCacheMXBean {
+
+    int getSize();
+
+    int getMaxSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getEvictionCount();
+
+    long getInvalidationCount();
+}
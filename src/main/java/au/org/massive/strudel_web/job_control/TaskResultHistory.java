@@ -0,0 +1,324 @@
+package au.org.massive.strudel_web.job_control;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.org.massive.strudel_web.Settings;
+import au.org.massive.strudel_web.util.JsonHelper;
+
+/**
+ * Keeps the last few results of each user's tasks, so that a client polling a task can be told that nothing has
+ * changed, or be sent only the rows that changed since the version it holds. A version is a hash of the result, so
+ * an unchanged result is recognised even after its history has been evicted.
+ * <p>
+ * Results are kept per user, configuration, task, host and rendered command. The least recently used command is
+ * evicted when the history is full. Counts of full, delta and not-modified responses are published through JMX as
+ * "au.org.massive.strudel_web:type=TaskResultHistory".
+ *
+ * @author jrigby
+ */
+public class TaskResultHistory implements TaskResultHistoryMXBean {
+
+    private final static Logger logger = LogManager.getLogger(TaskResultHistory.class);
+
+    // Enough for a few tabs polling the same task to each receive deltas
+    private static final int VERSIONS_PER_COMMAND = 4;
+
+    private static TaskResultHistory instance;
+
+    private final int maxSize;
+    private final Map<Key, Map<String, List<Map<String, String>>>> entries;
+    private final AtomicLong full = new AtomicLong();
+    private final AtomicLong deltas = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+
+    TaskResultHistory(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key, Map<String, List<Map<String, String>>>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Map<String, List<Map<String, String>>>> eldest) {
+                return size() > TaskResultHistory.this.maxSize;
+            }
+
+        };
+    }
+
+    public static synchronized TaskResultHistory getInstance() {
+        if (instance == null) {
+            instance = new TaskResultHistory(Settings.getInstance().getTaskHistorySize());
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName("au.org.massive.strudel_web:type=TaskResultHistory"));
+            } catch (JMException e) {
+                logger.warn("Could not publish task history statistics", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Discards the history and unpublishes its statistics, if it was created
+     */
+    static synchronized void shutdown() {
+        if (instance == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName("au.org.massive.strudel_web:type=TaskResultHistory"));
+        } catch (JMException e) {
+            logger.warn("Could not unpublish task history statistics", e);
+        }
+        instance = null;
+    }
+
+    /**
+     * Records a result and compares it with the version a client already holds
+     *
+     * @param userName      the user who ran the task
+     * @param configuration the configuration the task belongs to
+     * @param task          the task name
+     * @param host          the host the task ran on
+     * @param command       the rendered command
+     * @param identityGroup the result group that identifies a row
+     * @param since         the version the client holds, or null
+     * @param rows          the new result
+     * @return the comparison
+     */
+    public Comparison compare(String userName, TaskConfiguration configuration, String task, String host, String command,
+                              String identityGroup, String since, List<Map<String, String>> rows) {
+        String version = getVersion(rows);
+        if (version.equals(since)) {
+            notModified.incrementAndGet();
+            return new Comparison(version, true, null);
+        }
+
+        Key key = new Key(userName, configuration, task, host, command);
+        List<Map<String, String>> previous = null;
+        synchronized (entries) {
+            Map<String, List<Map<String, String>>> versions = entries.get(key);
+            if (versions == null) {
+                versions = new LinkedHashMap<String, List<Map<String, String>>>() {
+
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, List<Map<String, String>>> eldest) {
+                        return size() > VERSIONS_PER_COMMAND;
+                    }
+
+                };
+                entries.put(key, versions);
+            }
+            if (since != null) {
+                previous = versions.get(since);
+            }
+            versions.put(version, rows);
+        }
+
+        Delta delta = previous == null ? null : Delta.between(previous, rows, identityGroup, version);
+        if (delta == null) {
+            full.incrementAndGet();
+        } else {
+            deltas.incrementAndGet();
+        }
+        return new Comparison(version, false, delta);
+    }
+
+    /**
+     * @param rows a result
+     * @return the SHA-1 of the result's JSON, hashed as it is written rather than built as a string first
+     */
+    static String getVersion(List<Map<String, String>> rows) {
+        final MessageDigest digest = DigestUtils.getSha1Digest();
+        try (Writer writer = new OutputStreamWriter(new OutputStream() {
+
+            @Override
+            public void write(int b) {
+                digest.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                digest.update(b, off, len);
+            }
+
+        }, StandardCharsets.UTF_8)) {
+            JsonHelper.getGson().toJson(rows, writer);
+        } catch (IOException e) {
+            // Not thrown by the digest
+            throw new RuntimeException(e);
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public long getFullCount() {
+        return full.get();
+    }
+
+    @Override
+    public long getDeltaCount() {
+        return deltas.get();
+    }
+
+    @Override
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    /**
+     * The outcome of {@link #compare}: the result is unchanged, or it can be sent as a delta, or it must be sent in
+     * full
+     */
+    public static class Comparison {
+        private final String version;
+        private final boolean notModified;
+        private final Delta delta;
+
+        private Comparison(String version, boolean notModified, Delta delta) {
+            this.version = version;
+            this.notModified = notModified;
+            this.delta = delta;
+        }
+
+        /**
+         * @return the version of the new result, which the client sends back to receive deltas
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        public boolean isNotModified() {
+            return notModified;
+        }
+
+        /**
+         * @return the changes since the client's version, or null if the result must be sent in full
+         */
+        public Delta getDelta() {
+            return delta;
+        }
+    }
+
+    /**
+     * The rows added, changed and removed between two results, as sent to the client
+     */
+    public static class Delta {
+        private final String version;
+        private final List<Map<String, String>> added = new ArrayList<>();
+        private final List<Map<String, String>> changed = new ArrayList<>();
+        private final List<String> removed = new ArrayList<>();
+
+        private Delta(String version) {
+            this.version = version;
+        }
+
+        /**
+         * @return the delta, or null if a row has no identity, or two rows share one
+         */
+        private static Delta between(List<Map<String, String>> previous, List<Map<String, String>> current, String identityGroup, String version) {
+            Map<String, Map<String, String>> previousById = new HashMap<>(previous.size() * 2);
+            for (Map<String, String> row : previous) {
+                String id = row.get(identityGroup);
+                if (id == null || previousById.put(id, row) != null) {
+                    return null;
+                }
+            }
+
+            Delta delta = new Delta(version);
+            Map<String, Boolean> seen = new HashMap<>(current.size() * 2);
+            for (Map<String, String> row : current) {
+                String id = row.get(identityGroup);
+                if (id == null || seen.put(id, Boolean.TRUE) != null) {
+                    return null;
+                }
+                Map<String, String> old = previousById.remove(id);
+                if (old == null) {
+                    delta.added.add(row);
+                } else if (!old.equals(row)) {
+                    delta.changed.add(row);
+                }
+            }
+            delta.removed.addAll(previousById.keySet());
+            return delta;
+        }
+    }
+
+    /**
+     * Configurations are loaded once and never replaced, so they are compared by identity
+     */
+    private static class Key {
+        private final String userName;
+        private final TaskConfiguration configuration;
+        private final String task;
+        private final String host;
+        private final String command;
+
+        Key(String userName, TaskConfiguration configuration, String task, String host, String command) {
+            this.userName = userName;
+            this.configuration = configuration;
+            this.task = task;
+            this.host = host;
+            this.command = command;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return configuration == other.configuration
+                    && userName.equals(other.userName)
+                    && task.equals(other.task)
+                    && host.equals(other.host)
+                    && command.equals(other.command);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = userName.hashCode();
+            result = 31 * result + System.identityHashCode(configuration);
+            result = 31 * result + task.hashCode();
+            result = 31 * result + host.hashCode();
+            result = 31 * result + command.hashCode();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package au.org.massive.strudel_web.job_control;
+
+/**
+ * Exposes how often polled task results are sent in full, as deltas, or not at all through JMX
+ *
+ * @author jrigby
+ */
+public interface TaskResultHistoryMXBean {
+
+    int getSize();
+
+    int getMaxSize();
+
+    long getFullCount();
+
+    long getDeltaCount();
+
+    long getNotModifiedCount();
+}
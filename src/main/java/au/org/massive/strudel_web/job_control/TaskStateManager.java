@@ -0,0 +1,25 @@
+package au.org.massive.strudel_web.job_control;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * A servlet listener that discards the state shared between task requests when the application stops, and
+ * unpublishes its JMX statistics so that a redeployed application can publish its own
+ *
+ * @author jrigby
+ */
+public class TaskStateManager implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        // The shared state is created on first use
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        TaskResultCache.shutdown();
+        TaskCoalescer.shutdown();
+        TaskResultHistory.shutdown();
+    }
+}
@@ -0,0 +1,225 @@
+package au.org.massive.strudel_web.job_control;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import au.org.massive.strudel_web.AsyncTasks;
+import au.org.massive.strudel_web.Session;
+import au.org.massive.strudel_web.ssh.SSHExecException;
+
+/**
+ * A chain of tasks that runs on the server, such as the lookups needed to connect to a desktop. Each step runs a
+ * task of the configuration, and the groups of the first row of its result become parameters of later steps.
+ * <p>
+ * A step depends on the earlier steps whose result groups provide its required parameters or its host, and on any
+ * steps it names in "after". Steps run as soon as their dependencies have finished, so independent steps run in
+ * parallel on the command pool.
+ *
+ * @author jrigby
+ */
+public class TaskWorkflow {
+
+    private final List<Step> steps;
+
+    /**
+     * @param configuration the configuration the tasks belong to
+     * @param steps         the steps, in an order where each step only depends on earlier ones
+     * @throws NoSuchTaskTypeException thrown if a step names a task the configuration does not have
+     * @throws IllegalArgumentException thrown if a step is after a step that is not declared before it, or runs on
+     *                                  the execution host without a host parameter
+     */
+    TaskWorkflow(TaskConfiguration configuration, List<Step> steps) throws NoSuchTaskTypeException {
+        this.steps = steps;
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            TaskParameters params = configuration.findByTaskType(step.task);
+            if (params.getRemoteHost().isEmpty() && step.hostParameter == null) {
+                throw new IllegalArgumentException("Step '" + step.task + "' requires a 'host' parameter");
+            }
+
+            Set<String> needed = new HashSet<>(params.getRequiredParams());
+            needed.removeAll(params.getDefaultParams().keySet());
+            if (step.hostParameter != null) {
+                needed.add(step.hostParameter);
+            }
+            for (int j = i - 1; j >= 0; j--) {
+                Step earlier = steps.get(j);
+                List<String> provided = Arrays.asList(configuration.findByTaskType(earlier.task).getResultGroupNames());
+                if (step.after.contains(earlier.task) || needed.removeAll(provided)) {
+                    step.dependencies.add(j);
+                }
+            }
+            for (String after : step.after) {
+                boolean declared = false;
+                for (int j = 0; j < i; j++) {
+                    declared |= steps.get(j).task.equals(after);
+                }
+                if (!declared) {
+                    throw new IllegalArgumentException("Step '" + step.task + "' is after '" + after + "', which is not an earlier step");
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the workflow for a session
+     *
+     * @param configuration the configuration the tasks belong to
+     * @param session       the session, which must have a certificate
+     * @param parameters    the initial parameters
+     * @return the initial parameters and every value produced by the steps, with the user messages of all steps
+     * @throws IOException              thrown on errors running the SSH client, or if interrupted
+     * @throws SSHExecException         thrown if a remote command fails
+     * @throws NoSuchTaskTypeException  thrown if a task has been removed from the configuration
+     * @throws MissingRequiredTaskParametersException thrown if a step is missing a required parameter
+     * @throws TaskWorkflowException    thrown if a step returns no result
+     */
+    public TaskResult<Map<String, String>> run(TaskConfiguration configuration, final Session session, Map<String, String> parameters)
+            throws IOException, SSHExecException, NoSuchTaskTypeException, MissingRequiredTaskParametersException, TaskWorkflowException {
+        final TaskFactory taskFactory = new TaskFactory(configuration);
+        final Map<String, String> values = new HashMap<>(parameters);
+        final List<UserMessage> messages = new LinkedList<>();
+        final BlockingQueue<Integer> finished = new LinkedBlockingQueue<>();
+        List<Future<TaskResult<List<Map<String, String>>>>> futures = new ArrayList<>(steps.size());
+        boolean[] done = new boolean[steps.size()];
+        int doneCount = 0;
+
+        for (int i = 0; i < steps.size(); i++) {
+            futures.add(null);
+        }
+        try {
+            while (doneCount < steps.size()) {
+                for (int i = 0; i < steps.size(); i++) {
+                    if (futures.get(i) == null && isReady(steps.get(i), done)) {
+                        futures.set(i, submit(taskFactory, session, i, new HashMap<>(values), finished));
+                    }
+                }
+
+                int i = finished.take();
+                done[i] = true;
+                doneCount++;
+                TaskResult<List<Map<String, String>>> result = getResult(futures.get(i));
+                messages.addAll(result.getUserMessages());
+                if (result.getCommandResult().isEmpty()) {
+                    throw new TaskWorkflowException("Step '" + steps.get(i).task + "' returned no result");
+                }
+                values.putAll(result.getCommandResult().get(0));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while running a workflow");
+        } finally {
+            for (Future<?> f : futures) {
+                if (f != null) {
+                    f.cancel(true);
+                }
+            }
+        }
+        return new TaskResult<>(messages, values);
+    }
+
+    /**
+     * @param step the index of a step
+     * @return the indexes of the steps that must finish before it
+     */
+    List<Integer> getDependencies(int step) {
+        return steps.get(step).dependencies;
+    }
+
+    private static boolean isReady(Step step, boolean[] done) {
+        for (int dependency : step.dependencies) {
+            if (!done[dependency]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Future<TaskResult<List<Map<String, String>>>> submit(final TaskFactory taskFactory, final Session session, final int i,
+                                                                 final Map<String, String> values, final BlockingQueue<Integer> finished) {
+        final Step step = steps.get(i);
+        return AsyncTasks.getCommandPool().submit(new Callable<TaskResult<List<Map<String, String>>>>() {
+
+            @Override
+            public TaskResult<List<Map<String, String>>> call() throws Exception {
+                try {
+                    TaskFactory.Task task;
+                    if (step.hostParameter == null) {
+                        task = taskFactory.getInstance(step.task, session);
+                    } else {
+                        String host = values.get(step.hostParameter);
+                        if (host == null) {
+                            throw new MissingRequiredTaskParametersException("Step '" + step.task + "' requires the host '" + step.hostParameter + "'");
+                        }
+                        task = taskFactory.getInstance(step.task, session, host);
+                    }
+                    return task.run(values);
+                } finally {
+                    finished.add(i);
+                }
+            }
+
+        });
+    }
+
+    private static TaskResult<List<Map<String, String>>> getResult(Future<TaskResult<List<Map<String, String>>>> future)
+            throws IOException, SSHExecException, NoSuchTaskTypeException, MissingRequiredTaskParametersException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SSHExecException) {
+                throw (SSHExecException) cause;
+            } else if (cause instanceof NoSuchTaskTypeException) {
+                throw (NoSuchTaskTypeException) cause;
+            } else if (cause instanceof MissingRequiredTaskParametersException) {
+                throw (MissingRequiredTaskParametersException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * A step of a workflow, as read from the "steps" of a workflow in the JSON configuration
+     */
+    public static class Step {
+        private final String task;
+        private final String hostParameter;
+        private final Set<String> after;
+        private final List<Integer> dependencies = new ArrayList<>();
+
+        /**
+         * @param task          the task to run
+         * @param hostParameter the parameter holding the host to run the task on, or null for the task's host
+         * @param after         tasks of earlier steps that must finish first, in addition to those inferred
+         */
+        public Step(String task, String hostParameter, Collection<String> after) {
+            this.task = task.toLowerCase();
+            this.hostParameter = hostParameter;
+            this.after = new HashSet<>();
+            for (String a : after) {
+                this.after.add(a.toLowerCase());
+            }
+        }
+    }
+}
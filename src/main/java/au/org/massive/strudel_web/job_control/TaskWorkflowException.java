@@ -0,0 +1,20 @@
+package au.org.massive.strudel_web.job_control;
+
+/**
+ * Thrown if a step of a {@link TaskWorkflow} does not produce the values that later steps need
+ *
+ * @author jrigby
+ */
+public class TaskWorkflowException extends Exception {
+
+    private static final long serialVersionUID = 2861526640373046128L;
+
+    public TaskWorkflowException(String message) {
+        super(message);
+    }
+
+    public TaskWorkflowException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
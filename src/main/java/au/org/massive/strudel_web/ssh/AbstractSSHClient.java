@@ -2,13 +2,13 @@ package au.org.massive.strudel_web.ssh;
 
 import java.io.IOException;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.exec.DefaultExecutor;
 import org.apache.commons.exec.ExecuteWatchdog;
 import org.apache.commons.exec.Executor;
 
 import au.org.massive.strudel_web.AsyncTasks;
+import au.org.massive.strudel_web.ExecutorPool;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -42,8 +42,8 @@ public abstract class AbstractSSHClient implements SSHClient {
         return exec;
     }
 
-    protected ExecutorService getExecutorService() {
-        return AsyncTasks.getExecutorService();
+    protected ExecutorPool getExecutorPool() {
+        return AsyncTasks.getCommandPool();
     }
 
     protected CertAuthInfo getAuthInfo() {
@@ -68,8 +68,8 @@ public abstract class AbstractSSHClient implements SSHClient {
 
     @Override
     public AsyncCommand<String> execAsync(final String remoteCommands) {
-        final ExecuteWatchdog watchdog = new ExecuteWatchdog(ExecuteWatchdog.INFINITE_TIMEOUT);
-        return new AsyncCommand<>(watchdog, getExecutorService().submit(new Callable<String>() {
+        final CancellableWatchdog watchdog = new CancellableWatchdog();
+        return new AsyncCommand<>(watchdog, getExecutorPool().submit(new Callable<String>() {
 
             @Override
             public String call() throws Exception {
@@ -0,0 +1,38 @@
+package au.org.massive.strudel_web.ssh;
+
+import org.apache.commons.exec.ExecuteWatchdog;
+
+/**
+ * A watchdog without a timeout that can be cancelled before its process has started.
+ * {@link ExecuteWatchdog#destroyProcess()} waits for a process to be started, so it cannot be called directly by a
+ * cancelling thread; a process started after {@link #cancel()} is killed as soon as it starts.
+ *
+ * @author jrigby
+ */
+public class CancellableWatchdog extends ExecuteWatchdog {
+    private boolean started = false;
+    private boolean cancelled = false;
+
+    public CancellableWatchdog() {
+        super(ExecuteWatchdog.INFINITE_TIMEOUT);
+    }
+
+    @Override
+    public synchronized void start(Process process) {
+        super.start(process);
+        started = true;
+        if (cancelled) {
+            destroyProcess();
+        }
+    }
+
+    /**
+     * Kills the process, now if it has started or otherwise as soon as it starts
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if (started) {
+            destroyProcess();
+        }
+    }
+}
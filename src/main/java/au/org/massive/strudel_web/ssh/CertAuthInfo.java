@@ -1,7 +1,12 @@
 package au.org.massive.strudel_web.ssh;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.codec.binary.Base64;
+
 /**
  * Contains certificate details for SSH auth
  *
@@ -12,6 +17,7 @@ public class CertAuthInfo {
     private final String certificate;
     private final String privateKey;
     private final Long createdTime;
+    private final Long validBefore;
 
     public CertAuthInfo(String userName, String certificate, String privateKey) {
         super();
@@ -19,6 +25,64 @@ public class CertAuthInfo {
         this.certificate = certificate;
         this.privateKey = privateKey;
         createdTime = System.currentTimeMillis();
+        validBefore = parseValidBefore(certificate);
+    }
+
+    /**
+     * Reads the "valid before" field of an OpenSSH certificate, which follows the public key, serial, type, key id,
+     * principals and "valid after" fields of the certificate blob
+     *
+     * @param certificate the certificate in authorized_keys format
+     * @return the end of the validity period in milliseconds since the epoch, or null if the certificate never
+     * expires or cannot be read
+     */
+    static Long parseValidBefore(String certificate) {
+        if (certificate == null) {
+            return null;
+        }
+        String[] fields = certificate.trim().split("\\s+");
+        if (fields.length < 2) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.decodeBase64(fields[1])))) {
+            String type = new String(readString(in), "US-ASCII");
+            int keyFields;
+            if (type.startsWith("ssh-rsa-cert-") || type.startsWith("ecdsa-sha2-")) {
+                keyFields = 2; // e and n, or the curve and point
+            } else if (type.startsWith("ssh-ed25519-cert-")) {
+                keyFields = 1;
+            } else if (type.startsWith("ssh-dss-cert-")) {
+                keyFields = 4;
+            } else {
+                return null;
+            }
+            readString(in); // nonce
+            for (int i = 0; i < keyFields; i++) {
+                readString(in);
+            }
+            in.readLong(); // serial
+            in.readInt(); // type
+            readString(in); // key id
+            readString(in); // valid principals
+            in.readLong(); // valid after
+            long validBefore = in.readLong(); // unsigned seconds; all bits set means forever
+            if (validBefore < 0) {
+                return null;
+            }
+            return TimeUnit.SECONDS.toMillis(validBefore);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Malformed certificate");
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
     }
 
     public String getUserName() {
@@ -37,6 +101,22 @@ public class CertAuthInfo {
         return createdTime;
     }
 
+    /**
+     * @return the end of the certificate's validity period in milliseconds since the epoch, or null if it never
+     * expires or could not be read
+     */
+    public Long getValidBefore() {
+        return validBefore;
+    }
+
+    /**
+     * @return the time until the certificate expires in milliseconds, or null if it never expires or could not be
+     * read
+     */
+    public Long timeUntilExpiry() {
+        return validBefore == null ? null : validBefore - System.currentTimeMillis();
+    }
+
     public Long timeSinceCreated() {
         return System.currentTimeMillis() - getCreatedTime();
     }
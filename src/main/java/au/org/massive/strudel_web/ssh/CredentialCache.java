@@ -0,0 +1,193 @@
+package au.org.massive.strudel_web.ssh;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Writes the private key and certificate of a {@link CertAuthInfo} to disk once, for use by forked ssh processes.
+ * Files are reference counted across concurrent commands and wiped once the certificate has been retired
+ * (replaced or its session ended) and the last command using them has finished. A tmpfs location such as
+ * /dev/shm is preferred so that keys never reach persistent storage. {@link CredentialCacheManager} wipes every
+ * file when the application stops.
+ *
+ * @author jrigby
+ */
+public class CredentialCache {
+
+    private final static Logger logger = LogManager.getLogger(CredentialCache.class);
+
+    private static final Path baseDirectory = findBaseDirectory();
+
+    private static final Map<CertAuthInfo, CertFiles> cache = new HashMap<>();
+    private static final Set<CertAuthInfo> retired = Collections.newSetFromMap(new WeakHashMap<CertAuthInfo, Boolean>());
+    // Every directory on disk, including those of retired certificates that are still in use
+    private static final Set<CertFiles> onDisk = new HashSet<>();
+
+    private CredentialCache() {
+
+    }
+
+    private static Path findBaseDirectory() {
+        File shm = new File("/dev/shm");
+        if (shm.isDirectory() && shm.canWrite()) {
+            return shm.toPath();
+        }
+        return Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Gets the key files for a certificate, writing them to disk if this is the first user. The caller must
+     * close the returned object when the files are no longer needed.
+     *
+     * @param authInfo the certificate details
+     * @return the key files
+     * @throws IOException thrown on errors writing the files
+     */
+    public static synchronized CertFiles acquire(CertAuthInfo authInfo) throws IOException {
+        CertFiles certFiles = cache.get(authInfo);
+        if (certFiles == null) {
+            certFiles = new CertFiles(authInfo);
+            onDisk.add(certFiles);
+            if (retired.contains(authInfo)) {
+                // A late command for a retired certificate; the files go as soon as it finishes
+                certFiles.retired = true;
+            } else {
+                cache.put(authInfo, certFiles);
+            }
+        }
+        certFiles.referenceCount++;
+        return certFiles;
+    }
+
+    private static synchronized void release(CertFiles certFiles) {
+        certFiles.referenceCount--;
+        if (certFiles.retired && certFiles.referenceCount == 0) {
+            certFiles.delete();
+        }
+    }
+
+    /**
+     * Wipes the key files of a certificate that is no longer in use, e.g. because it was replaced or its session
+     * ended. Files still in use by running commands are wiped when the last of them finishes.
+     *
+     * @param authInfo the certificate details
+     */
+    public static synchronized void retire(CertAuthInfo authInfo) {
+        retired.add(authInfo);
+        CertFiles certFiles = cache.remove(authInfo);
+        if (certFiles != null) {
+            certFiles.retired = true;
+            if (certFiles.referenceCount == 0) {
+                certFiles.delete();
+            }
+        }
+    }
+
+    /**
+     * Wipes the key files of every certificate, including any still in use. Called when the application stops,
+     * after the processes that could be using them have been stopped.
+     */
+    static synchronized void deleteAll() {
+        for (CertFiles certFiles : onDisk) {
+            certFiles.retired = true;
+            certFiles.deleteFiles();
+        }
+        onDisk.clear();
+        cache.clear();
+    }
+
+    /**
+     * @return the number of credential directories currently on disk
+     */
+    public static synchronized int getLiveDirectoryCount() {
+        return onDisk.size();
+    }
+
+    /**
+     * @return the number of certificates whose files are cached for reuse
+     */
+    public static synchronized int getCachedCertificateCount() {
+        return cache.size();
+    }
+
+    /**
+     * The private key and certificate files of one {@link CertAuthInfo}. Closing this object releases the
+     * caller's reference to the files.
+     */
+    public static class CertFiles implements Closeable {
+        private final File tempDirectory;
+        private final File privKeyFile;
+        private final File certFile;
+        private int referenceCount = 0;
+        private boolean retired = false;
+
+        private CertFiles(CertAuthInfo authInfo) throws IOException {
+            Path tempDirectoryPath = Files.createTempDirectory(baseDirectory, "ssh-authz-" + authInfo.getUserName(),
+                    PosixFilePermissions.asFileAttribute(EnumSet.of(
+                            PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE)));
+            tempDirectory = tempDirectoryPath.toFile();
+            // ssh finds the certificate next to the key, and names both after the key type by convention
+            String keyName = authInfo.getCertificate().startsWith("ssh-ed25519") ? "id_ed25519" : "id_rsa";
+            privKeyFile = tempDirectoryPath.resolve(keyName).toFile();
+            certFile = tempDirectoryPath.resolve(keyName + "-cert.pub").toFile();
+
+            try {
+                writeFile(privKeyFile.toPath(), authInfo.getPrivateKey());
+                writeFile(certFile.toPath(), authInfo.getCertificate());
+                Files.setPosixFilePermissions(privKeyFile.toPath(), EnumSet.of(PosixFilePermission.OWNER_READ));
+            } catch (IOException e) {
+                deleteFiles();
+                throw e;
+            }
+        }
+
+        private static void writeFile(Path path, String contents) throws IOException {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(EnumSet.of(
+                    PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+            Files.write(path, (contents + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        public File getPrivKeyFile() {
+            return privKeyFile;
+        }
+
+        public File getCertFile() {
+            return certFile;
+        }
+
+        private void delete() {
+            deleteFiles();
+            onDisk.remove(this);
+        }
+
+        private void deleteFiles() {
+            if (privKeyFile.exists() && !privKeyFile.delete()) {
+                logger.error("Could not delete private key file " + privKeyFile.getAbsolutePath());
+            }
+            certFile.delete();
+            tempDirectory.delete();
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package au.org.massive.strudel_web.ssh;
+
+/**
+ * Exposes the key files held on disk by the {@link CredentialCache} through JMX
+ *
+ * @author jrigby
+ */
+public interface CredentialCacheMXBean {
+
+    int getLiveDirectoryCount();
+
+    int getCachedCertificateCount();
+}
@@ -0,0 +1,61 @@
+package au.org.massive.strudel_web.ssh;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A servlet listener that publishes {@link CredentialCache} statistics through JMX as
+ * "au.org.massive.strudel_web:type=CredentialCache", and wipes every cached key file when the application stops so
+ * that private keys do not outlive it in /dev/shm or the temporary directory
+ *
+ * @author jrigby
+ */
+public class CredentialCacheManager implements ServletContextListener {
+
+    private final static Logger logger = LogManager.getLogger(CredentialCacheManager.class);
+
+    private ObjectName objectName;
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        try {
+            objectName = new ObjectName("au.org.massive.strudel_web:type=CredentialCache");
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new CredentialCacheMXBean() {
+
+                @Override
+                public int getLiveDirectoryCount() {
+                    return CredentialCache.getLiveDirectoryCount();
+                }
+
+                @Override
+                public int getCachedCertificateCount() {
+                    return CredentialCache.getCachedCertificateCount();
+                }
+
+            }, objectName);
+        } catch (JMException e) {
+            logger.warn("Could not publish credential cache statistics", e);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        CredentialCache.deleteAll();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                logger.warn("Could not unpublish credential cache statistics", e);
+            }
+            objectName = null;
+        }
+    }
+}
@@ -2,19 +2,16 @@ package au.org.massive.strudel_web.ssh;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.ServerSocket;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.attribute.PosixFilePermission;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.ExecuteException;
@@ -24,10 +21,17 @@ import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import au.org.massive.strudel_web.AsyncTasks;
+import au.org.massive.strudel_web.PoolSaturatedException;
+import au.org.massive.strudel_web.Settings;
+
 /**
  * A non-native SSH client implmentation that forks SSH processes for each request.
- * Depends on an SSH binary in the search path. Certificates are written to disk at the beginning of each command
- * and deleted upon command completion.
+ * Depends on an SSH binary in the search path. Certificates are written to disk by {@link CredentialCache} the
+ * first time they are used, and deleted once the certificate is retired.
+ * <p>
+ * In multiplexed mode, commands and tunnels are instead routed through a per-user {@link SSHControlMaster}, so
+ * each forked process reuses the master's authenticated connection.
  *
  * @author jrigby
  */
@@ -35,59 +39,32 @@ public class ForkedSSHClient extends AbstractSSHClient {
 
     private final static Logger logger = LogManager.getLogger(ForkedSSHClient.class);
     private final CertAuthInfo authInfo;
+    private final boolean multiplexed;
 
     public ForkedSSHClient(CertAuthInfo authInfo, String remoteHost) {
-        super(authInfo, remoteHost);
-        this.authInfo = authInfo;
+        this(authInfo, remoteHost, "localhost");
     }
 
     public ForkedSSHClient(CertAuthInfo authInfo, String viaGateway, String remoteHost) {
+        this(authInfo, viaGateway, remoteHost, false);
+    }
+
+    public ForkedSSHClient(CertAuthInfo authInfo, String viaGateway, String remoteHost, boolean multiplexed) {
         super(authInfo, viaGateway, remoteHost);
         this.authInfo = authInfo;
+        this.multiplexed = multiplexed;
     }
 
-    private class CertFiles implements Closeable {
-        private final File tempDirectory;
-        private final File privKeyFile;
-        private final File certFile;
-
-        public CertFiles(CertAuthInfo authInfo) throws IOException {
-            super();
-            Path tempDirectoryPath = Files.createTempDirectory("ssh-authz-" + authInfo.getUserName());
-            privKeyFile = tempDirectoryPath.resolve("id_rsa").toFile();
-            privKeyFile.createNewFile();
-            certFile = tempDirectoryPath.resolve("id_rsa-cert.pub").toFile();
-            tempDirectory = tempDirectoryPath.toFile();
-            certFile.createNewFile();
-
-            PrintWriter out = new PrintWriter(privKeyFile);
-            out.println(authInfo.getPrivateKey());
-            out.close();
-
-            out = new PrintWriter(certFile);
-            out.println(authInfo.getCertificate());
-            out.close();
-
-            Set<PosixFilePermission> perms = new HashSet<>();
-            perms.add(PosixFilePermission.OWNER_READ);
-            Files.setPosixFilePermissions(privKeyFile.toPath(), perms);
-        }
-
-        public File getPrivKeyFile() {
-            return privKeyFile;
-        }
-
-        @SuppressWarnings("unused")
-        public File getCertFile() {
-            return certFile;
-        }
-
-        @Override
-        public void close() throws IOException {
-            privKeyFile.delete();
-            certFile.delete();
-            tempDirectory.delete();
+    /**
+     * @return the options that make an ssh process refuse hosts whose key is not in the configured known_hosts file,
+     * or accept any host key if checking has been disabled
+     */
+    static List<String> getHostKeyOptions() {
+        Settings settings = Settings.getInstance();
+        if (settings.isSSHAcceptAnyHostKey()) {
+            return Collections.singletonList("-oStrictHostKeyChecking=no");
         }
+        return Arrays.asList("-oStrictHostKeyChecking=yes", "-oUserKnownHostsFile=" + settings.getSSHKnownHostsFile());
     }
 
     private int findFreePort() throws IOException {
@@ -98,33 +75,47 @@ public class ForkedSSHClient extends AbstractSSHClient {
     }
 
     /**
-     * Starts an SSH tunnel
+     * Starts an SSH tunnel. The ssh process is tracked by {@link ProcessSupervisor} rather than a waiting thread.
      *
      * @param remotePort the port to forward
      * @param maxUptimeInSeconds the maximum length of time for the tunnel to remain open. Zero represents infinity.
+     * @param listener notified once when the tunnel closes; may be null
      * @return a {@link Tunnel} object
-     * @throws IOException thrown on errors reading data streams
+     * @throws IOException thrown on errors starting the ssh process
      */
-    public Tunnel startTunnel(final int remotePort, int maxUptimeInSeconds) throws IOException {
-        final int localPort = findFreePort();
-        final ExecuteWatchdog watchdog;
-        if (maxUptimeInSeconds < 1) {
-            watchdog = new ExecuteWatchdog(ExecuteWatchdog.INFINITE_TIMEOUT);
-        } else {
-            watchdog = new ExecuteWatchdog((long) maxUptimeInSeconds * 1000);
+    @Override
+    public Tunnel startTunnel(final int remotePort, int maxUptimeInSeconds, final TunnelListener listener) throws IOException {
+        if (multiplexed) {
+            return startMultiplexedTunnel(remotePort, maxUptimeInSeconds, listener);
         }
-        getExecutorService().submit(new Callable<String>() {
-
-            @Override
-            public String call() throws Exception {
-                Map<String, String> tunnelFlags = new HashMap<>();
-                tunnelFlags.put("-L" + localPort + ":"+getRemoteHost()+":" + remotePort, "");
-                return exec("sleep infinity", tunnelFlags, watchdog);
-            }
 
-        });
+        final int localPort = findFreePort();
+        final CredentialCache.CertFiles certFiles = CredentialCache.acquire(authInfo);
+        final ProcessSupervisor.SupervisedProcess process;
+        try {
+            List<String> command = new ArrayList<>(Arrays.asList(
+                    "ssh", "-q",
+                    "-i", certFiles.getPrivKeyFile().getAbsolutePath()));
+            command.addAll(getHostKeyOptions());
+            command.addAll(Arrays.asList(
+                    "-oBatchMode=yes",
+                    "-oKbdInteractiveAuthentication=no",
+                    "-oExitOnForwardFailure=yes",
+                    "-oServerAliveInterval=30",
+                    "-N",
+                    "-L" + localPort + ":" + getRemoteHost() + ":" + remotePort,
+                    "-l", authInfo.getUserName(),
+                    getViaGateway()));
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(ProcessBuilder.Redirect.appendTo(new File("/dev/null")));
+            process = ProcessSupervisor.supervise(pb.start(), (long) maxUptimeInSeconds * 1000);
+        } catch (IOException | RuntimeException e) {
+            certFiles.close();
+            throw e;
+        }
 
-        return new Tunnel() {
+        final Tunnel tunnel = new Tunnel() {
 
             @Override
             public int getLocalPort() {
@@ -143,15 +134,135 @@ public class ForkedSSHClient extends AbstractSSHClient {
 
             @Override
             public void stopTunnel() {
-                watchdog.destroyProcess();
+                process.destroy();
             }
 
             @Override
             public boolean isRunning() {
-                return watchdog.isWatching();
+                return process.isAlive();
             }
 
         };
+
+        process.addExitListener(new ProcessSupervisor.ExitListener() {
+
+            @Override
+            public void processExited(ProcessSupervisor.SupervisedProcess p) {
+                certFiles.close();
+                if (listener != null) {
+                    listener.tunnelClosed(tunnel);
+                }
+            }
+
+        });
+
+        return tunnel;
+    }
+
+    /**
+     * Starts an SSH tunnel by asking the control master to add a port forward
+     *
+     * @param remotePort the port to forward
+     * @param maxUptimeInSeconds the maximum length of time for the tunnel to remain open. Zero represents infinity.
+     * @param listener notified once when the tunnel is cancelled or the master exits; may be null
+     * @return a {@link Tunnel} object
+     * @throws IOException thrown on errors running the ssh process or if the master rejects the forward
+     */
+    private Tunnel startMultiplexedTunnel(int remotePort, int maxUptimeInSeconds, TunnelListener listener) throws IOException {
+        final int localPort = findFreePort();
+        final String forward = "-L" + localPort + ":" + getRemoteHost() + ":" + remotePort;
+        final SSHControlMaster master;
+        try {
+            master = SSHControlMaster.getInstance(authInfo, getViaGateway());
+            master.control("forward", forward);
+        } catch (SSHExecException e) {
+            throw new IOException(e);
+        }
+
+        final MultiplexedTunnel tunnel = new MultiplexedTunnel(master, forward, localPort, remotePort, listener);
+        // The forward dies with the master, so treat the master's exit as the tunnel closing
+        master.addExitListener(tunnel);
+
+        if (maxUptimeInSeconds > 0) {
+            try {
+                AsyncTasks.getTunnelPool().schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        tunnel.stopTunnel();
+                    }
+
+                }, maxUptimeInSeconds, TimeUnit.SECONDS);
+            } catch (PoolSaturatedException e) {
+                tunnel.stopTunnel();
+                throw e;
+            }
+        }
+
+        return tunnel;
+    }
+
+    /**
+     * A port forward held by an {@link SSHControlMaster}
+     */
+    private class MultiplexedTunnel implements Tunnel, ProcessSupervisor.ExitListener {
+        private final SSHControlMaster master;
+        private final String forward;
+        private final int localPort;
+        private final int remotePort;
+        private final TunnelListener listener;
+        private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+        MultiplexedTunnel(SSHControlMaster master, String forward, int localPort, int remotePort, TunnelListener listener) {
+            this.master = master;
+            this.forward = forward;
+            this.localPort = localPort;
+            this.remotePort = remotePort;
+            this.listener = listener;
+        }
+
+        @Override
+        public int getLocalPort() {
+            return localPort;
+        }
+
+        @Override
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+        @Override
+        public String getRemoteHost() {
+            return ForkedSSHClient.this.getRemoteHost();
+        }
+
+        @Override
+        public void stopTunnel() {
+            if (!stopped.compareAndSet(false, true)) {
+                return;
+            }
+            master.removeExitListener(this);
+            if (master.isRunning()) {
+                try {
+                    master.control("cancel", forward);
+                } catch (IOException | SSHExecException e) {
+                    logger.warn("Could not cancel port forward " + forward + " for user " + authInfo.getUserName());
+                }
+            }
+            if (listener != null) {
+                listener.tunnelClosed(this);
+            }
+        }
+
+        @Override
+        public boolean isRunning() {
+            return !stopped.get() && master.isRunning();
+        }
+
+        @Override
+        public void processExited(ProcessSupervisor.SupervisedProcess process) {
+            stopTunnel();
+        }
     }
 
     /**
@@ -177,18 +288,31 @@ public class ForkedSSHClient extends AbstractSSHClient {
      * @throws SSHExecException thrown on errors caused during SSH command execution
      */
     public String exec(String remoteCommands, Map<String, String> extraFlags, ExecuteWatchdog watchdog) throws IOException, SSHExecException {
-        CertFiles certFiles = new CertFiles(authInfo);
-
-        CommandLine cmdLine = new CommandLine("ssh");
-        cmdLine.addArgument("-q");
-        cmdLine.addArgument("-i");
-        cmdLine.addArgument(certFiles.getPrivKeyFile().getAbsolutePath());
-        cmdLine.addArgument("-oStrictHostKeyChecking=no"); // TODO: Remove me when ready
-        cmdLine.addArgument("-oBatchMode=yes");
-        cmdLine.addArgument("-oKbdInteractiveAuthentication=no");
-        cmdLine.addArgument("-l");
-        cmdLine.addArgument(getAuthInfo().getUserName());
-        cmdLine.addArgument(getViaGateway());
+        if (multiplexed) {
+            CommandLine cmdLine = SSHControlMaster.getInstance(authInfo, getViaGateway()).newCommandLine();
+            cmdLine.addArgument(getViaGateway());
+            return exec(cmdLine, remoteCommands, extraFlags, watchdog);
+        }
+
+        CredentialCache.CertFiles certFiles = CredentialCache.acquire(authInfo);
+        try {
+            CommandLine cmdLine = new CommandLine("ssh");
+            cmdLine.addArgument("-q");
+            cmdLine.addArgument("-i");
+            cmdLine.addArgument(certFiles.getPrivKeyFile().getAbsolutePath());
+            cmdLine.addArgument("-oStrictHostKeyChecking=no"); // TODO: Remove me when ready
+            cmdLine.addArgument("-oBatchMode=yes");
+            cmdLine.addArgument("-oKbdInteractiveAuthentication=no");
+            cmdLine.addArgument("-l");
+            cmdLine.addArgument(getAuthInfo().getUserName());
+            cmdLine.addArgument(getViaGateway());
+            return exec(cmdLine, remoteCommands, extraFlags, watchdog);
+        } finally {
+            certFiles.close();
+        }
+    }
+
+    private String exec(CommandLine cmdLine, String remoteCommands, Map<String, String> extraFlags, ExecuteWatchdog watchdog) throws IOException, SSHExecException {
 
         // Add extra flags
         if (extraFlags != null && extraFlags.size() > 0) {
@@ -223,8 +347,6 @@ public class ForkedSSHClient extends AbstractSSHClient {
             error = error.replaceAll("[\\t\\n\\r]"," ");
             logger.error(error);
             throw new SSHExecException(output.toString(), e);
-        } finally {
-            certFiles.close();
         }
         return output.toString();
     }
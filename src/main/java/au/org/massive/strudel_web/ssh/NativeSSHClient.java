@@ -0,0 +1,245 @@
+package au.org.massive.strudel_web.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.sshd.client.channel.ChannelExec;
+import org.apache.sshd.client.channel.ClientChannelEvent;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.client.session.forward.ExplicitPortForwardingTracker;
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.common.util.net.SshdSocketAddress;
+
+import au.org.massive.strudel_web.AsyncTasks;
+import au.org.massive.strudel_web.PoolSaturatedException;
+
+/**
+ * An in-JVM SSH client implementation. Commands are run on a new channel of a persistent connection held by
+ * {@link SSHConnectionPool}, so the key exchange and authentication happen once per user and gateway rather than
+ * once per command.
+ *
+ * @author jrigby
+ */
+public class NativeSSHClient extends AbstractSSHClient {
+
+    private final static Logger logger = LogManager.getLogger(NativeSSHClient.class);
+
+    public NativeSSHClient(CertAuthInfo authInfo, String remoteHost) {
+        super(authInfo, remoteHost);
+    }
+
+    public NativeSSHClient(CertAuthInfo authInfo, String viaGateway, String remoteHost) {
+        super(authInfo, viaGateway, remoteHost);
+    }
+
+    private ClientSession getConnection() throws IOException {
+        return SSHConnectionPool.getConnection(getAuthInfo(), getViaGateway());
+    }
+
+    /**
+     * Starts an SSH tunnel over the user's persistent connection
+     *
+     * @param remotePort the port to forward
+     * @param maxUptimeInSeconds the maximum length of time for the tunnel to remain open. Zero represents infinity.
+     * @param listener notified once when the tunnel is stopped or the connection drops; may be null
+     * @return a {@link Tunnel} object
+     * @throws IOException thrown on errors establishing the port forward
+     */
+    @Override
+    public Tunnel startTunnel(int remotePort, int maxUptimeInSeconds, TunnelListener listener) throws IOException {
+        final ClientSession session = getConnection();
+        final ExplicitPortForwardingTracker tracker = session.createLocalPortForwardingTracker(
+                new SshdSocketAddress("localhost", 0),
+                new SshdSocketAddress(getRemoteHost(), remotePort));
+
+        final ForwardedTunnel tunnel = new ForwardedTunnel(session, tracker, remotePort, listener);
+        // The forward dies with the connection, so treat the connection closing as the tunnel closing
+        session.addSessionListener(tunnel);
+
+        if (maxUptimeInSeconds > 0) {
+            try {
+                AsyncTasks.getTunnelPool().schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        tunnel.stopTunnel();
+                    }
+
+                }, maxUptimeInSeconds, TimeUnit.SECONDS);
+            } catch (PoolSaturatedException e) {
+                tunnel.stopTunnel();
+                throw e;
+            }
+        }
+
+        return tunnel;
+    }
+
+    /**
+     * A local port forward on a persistent connection
+     */
+    private class ForwardedTunnel implements Tunnel, SessionListener {
+        private final ClientSession session;
+        private final ExplicitPortForwardingTracker tracker;
+        private final int remotePort;
+        private final TunnelListener listener;
+        private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+        ForwardedTunnel(ClientSession session, ExplicitPortForwardingTracker tracker, int remotePort, TunnelListener listener) {
+            this.session = session;
+            this.tracker = tracker;
+            this.remotePort = remotePort;
+            this.listener = listener;
+        }
+
+        @Override
+        public int getLocalPort() {
+            return tracker.getBoundAddress().getPort();
+        }
+
+        @Override
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+        @Override
+        public String getRemoteHost() {
+            return NativeSSHClient.this.getRemoteHost();
+        }
+
+        @Override
+        public void stopTunnel() {
+            if (!stopped.compareAndSet(false, true)) {
+                return;
+            }
+            session.removeSessionListener(this);
+            try {
+                tracker.close();
+            } catch (IOException e) {
+                logger.warn("Error closing tunnel on local port " + getLocalPort(), e);
+            }
+            if (listener != null) {
+                listener.tunnelClosed(this);
+            }
+        }
+
+        @Override
+        public boolean isRunning() {
+            return !stopped.get() && tracker.isOpen() && session.isOpen();
+        }
+
+        @Override
+        public void sessionClosed(Session s) {
+            stopTunnel();
+        }
+    }
+
+    /**
+     * Executes a remote command on a new channel
+     *
+     * @param remoteCommands commands to execute
+     * @param watchdog       can be used to kill runaway commands
+     * @return the command results
+     * @throws IOException thrown on errors reading data streams
+     * @throws SSHExecException thrown if the remote command exits with a non-zero status
+     */
+    @Override
+    public String exec(String remoteCommands, ExecuteWatchdog watchdog) throws IOException, SSHExecException {
+        if (remoteCommands == null) {
+            remoteCommands = "";
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ChannelExec channel = getConnection().createExecChannel("bash -s --");
+        try {
+            channel.setOut(output);
+            channel.setErr(output);
+            channel.open().verify();
+
+            if (watchdog != null) {
+                watchdog.start(new ChannelProcess(channel));
+            }
+
+            OutputStream in = channel.getInvertedIn();
+            in.write(remoteCommands.getBytes());
+            in.close();
+
+            channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED), 0L);
+        } finally {
+            if (watchdog != null) {
+                watchdog.stop();
+            }
+            channel.close(false);
+        }
+
+        Integer exitStatus = channel.getExitStatus();
+        if (exitStatus == null || exitStatus != 0) {
+            String error = "SSH command failed for user " + getAuthInfo().getUserName() + " on " + getViaGateway() + "; " +
+                    "Exit status: " + exitStatus + "; " +
+                    "Remote commands: " + remoteCommands + "; " +
+                    "Remote server said: " + output.toString();
+            error = error.replaceAll("[\\t\\n\\r]", " ");
+            logger.error(error);
+            throw new SSHExecException(output.toString());
+        }
+        return output.toString();
+    }
+
+    /**
+     * Presents an exec channel as a {@link Process} so that it can be controlled by an {@link ExecuteWatchdog}
+     */
+    private static class ChannelProcess extends Process {
+        private final ChannelExec channel;
+
+        ChannelProcess(ChannelExec channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return channel.getInvertedIn();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return channel.getInvertedOut();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return channel.getInvertedErr();
+        }
+
+        @Override
+        public int waitFor() throws InterruptedException {
+            channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED), 0L);
+            return exitValue();
+        }
+
+        @Override
+        public int exitValue() {
+            Integer exitStatus = channel.getExitStatus();
+            if (exitStatus == null) {
+                if (channel.isOpen()) {
+                    throw new IllegalThreadStateException("Channel is still open");
+                }
+                return -1;
+            }
+            return exitStatus;
+        }
+
+        @Override
+        public void destroy() {
+            channel.close(true);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package au.org.massive.strudel_web.ssh;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.org.massive.strudel_web.AsyncTasks;
+
+/**
+ * Tracks long-running child processes, such as ssh tunnels, without a waiting thread per process.
+ * A single reaper task on the tunnel pool of {@link AsyncTasks} checks every supervised process on a fixed
+ * interval, kills any that have outlived their maximum uptime, and hands exit events to the same pool.
+ *
+ * @author jrigby
+ */
+public class ProcessSupervisor implements ServletContextListener {
+
+    private final static Logger logger = LogManager.getLogger(ProcessSupervisor.class);
+
+    private static final long REAPER_INTERVAL = 500;
+
+    private static final Set<SupervisedProcess> processes = ConcurrentHashMap.newKeySet();
+    private static ScheduledFuture<?> reaper;
+
+    /**
+     * Receives a notification when a supervised process exits
+     */
+    public interface ExitListener {
+        void processExited(SupervisedProcess process);
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent arg0) {
+
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent arg0) {
+        for (SupervisedProcess p : processes) {
+            p.destroy();
+        }
+        processes.clear();
+        synchronized (ProcessSupervisor.class) {
+            if (reaper != null) {
+                reaper.cancel(false);
+                reaper = null;
+            }
+        }
+    }
+
+    private static synchronized void start() {
+        if (reaper == null) {
+            reaper = AsyncTasks.getTunnelPool().scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    reap();
+                }
+
+            }, REAPER_INTERVAL, REAPER_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void reap() {
+        long now = System.currentTimeMillis();
+        for (SupervisedProcess p : processes) {
+            try {
+                if (!p.process.isAlive()) {
+                    processes.remove(p);
+                    p.fireExited();
+                } else if (p.deadline > 0 && now > p.deadline) {
+                    logger.info("Stopping process that exceeded its maximum uptime");
+                    p.destroy();
+                }
+            } catch (RuntimeException e) {
+                logger.error("Error supervising process", e);
+            }
+        }
+    }
+
+    /**
+     * Places a process under supervision
+     *
+     * @param process the process to supervise
+     * @param maxUptimeInMillis the maximum length of time for the process to run. Zero represents infinity.
+     * @return a handle used to control the process and receive its exit event
+     */
+    public static SupervisedProcess supervise(Process process, long maxUptimeInMillis) {
+        start();
+        SupervisedProcess p = new SupervisedProcess(process,
+                maxUptimeInMillis > 0 ? System.currentTimeMillis() + maxUptimeInMillis : 0);
+        processes.add(p);
+        return p;
+    }
+
+    /**
+     * @return the number of processes currently under supervision
+     */
+    public static int getSupervisedProcessCount() {
+        return processes.size();
+    }
+
+    /**
+     * A process under supervision
+     */
+    public static class SupervisedProcess {
+        private final Process process;
+        private final long deadline;
+        private final List<ExitListener> listeners = new CopyOnWriteArrayList<>();
+        private volatile boolean exited = false;
+
+        private SupervisedProcess(Process process, long deadline) {
+            this.process = process;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Adds a listener to be notified when the process exits. If it has already exited, the listener is
+         * notified straight away.
+         *
+         * @param listener the listener
+         */
+        public void addExitListener(ExitListener listener) {
+            listeners.add(listener);
+            if (exited && listeners.remove(listener)) {
+                notify(listener);
+            }
+        }
+
+        public void removeExitListener(ExitListener listener) {
+            listeners.remove(listener);
+        }
+
+        private void fireExited() {
+            exited = true;
+            for (ExitListener listener : listeners) {
+                if (listeners.remove(listener)) {
+                    notify(listener);
+                }
+            }
+        }
+
+        private void notify(final ExitListener listener) {
+            final SupervisedProcess p = this;
+            Runnable callback = new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        listener.processExited(p);
+                    } catch (RuntimeException e) {
+                        logger.error("Error handling process exit", e);
+                    }
+                }
+
+            };
+            try {
+                AsyncTasks.getTunnelPool().submit(callback);
+            } catch (RejectedExecutionException e) {
+                // An exit event must not be lost, so run it on the calling thread instead
+                callback.run();
+            }
+        }
+
+        public boolean isAlive() {
+            return process.isAlive();
+        }
+
+        /**
+         * @return the exit value of the process
+         * @throws IllegalThreadStateException if the process has not yet exited
+         */
+        public int exitValue() {
+            return process.exitValue();
+        }
+
+        /**
+         * Kills the process. Exit listeners are notified once the reaper sees it has gone.
+         */
+        public void destroy() {
+            process.destroy();
+        }
+    }
+}
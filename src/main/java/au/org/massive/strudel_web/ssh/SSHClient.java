@@ -18,11 +18,22 @@ public interface SSHClient {
 
     AsyncCommand<String> execAsync(String remoteCommands);
 
+    /**
+     * Starts an SSH tunnel
+     *
+     * @param remotePort the port to forward
+     * @param maxUptimeInSeconds the maximum length of time for the tunnel to remain open. Zero represents infinity.
+     * @param listener notified once when the tunnel closes for any reason; may be null
+     * @return a {@link Tunnel} object
+     * @throws IOException thrown on errors establishing the tunnel
+     */
+    Tunnel startTunnel(int remotePort, int maxUptimeInSeconds, TunnelListener listener) throws IOException;
+
     class AsyncCommand<T> {
-        private final ExecuteWatchdog watchdog;
+        private final CancellableWatchdog watchdog;
         private final Future<T> future;
 
-        public AsyncCommand(ExecuteWatchdog watchdog, Future<T> future) {
+        public AsyncCommand(CancellableWatchdog watchdog, Future<T> future) {
             super();
             this.watchdog = watchdog;
             this.future = future;
@@ -35,5 +46,13 @@ public interface SSHClient {
         public Future<T> getFuture() {
             return future;
         }
+
+        /**
+         * Kills the command, or stops it from starting if it is still queued
+         */
+        public void cancel() {
+            future.cancel(true);
+            watchdog.cancel();
+        }
     }
 }
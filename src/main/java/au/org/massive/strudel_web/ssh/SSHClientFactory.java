@@ -0,0 +1,54 @@
+package au.org.massive.strudel_web.ssh;
+
+import au.org.massive.strudel_web.Settings;
+
+/**
+ * Produces {@link SSHClient} objects of the type selected by the "ssh-client" setting
+ *
+ * @author jrigby
+ */
+public class SSHClientFactory {
+
+    public enum ClientType {
+        FORKED("forked"), NATIVE("native");
+
+        private final String name;
+
+        ClientType(String name) {
+            this.name = name;
+        }
+
+        public String toString() {
+            return name;
+        }
+
+        public static ClientType fromString(String type) {
+            if (type != null) {
+                for (ClientType t : ClientType.values()) {
+                    if (t.toString().equals(type.toLowerCase())) {
+                        return t;
+                    }
+                }
+            }
+            throw new IllegalArgumentException("Unknown SSH client type: " + type);
+        }
+    }
+
+    private SSHClientFactory() {
+
+    }
+
+    public static SSHClient getInstance(CertAuthInfo authInfo, String remoteHost) {
+        return getInstance(authInfo, remoteHost, "localhost");
+    }
+
+    public static SSHClient getInstance(CertAuthInfo authInfo, String viaGateway, String remoteHost) {
+        switch (Settings.getInstance().getSSHClientType()) {
+            case NATIVE:
+                return new NativeSSHClient(authInfo, viaGateway, remoteHost);
+            case FORKED:
+            default:
+                return new ForkedSSHClient(authInfo, viaGateway, remoteHost, Settings.getInstance().isSSHControlMasterEnabled());
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package au.org.massive.strudel_web.ssh;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.keyverifier.AcceptAllServerKeyVerifier;
+import org.apache.sshd.client.keyverifier.KnownHostsServerKeyVerifier;
+import org.apache.sshd.client.keyverifier.RejectAllServerKeyVerifier;
+import org.apache.sshd.client.keyverifier.ServerKeyVerifier;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.NamedResource;
+import org.apache.sshd.common.config.keys.PublicKeyEntry;
+import org.apache.sshd.common.config.keys.PublicKeyEntryResolver;
+import org.apache.sshd.common.util.security.SecurityUtils;
+
+import au.org.massive.strudel_web.Settings;
+
+/**
+ * Keeps one authenticated SSH connection open per user and gateway for use by {@link NativeSSHClient}.
+ * Connections are opened on demand, reused across requests, and replaced if they drop.
+ *
+ * @author jrigby
+ */
+public class SSHConnectionPool implements ServletContextListener {
+
+    private final static Logger logger = LogManager.getLogger(SSHConnectionPool.class);
+
+    private static final int SSH_PORT = 22;
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final long AUTH_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private static SshClient client;
+    private static final Map<String, ClientSession> connections = new ConcurrentHashMap<>();
+    private static final Map<String, Object> connectionLocks = new ConcurrentHashMap<>();
+
+    @Override
+    public void contextInitialized(ServletContextEvent arg0) {
+
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent arg0) {
+        for (ClientSession session : connections.values()) {
+            closeQuietly(session);
+        }
+        connections.clear();
+        synchronized (SSHConnectionPool.class) {
+            if (client != null) {
+                client.stop();
+                client = null;
+            }
+        }
+    }
+
+    private static synchronized SshClient getClient() {
+        if (client == null) {
+            client = SshClient.setUpDefaultClient();
+            client.setServerKeyVerifier(getServerKeyVerifier());
+            client.start();
+        }
+        return client;
+    }
+
+    /**
+     * @return a verifier that only accepts hosts in the configured known_hosts file, unless checking has been
+     * explicitly disabled
+     */
+    private static ServerKeyVerifier getServerKeyVerifier() {
+        Settings settings = Settings.getInstance();
+        if (settings.isSSHAcceptAnyHostKey()) {
+            logger.warn("Host keys are not checked by the native SSH client (ssh-accept-any-host-key)");
+            return AcceptAllServerKeyVerifier.INSTANCE;
+        }
+        return new KnownHostsServerKeyVerifier(RejectAllServerKeyVerifier.INSTANCE, Paths.get(settings.getSSHKnownHostsFile()));
+    }
+
+    private static String getConnectionKey(String userName, String host) {
+        return userName + "@" + host;
+    }
+
+    /**
+     * Gets an open, authenticated connection to the given host, connecting first if required
+     *
+     * @param authInfo the certificate used to authenticate a new connection
+     * @param host     the host to connect to
+     * @return an authenticated session
+     * @throws IOException thrown if the connection or authentication fails
+     */
+    public static ClientSession getConnection(CertAuthInfo authInfo, String host) throws IOException {
+        String key = getConnectionKey(authInfo.getUserName(), host);
+        ClientSession session = connections.get(key);
+        if (isUsable(session)) {
+            return session;
+        }
+
+        connectionLocks.putIfAbsent(key, new Object());
+        synchronized (connectionLocks.get(key)) {
+            session = connections.get(key);
+            if (isUsable(session)) {
+                return session;
+            }
+            if (session != null) {
+                closeQuietly(session);
+            }
+            session = connect(authInfo, host);
+            connections.put(key, session);
+            return session;
+        }
+    }
+
+    private static boolean isUsable(ClientSession session) {
+        return session != null && session.isOpen() && session.isAuthenticated();
+    }
+
+    private static ClientSession connect(CertAuthInfo authInfo, String host) throws IOException {
+        ClientSession session = getClient()
+                .connect(authInfo.getUserName(), host, SSH_PORT)
+                .verify(CONNECT_TIMEOUT)
+                .getSession();
+        try {
+            session.addPublicKeyIdentity(getKeyPair(authInfo));
+            session.auth().verify(AUTH_TIMEOUT);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(session);
+            throw e;
+        }
+        logger.info("Opened SSH connection for " + authInfo.getUserName() + " to " + host);
+        return session;
+    }
+
+    /**
+     * Combines the certificate and private key of a {@link CertAuthInfo} into a key pair that can be
+     * used for certificate authentication
+     *
+     * @param authInfo the certificate details
+     * @return a key pair with the certificate as its public key
+     * @throws IOException thrown if the key or certificate cannot be parsed
+     */
+    private static KeyPair getKeyPair(CertAuthInfo authInfo) throws IOException {
+        try {
+            PublicKey certificate = PublicKeyEntry.parsePublicKeyEntry(authInfo.getCertificate().trim())
+                    .resolvePublicKey(null, null, PublicKeyEntryResolver.FAILING);
+            Iterator<KeyPair> keyPairs = SecurityUtils.loadKeyPairIdentities(null,
+                    NamedResource.ofName(authInfo.getUserName()),
+                    new ByteArrayInputStream(authInfo.getPrivateKey().getBytes(StandardCharsets.UTF_8)),
+                    null).iterator();
+            if (!keyPairs.hasNext()) {
+                throw new IOException("No private key found for " + authInfo.getUserName());
+            }
+            return new KeyPair(certificate, keyPairs.next().getPrivate());
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Closes all connections held for a user
+     *
+     * @param userName the user whose connections should be closed
+     */
+    public static void closeConnections(String userName) {
+        String prefix = userName + "@";
+        for (String key : connections.keySet()) {
+            if (key.startsWith(prefix)) {
+                ClientSession session = connections.remove(key);
+                if (session != null) {
+                    closeQuietly(session);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(ClientSession session) {
+        try {
+            session.close();
+        } catch (IOException e) {
+            logger.warn("Error closing SSH connection", e);
+        }
+    }
+}
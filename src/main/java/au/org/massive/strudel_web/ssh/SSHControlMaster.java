@@ -0,0 +1,262 @@
+package au.org.massive.strudel_web.ssh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.exec.DefaultExecutor;
+import org.apache.commons.exec.ExecuteException;
+import org.apache.commons.exec.Executor;
+import org.apache.commons.exec.PumpStreamHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A long-lived OpenSSH master process for one user and gateway. Other ssh processes reach the gateway through its
+ * control socket, so only the master pays for the key exchange and authentication.
+ *
+ * @author jrigby
+ */
+public class SSHControlMaster {
+
+    private final static Logger logger = LogManager.getLogger(SSHControlMaster.class);
+
+    private static final long STARTUP_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final long STARTUP_POLL_INTERVAL = 50;
+
+    private static final Map<String, SSHControlMaster> masters = new ConcurrentHashMap<>();
+    private static final Map<String, Object> masterLocks = new ConcurrentHashMap<>();
+
+    private final String userName;
+    private final String gateway;
+    private final Path controlDirectory;
+    private final File controlSocket;
+    private final ProcessSupervisor.SupervisedProcess process;
+
+    private SSHControlMaster(String userName, String gateway, Path controlDirectory, ProcessSupervisor.SupervisedProcess process) {
+        this.userName = userName;
+        this.gateway = gateway;
+        this.controlDirectory = controlDirectory;
+        this.controlSocket = controlDirectory.resolve("master").toFile();
+        this.process = process;
+    }
+
+    private static String getMasterKey(String userName, String gateway) {
+        return userName + "@" + gateway;
+    }
+
+    /**
+     * Gets the running master for the user and gateway, starting a new one if required
+     *
+     * @param authInfo certificate details used to authenticate a new master
+     * @param gateway the host to connect to
+     * @return a running master
+     * @throws IOException thrown on errors starting the ssh process
+     * @throws SSHExecException thrown if the master fails to connect
+     */
+    public static SSHControlMaster getInstance(CertAuthInfo authInfo, String gateway) throws IOException, SSHExecException {
+        String key = getMasterKey(authInfo.getUserName(), gateway);
+        SSHControlMaster master = masters.get(key);
+        if (master != null && master.isRunning()) {
+            return master;
+        }
+
+        masterLocks.putIfAbsent(key, new Object());
+        synchronized (masterLocks.get(key)) {
+            master = masters.get(key);
+            if (master != null && master.isRunning()) {
+                return master;
+            }
+            if (master != null) {
+                master.stop();
+            }
+            master = start(authInfo, gateway);
+            masters.put(key, master);
+            return master;
+        }
+    }
+
+    private static SSHControlMaster start(CertAuthInfo authInfo, String gateway) throws IOException, SSHExecException {
+        Path controlDirectory = Files.createTempDirectory("ssh-mux-" + authInfo.getUserName(),
+                PosixFilePermissions.asFileAttribute(EnumSet.of(
+                        PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE)));
+
+        try (CredentialCache.CertFiles certFiles = CredentialCache.acquire(authInfo)) {
+            List<String> command = new ArrayList<>(Arrays.asList(
+                    "ssh", "-q",
+                    "-i", certFiles.getPrivKeyFile().getAbsolutePath()));
+            command.addAll(ForkedSSHClient.getHostKeyOptions());
+            command.addAll(Arrays.asList(
+                    "-oBatchMode=yes",
+                    "-oKbdInteractiveAuthentication=no",
+                    "-oServerAliveInterval=30",
+                    "-M", "-S", controlDirectory.resolve("master").toString(),
+                    "-N",
+                    "-l", authInfo.getUserName(),
+                    gateway));
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(ProcessBuilder.Redirect.appendTo(new File("/dev/null")));
+            final SSHControlMaster master = new SSHControlMaster(authInfo.getUserName(), gateway, controlDirectory,
+                    ProcessSupervisor.supervise(pb.start(), 0));
+
+            // The control socket is only created once the master has authenticated. The key files stay in the
+            // credential cache until the certificate is retired.
+            long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+            while (!master.controlSocket.exists()) {
+                if (!master.process.isAlive() || System.currentTimeMillis() > deadline) {
+                    master.stop();
+                    throw new SSHExecException("Could not establish an SSH master connection for user " +
+                            authInfo.getUserName() + " to " + gateway);
+                }
+                try {
+                    Thread.sleep(STARTUP_POLL_INTERVAL);
+                } catch (InterruptedException e) {
+                    master.stop();
+                    Thread.currentThread().interrupt();
+                    throw new SSHExecException(e);
+                }
+            }
+            logger.info("Started SSH master connection for " + authInfo.getUserName() + " to " + gateway);
+
+            // Tidy up straight away if the connection drops rather than waiting for the next request
+            master.addExitListener(new ProcessSupervisor.ExitListener() {
+
+                @Override
+                public void processExited(ProcessSupervisor.SupervisedProcess process) {
+                    master.stop();
+                }
+
+            });
+            return master;
+        } catch (IOException | RuntimeException e) {
+            deleteControlDirectory(controlDirectory);
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an ssh command line that runs over this master's control socket
+     *
+     * @return the ssh command line, to which the remaining flags, host and commands can be added
+     */
+    public CommandLine newCommandLine() {
+        CommandLine cmdLine = new CommandLine("ssh");
+        cmdLine.addArgument("-q");
+        // If the socket disappears, fail rather than connect directly with the server account's own credentials
+        cmdLine.addArgument("-oControlMaster=no");
+        cmdLine.addArgument("-oBatchMode=yes");
+        cmdLine.addArgument("-oKbdInteractiveAuthentication=no");
+        cmdLine.addArgument("-S");
+        cmdLine.addArgument(controlSocket.getAbsolutePath(), false);
+        cmdLine.addArgument("-l");
+        cmdLine.addArgument(userName);
+        return cmdLine;
+    }
+
+    /**
+     * Sends a control command to the master, e.g. "forward" or "cancel"
+     *
+     * @param command the control command, passed to ssh as -O command
+     * @param args extra arguments, e.g. the port forward specification
+     * @throws IOException thrown on errors running the ssh process
+     * @throws SSHExecException thrown if the master rejects the command
+     */
+    public void control(String command, String... args) throws IOException, SSHExecException {
+        CommandLine cmdLine = newCommandLine();
+        cmdLine.addArgument("-O");
+        cmdLine.addArgument(command);
+        for (String arg : args) {
+            cmdLine.addArgument(arg);
+        }
+        cmdLine.addArgument(gateway);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Executor exec = new DefaultExecutor();
+        exec.setStreamHandler(new PumpStreamHandler(output));
+        try {
+            exec.execute(cmdLine);
+        } catch (ExecuteException e) {
+            logger.error("SSH master command failed for user " + userName + ": " + cmdLine.toString() + "; " +
+                    "ssh said: " + output.toString().replaceAll("[\\t\\n\\r]", " "));
+            throw new SSHExecException(output.toString(), e);
+        }
+    }
+
+    /**
+     * Adds a listener to be notified when the master process exits
+     *
+     * @param listener the listener
+     */
+    public void addExitListener(ProcessSupervisor.ExitListener listener) {
+        process.addExitListener(listener);
+    }
+
+    public void removeExitListener(ProcessSupervisor.ExitListener listener) {
+        process.removeExitListener(listener);
+    }
+
+    public boolean isRunning() {
+        return process.isAlive() && controlSocket.exists();
+    }
+
+    /**
+     * Stops the master process, closing every session and port forward that uses it
+     */
+    public void stop() {
+        if (process.isAlive()) {
+            try {
+                control("exit");
+            } catch (IOException | SSHExecException e) {
+                // The master may already be on its way out; it is destroyed below regardless
+            }
+            process.destroy();
+        }
+        deleteControlDirectory(controlDirectory);
+        masters.remove(getMasterKey(userName, gateway), this);
+    }
+
+    /**
+     * Stops all masters held for a user
+     *
+     * @param userName the user whose masters should be stopped
+     */
+    public static void stopAll(String userName) {
+        for (SSHControlMaster master : masters.values()) {
+            if (master.userName.equals(userName)) {
+                master.stop();
+            }
+        }
+    }
+
+    /**
+     * Stops every master; used when the application shuts down
+     */
+    public static void stopAll() {
+        for (SSHControlMaster master : masters.values()) {
+            master.stop();
+        }
+    }
+
+    private static void deleteControlDirectory(Path controlDirectory) {
+        File[] files = controlDirectory.toFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        controlDirectory.toFile().delete();
+    }
+}
@@ -0,0 +1,22 @@
+package au.org.massive.strudel_web.ssh;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * A servlet listener that stops every {@link SSHControlMaster} when the application stops, so that master processes
+ * of the forked client in multiplexed mode do not outlive it
+ *
+ * @author jrigby
+ */
+public class SSHControlMasterManager implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        SSHControlMaster.stopAll();
+    }
+}
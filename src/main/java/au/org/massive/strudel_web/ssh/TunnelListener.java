@@ -0,0 +1,10 @@
+package au.org.massive.strudel_web.ssh;
+
+/**
+ * Receives a notification when an SSH tunnel closes, whether it was stopped, timed out or died
+ *
+ * @author jrigby
+ */
+public interface TunnelListener {
+    void tunnelClosed(Tunnel tunnel);
+}
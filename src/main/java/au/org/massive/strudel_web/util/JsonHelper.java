@@ -0,0 +1,24 @@
+package au.org.massive.strudel_web.util;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Holds a single {@link Gson} instance for the application. Gson is thread safe, and reusing one instance
+ * avoids rebuilding its type adapter cache on every request.
+ *
+ * @author jrigby
+ */
+public class JsonHelper {
+    private JsonHelper() {
+
+    }
+
+    private static final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(ResultTable.class, new ResultTable.JsonAdapter())
+            .create();
+
+    public static Gson getGson() {
+        return gson;
+    }
+}
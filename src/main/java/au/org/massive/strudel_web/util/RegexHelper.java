@@ -4,7 +4,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -30,10 +30,12 @@ public class RegexHelper {
         return SPECIAL_REGEX_CHARS.matcher(input).replaceAll("\\\\$0");
     }
 
+    private final static Pattern NAMED_GROUP = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
     public static Set<String> getNamedGroupCandidates(String regex) {
-        Set<String> namedGroups = new HashSet<>();
+        Set<String> namedGroups = new LinkedHashSet<>();
 
-        Matcher m = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>").matcher(regex);
+        Matcher m = NAMED_GROUP.matcher(regex);
 
         while (m.find()) {
             namedGroups.add(m.group(1));
@@ -42,41 +44,81 @@ public class RegexHelper {
         return namedGroups;
     }
 
+    /**
+     * Finds the named groups of a regex, in the order they first appear
+     * @param regex the regex
+     * @return the group names
+     */
+    public static String[] getNamedGroups(String regex) {
+        Set<String> namedGroups = getNamedGroupCandidates(regex);
+        return namedGroups.toArray(new String[namedGroups.size()]);
+    }
+
     public static String processRegexForEachLineJson(String regex, String input) {
-        Gson gson = new Gson();
+        Gson gson = JsonHelper.getGson();
         return gson.toJson(processRegexForEachLine(regex, input));
     }
 
     public static String processRegexJson(String regex, String input) {
-        Gson gson = new Gson();
+        Gson gson = JsonHelper.getGson();
         return gson.toJson(processRegex(regex, input));
     }
 
     public static List<Map<String, String>> processRegexForEachLine(String regex, String input) {
-        List<Map<String, String>> output = new LinkedList<>();
+        return processRegexForEachLine(Pattern.compile(regex), getNamedGroups(regex), input);
+    }
+
+    public static List<Map<String, String>> processRegexForEachLine(Pattern pattern, String[] namedGroups, String input) {
+        return processRegexForEachLine(pattern, namedGroups, input, false);
+    }
+
+    /**
+     * Applies a precompiled regex to each line of the input, reusing a single {@link Matcher}
+     * @param pattern the compiled regex
+     * @param namedGroups the named groups to extract from each match
+     * @param input the text to process
+     * @param internValues true to store repeated values once, e.g. for listings of job states and queues
+     * @return one row of group values per match
+     */
+    public static ResultTable processRegexForEachLine(Pattern pattern, String[] namedGroups, String input, boolean internValues) {
+        ResultTable output = new ResultTable(namedGroups, internValues);
+        String[] row = new String[namedGroups.length];
+        Matcher m = pattern.matcher("");
         BufferedReader br = new BufferedReader(new StringReader(input));
         String line;
         try {
             while ((line = br.readLine()) != null) {
-                List<Map<String, String>> lineMatches = processRegex(regex, line);
-                if (lineMatches.size() > 0) {
-                    output.addAll(lineMatches);
+                m.reset(line);
+                while (m.find()) {
+                    for (int i = 0; i < namedGroups.length; i++) {
+                        try {
+                            row[i] = m.group(namedGroups[i]);
+                        } catch (IllegalArgumentException e) {
+                            // the group doesn't exist
+                            row[i] = null;
+                        }
+                    }
+                    output.addRow(row);
                 }
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        output.trimToSize();
         return output;
     }
 
     public static List<Map<String, String>> processRegex(String regex, String input) {
-        return processRegex(regex, input, getNamedGroupCandidates(regex));
+        return processRegex(Pattern.compile(regex), getNamedGroups(regex), input);
     }
 
-    private static List<Map<String, String>> processRegex(String regex, String input, Set<String> namedGroups) {
-        Pattern p = Pattern.compile(regex);
-        Matcher m = p.matcher(input);
+    public static List<Map<String, String>> processRegex(Pattern pattern, String[] namedGroups, String input) {
         List<Map<String, String>> results = new LinkedList<>();
+        findAll(pattern.matcher(input), namedGroups, results);
+        return results;
+    }
+
+    private static void findAll(Matcher m, String[] namedGroups, List<Map<String, String>> results) {
         while (m.find()) {
             Map<String, String> outputMap = new HashMap<>();
             for (String groupName : namedGroups) {
@@ -89,7 +131,6 @@ public class RegexHelper {
             }
             results.add(outputMap);
         }
-        return results;
     }
 
 }
@@ -0,0 +1,217 @@
+package au.org.massive.strudel_web.util;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A read-only list of rows that share one set of column names, such as the matches of a regex with named groups
+ * applied to each line of command output. Column names are stored once and values are packed row by row into a
+ * single array, rather than one map per row. Repeated values, such as job states and queue names, can optionally
+ * be stored once per table.
+ * <p>
+ * Each row is presented as an unmodifiable map holding every column. A column without a value, such as a named group
+ * that did not match, maps to null, as in the maps built per line before.
+ *
+ * @author jrigby
+ */
+public class ResultTable extends AbstractList<Map<String, String>> {
+
+    private static final int INITIAL_ROWS = 16;
+
+    private final String[] columns;
+    private final Map<String, String> internedValues;
+    private String[] values;
+    private int rowCount = 0;
+
+    /**
+     * @param columns the column names
+     * @param internValues true to store repeated values once per table
+     */
+    public ResultTable(String[] columns, boolean internValues) {
+        this.columns = columns;
+        this.internedValues = internValues ? new HashMap<String, String>() : null;
+        this.values = new String[columns.length * INITIAL_ROWS];
+    }
+
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    /**
+     * Adds a row
+     *
+     * @param row values in column order; null for columns without a value
+     */
+    public void addRow(String[] row) {
+        if (row.length != columns.length) {
+            throw new IllegalArgumentException("Expected " + columns.length + " values, got " + row.length);
+        }
+        int offset = rowCount * columns.length;
+        if (offset + columns.length > values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length * 2, offset + columns.length));
+        }
+        for (int i = 0; i < row.length; i++) {
+            values[offset + i] = intern(row[i]);
+        }
+        rowCount++;
+    }
+
+    private String intern(String value) {
+        if (value == null || internedValues == null) {
+            return value;
+        }
+        String existing = internedValues.get(value);
+        if (existing == null) {
+            internedValues.put(value, value);
+            return value;
+        }
+        return existing;
+    }
+
+    /**
+     * Releases spare capacity and the interning table once all rows have been added
+     */
+    public void trimToSize() {
+        int size = rowCount * columns.length;
+        if (values.length > size) {
+            values = Arrays.copyOf(values, size);
+        }
+        if (internedValues != null) {
+            internedValues.clear();
+        }
+    }
+
+    public String getValue(int row, int column) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+        }
+        return values[row * columns.length + column];
+    }
+
+    @Override
+    public Map<String, String> get(int row) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+        }
+        return new Row(row * columns.length);
+    }
+
+    @Override
+    public int size() {
+        return rowCount;
+    }
+
+    /**
+     * A view of one row of the table
+     */
+    private class Row extends AbstractMap<String, String> {
+        private final int offset;
+
+        Row(int offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public String get(Object key) {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].equals(key)) {
+                    return values[offset + i];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            for (String column : columns) {
+                if (column.equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < columns.length;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, String> entry = new SimpleImmutableEntry<>(columns[next], values[offset + next]);
+                            next++;
+                            return entry;
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return columns.length;
+                }
+
+            };
+        }
+    }
+
+    /**
+     * Writes a table as a JSON array of objects, the same shape as a list of maps, without creating row views. Null
+     * values are written or left out according to the writer's serializeNulls setting, as Gson does for maps.
+     */
+    public static class JsonAdapter extends TypeAdapter<ResultTable> {
+
+        @Override
+        public void write(JsonWriter out, ResultTable table) throws IOException {
+            if (table == null) {
+                out.nullValue();
+                return;
+            }
+            String[] columns = table.columns;
+            String[] values = table.values;
+            out.beginArray();
+            for (int row = 0; row < table.rowCount; row++) {
+                int offset = row * columns.length;
+                out.beginObject();
+                for (int i = 0; i < columns.length; i++) {
+                    out.name(columns[i]).value(values[offset + i]);
+                }
+                out.endObject();
+            }
+            out.endArray();
+        }
+
+        @Override
+        public ResultTable read(JsonReader in) throws IOException {
+            throw new UnsupportedOperationException("ResultTable is only serialised");
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package au.org.massive.strudel_web.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Creates virtual threads when the JVM supports them. The application is built for Java 8, so the virtual thread
+ * API is reached by reflection; on older JVMs {@link #isSupported()} is false and callers keep platform threads.
+ *
+ * @author jrigby
+ */
+public class VirtualThreads {
+
+    private final static Logger logger = LogManager.getLogger(VirtualThreads.class);
+
+    private static final Method ofVirtual;
+    private static final Method name;
+    private static final Method factory;
+
+    static {
+        Method ofVirtualMethod = null;
+        Method nameMethod = null;
+        Method factoryMethod = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+            nameMethod = builder.getMethod("name", String.class, long.class);
+            factoryMethod = builder.getMethod("factory");
+            // Virtual threads are a preview feature on some JVMs, in which case this throws
+            ofVirtualMethod.invoke(null);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            ofVirtualMethod = null;
+        }
+        ofVirtual = ofVirtualMethod;
+        name = nameMethod;
+        factory = factoryMethod;
+    }
+
+    private VirtualThreads() {
+
+    }
+
+    /**
+     * @return true if this JVM can create virtual threads
+     */
+    public static boolean isSupported() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Gets a factory that starts each thread as a virtual thread
+     *
+     * @param prefix the thread name prefix; threads are numbered from 1
+     * @return the thread factory, or null if virtual threads are not supported
+     */
+    public static ThreadFactory factory(String prefix) {
+        if (!isSupported()) {
+            return null;
+        }
+        try {
+            Object builder = name.invoke(ofVirtual.invoke(null), prefix + "-", 1L);
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            logger.warn("Could not create a virtual thread factory", e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets an executor that starts a new virtual thread for each task
+     *
+     * @param prefix the thread name prefix; threads are numbered from 1
+     * @return the executor, or null if virtual threads are not supported
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        ThreadFactory threadFactory = factory(prefix);
+        if (threadFactory == null) {
+            return null;
+        }
+        try {
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            logger.warn("Could not create a virtual thread executor", e);
+            return null;
+        }
+    }
+}
@@ -1,19 +1,18 @@
 package au.org.massive.strudel_web.vnc;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
 import au.org.massive.strudel_web.Session;
-import au.org.massive.strudel_web.SessionManager;
 import au.org.massive.strudel_web.Settings;
-import au.org.massive.strudel_web.ssh.ForkedSSHClient;
+import au.org.massive.strudel_web.ssh.SSHClient;
+import au.org.massive.strudel_web.ssh.SSHClientFactory;
 import au.org.massive.strudel_web.ssh.Tunnel;
+import au.org.massive.strudel_web.ssh.TunnelListener;
 
 /**
  * Manages the lifecycle of a Guacamole session
@@ -24,44 +23,49 @@ public class GuacamoleSessionManager implements ServletContextListener {
 
     private static final Settings settings = Settings.getInstance();
 
-    private static Map<Integer, Tunnel> sshTunnels;
-    private static Timer tunnelCleaner;
+    // Reverse index from a tunnel's local port to the Guacamole session that owns it
+    private static final Map<Integer, TunnelOwner> sshTunnels = new ConcurrentHashMap<>();
 
-    public GuacamoleSessionManager() {
-        sshTunnels = new HashMap<>();
-        tunnelCleaner = new Timer(true);
+    /**
+     * Ends exactly the Guacamole session that owns a tunnel when the tunnel closes
+     */
+    private static final TunnelListener tunnelListener = new TunnelListener() {
+
+        @Override
+        public void tunnelClosed(Tunnel tunnel) {
+            TunnelOwner owner = sshTunnels.get(tunnel.getLocalPort());
+            if (owner != null && owner.tunnel == tunnel && sshTunnels.remove(tunnel.getLocalPort(), owner)) {
+                owner.session.removeGuacamoleSession(owner.guacSession);
+            }
+        }
+
+    };
+
+    private static class TunnelOwner {
+        private final Tunnel tunnel;
+        private final GuacamoleSession guacSession;
+        private volatile Session session;
+
+        TunnelOwner(Tunnel tunnel, GuacamoleSession guacSession, Session session) {
+            this.tunnel = tunnel;
+            this.guacSession = guacSession;
+            this.session = session;
+        }
     }
 
     @Override
     public void contextDestroyed(ServletContextEvent arg0) {
-        for (Tunnel t : sshTunnels.values()) {
-            t.stopTunnel();
+        for (TunnelOwner owner : sshTunnels.values()) {
+            owner.tunnel.stopTunnel();
         }
-        tunnelCleaner.cancel(); // Avoid tomcat memory leaks
+        sshTunnels.clear();
     }
 
     @Override
     public void contextInitialized(ServletContextEvent arg0) {
-        final long FIVE_SECONDS = 5000;
-        tunnelCleaner.schedule(new TimerTask() {
-
-            @Override
-            public void run() {
-                for (Tunnel t : sshTunnels.values()) {
-                    if (!t.isRunning()) {
-                        for (Session s : SessionManager.getActiveSessions()) {
-                            for (GuacamoleSession gs : s.getGuacamoleSessionsSet()) {
-                                GuacamoleSessionManager.endSession(gs, s);
-                            }
-                        }
-                    }
-                }
-            }
 
-        }, FIVE_SECONDS, FIVE_SECONDS);
     }
 
-
     /**
      * Starts a Guacamole session
      * @param desktopName name to assign to desktop
@@ -91,10 +95,16 @@ public class GuacamoleSessionManager implements ServletContextListener {
                     }
                 }
             } else {
-                guacSession.setLocalPort(startTunnel(viaGateway, remoteHost, remotePort, session));
+                startTunnel(viaGateway, remoteHost, remotePort, guacSession, session);
             }
 
             session.getGuacamoleSessionsSet().add(guacSession);
+
+            // The tunnel may have died before the session was added, in which case nothing will remove it later
+            if (!sshTunnels.containsKey(guacSession.getLocalPort())) {
+                session.getGuacamoleSessionsSet().remove(guacSession);
+                throw new IOException("SSH tunnel closed unexpectedly for " + guacSession);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -106,20 +116,32 @@ public class GuacamoleSessionManager implements ServletContextListener {
         session.getGuacamoleSessionsSet().remove(guacSession);
     }
 
-    private static int startTunnel(String viaGateway, String remoteHost, int remotePort, Session session) throws IOException {
-        ForkedSSHClient sshClient = new ForkedSSHClient(session.getCertificate(), viaGateway, remoteHost);
-        Tunnel t = sshClient.startTunnel(remotePort, 0);
-        sshTunnels.put(t.getLocalPort(), t);
-        return t.getLocalPort();
+    /**
+     * Records a new owner for a Guacamole session, e.g. when it moves to another of the user's HTTP sessions
+     * @param guacSession the Guacamole session
+     * @param session the session that now holds it
+     */
+    public static void setOwner(GuacamoleSession guacSession, Session session) {
+        TunnelOwner owner = sshTunnels.get(guacSession.getLocalPort());
+        if (owner != null && owner.guacSession == guacSession) {
+            owner.session = session;
+        }
+    }
+
+    private static void startTunnel(String viaGateway, String remoteHost, int remotePort, GuacamoleSession guacSession, Session session) throws IOException {
+        SSHClient sshClient = SSHClientFactory.getInstance(session.getCertificate(), viaGateway, remoteHost);
+        Tunnel t = sshClient.startTunnel(remotePort, 0, tunnelListener);
+        guacSession.setLocalPort(t.getLocalPort());
+        sshTunnels.put(t.getLocalPort(), new TunnelOwner(t, guacSession, session));
+        if (!t.isRunning()) {
+            tunnelListener.tunnelClosed(t);
+        }
     }
 
     private static boolean stopTunnel(int guacdPort) {
-        if (sshTunnels.containsKey(guacdPort)) {
-            Tunnel t = sshTunnels.get(guacdPort);
-            if (t.isRunning()) {
-                t.stopTunnel();
-            }
-            sshTunnels.remove(guacdPort);
+        TunnelOwner owner = sshTunnels.remove(guacdPort);
+        if (owner != null) {
+            owner.tunnel.stopTunnel();
             return true;
         } else {
             return false;
@@ -34,6 +34,10 @@ angular.module('strudelWeb', [
             'oneTimePassword': 'execute/otp',
             'updateVncPassword': 'updatevncpwd',
             'isDesktopRunning': 'execute/running',
+            'waitUntilRunning': 'execute/running/wait',
+            'executeBatch': 'execute/batch',
+            'events': 'events',
+            'connect': 'connect',
             'guacamole': '/guacamole/',
             'messages': 'messages'
         },
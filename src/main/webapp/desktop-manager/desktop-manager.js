@@ -35,11 +35,13 @@ angular.module('strudelWeb.desktop-manager', ['ngRoute', 'ngResource'])
                     isArray: true
                 }
             });
-            var isDesktopRunningResource = $resource(settings.URLs.apiBase + settings.URLs.isDesktopRunning + "/in/:configuration/", {}, {
-                'get': {
+            var executeBatchResource = $resource(settings.URLs.apiBase + settings.URLs.executeBatch, {}, {
+                'run': {
+                    method: 'POST',
                     isArray: true
                 }
             });
+            var waitUntilRunningResource = $resource(settings.URLs.apiBase + settings.URLs.waitUntilRunning);
             var getMessagesFromServer = $resource(settings.URLs.apiBase + settings.URLs.messages + "/");
 
 
@@ -81,6 +83,7 @@ angular.module('strudelWeb.desktop-manager', ['ngRoute', 'ngResource'])
                                 function (data) {
                                     $rootScope.$broadcast("notify", "Desktop #" + data[0].jobid + " launched successfully!");
                                     $scope.refreshDesktopList(configuration, username);
+                                    waitUntilRunning(configuration, username, data[0].jobid);
                                 }, function (error) {
                                     $rootScope.$broadcast("notify", "Desktop failed to launch!");
                                 })
@@ -94,6 +97,20 @@ angular.module('strudelWeb.desktop-manager', ['ngRoute', 'ngResource'])
                     });
             };
 
+            // Holds a request open until a new desktop is running, then refreshes the list
+            var waitUntilRunning = function (configuration, username, jobid) {
+                waitUntilRunningResource.get({
+                    'configuration': configuration.configuration.fullName,
+                    'jobid': jobid,
+                    'jobidNumber': jobid
+                }).$promise.then(function (status) {
+                    if (status.running) {
+                        $rootScope.$broadcast("notify", "Desktop #" + jobid + " is ready");
+                        $scope.refreshDesktopList(configuration, username);
+                    }
+                });
+            };
+
             $scope.desktopLaunchInProgress = function () {
                 return launchInProgress;
             };
@@ -128,11 +145,61 @@ angular.module('strudelWeb.desktop-manager', ['ngRoute', 'ngResource'])
                 });
             };
 
+            var setServerMessages = function (serverMessages) {
+                $scope.serverMessages = [];
+                for (var key in serverMessages) {
+                    if (serverMessages.hasOwnProperty(key)) {
+                        for (var i = 0; i < serverMessages[key].length; i++) {
+                            serverMessages[key][i]['service'] = key.split("|")[0];
+                            $scope.serverMessages.push(serverMessages[key][i]);
+                        }
+                    }
+                }
+                $scope.serverMessages = $scope.serverMessages.reverse();
+            };
+
             // Refreshes the desktop list for the given configuration
             var desktopListRefreshInProgress = false;
             var desktopListRefreshPromise;
+            var desktopEventSource;
             $scope.refreshCountdown = 100;
+
+            // Subscribes to desktop list and message updates pushed by the server. Reconnecting makes the server
+            // refresh immediately, so this also serves as a manual refresh.
+            var subscribeToDesktopEvents = function (configuration) {
+                if (desktopEventSource) {
+                    desktopEventSource.close();
+                }
+                desktopListRefreshInProgress = true;
+                desktopEventSource = new EventSource(settings.URLs.apiBase + settings.URLs.events
+                    + "?configuration=" + encodeURIComponent(configuration.configuration.fullName));
+                desktopEventSource.addEventListener("desktops", function (event) {
+                    $scope.$apply(function () {
+                        desktopListRefreshInProgress = false;
+                        $scope.runningDesktops = JSON.parse(event.data);
+                    });
+                });
+                desktopEventSource.addEventListener("messages", function (event) {
+                    $scope.$apply(function () {
+                        setServerMessages(JSON.parse(event.data));
+                    });
+                });
+                desktopEventSource.addEventListener("error", function (event) {
+                    $scope.$apply(function () {
+                        desktopListRefreshInProgress = false;
+                        if (event.data) {
+                            $rootScope.$broadcast("notify", JSON.parse(event.data));
+                        }
+                    });
+                });
+            };
+
             $scope.refreshDesktopList = function (configuration, userName) {
+                if (window.EventSource) {
+                    subscribeToDesktopEvents(configuration);
+                    return;
+                }
+
                 function doRefresh() {
                     desktopListRefreshInProgress = true;
                     listDesktopsResource.get({
@@ -142,46 +209,37 @@ angular.module('strudelWeb.desktop-manager', ['ngRoute', 'ngResource'])
                         function (data) {
 
                             // Check for server messages
-                            getMessagesFromServer.get().$promise.then(function(serverMessages) {
-                                $scope.serverMessages = [];
-                                for (var key in serverMessages) {
-                                    if (serverMessages.hasOwnProperty(key)) {
-                                        for (var i = 0; i < serverMessages[key].length; i++) {
-                                            serverMessages[key][i]['service'] = key.split("|")[0];
-                                            $scope.serverMessages.push(serverMessages[key][i]);
-                                        }
-                                    }
-                                }
-                                $scope.serverMessages = $scope.serverMessages.reverse();
-                            });
+                            getMessagesFromServer.get().$promise.then(setServerMessages);
 
-                            var flush = true; // This flag is used to delay the clearing of the desktops lists until the data has been fetched
-                                              // because the momentary blank list looks ugly
                             if (data.length === 0) {
                                 $scope.runningDesktops = [];
-                                flush = false;
+                                return;
                             }
-                            // Check the status of each desktop
+                            // Check the status of all desktops in one request
+                            var isRunningTasks = [];
                             for (var i = 0; i < data.length; i++) {
-                                (function (jobData) {
-                                    var id = jobData.jobid;
-                                    isDesktopRunningResource.get({
-                                        'configuration': configuration.configuration.fullName,
-                                        'jobidNumber': id,
-                                        'jobid': id
-                                    }).$promise.then(function (running) {
-                                            if (flush) {
-                                                $scope.runningDesktops = [];
-                                                flush = false;
-                                            }
-                                            $scope.runningDesktops.push({
-                                                'jobid': jobData.jobid,
-                                                'remainingWalltime': jobData.remainingWalltime,
-                                                'running': (running.length === 1)
-                                            });
-                                        });
-                                })(data[i]);
+                                isRunningTasks.push({
+                                    'task': 'running',
+                                    'configuration': configuration.configuration.fullName,
+                                    'parameters': {
+                                        'jobidNumber': data[i].jobid,
+                                        'jobid': data[i].jobid
+                                    }
+                                });
                             }
+                            return executeBatchResource.run(isRunningTasks).$promise.then(function (running) {
+                                var runningDesktops = [];
+                                for (var i = 0; i < data.length; i++) {
+                                    if (running[i].error === undefined) {
+                                        runningDesktops.push({
+                                            'jobid': data[i].jobid,
+                                            'remainingWalltime': data[i].remainingWalltime,
+                                            'running': (running[i].result.length === 1)
+                                        });
+                                    }
+                                }
+                                $scope.runningDesktops = runningDesktops;
+                            });
                         },
                         function (error) {
                             $rootScope.$broadcast("notify", "Could not refresh desktop list!");
@@ -221,6 +279,9 @@ angular.module('strudelWeb.desktop-manager', ['ngRoute', 'ngResource'])
                 if (desktopListRefreshPromise) {
                     $interval.cancel(desktopListRefreshPromise);
                 }
+                if (desktopEventSource) {
+                    desktopEventSource.close();
+                }
             });
 
             // Redirects to the desktop viewer
@@ -35,6 +35,12 @@ angular.module('strudelWeb.desktop-viewer', ['ngRoute', 'ngResource', 'ngCookies
                     }
                 });
 
+                var connectResource = $resource(settings.URLs.apiBase + settings.URLs.connect + "/:configuration/:jobid", {}, {
+                    'connect': {
+                        method: 'POST'
+                    }
+                });
+
                 $scope.guacamoleUrl = $sce.trustAsResourceUrl(settings.URLs.guacamole);
 
                 $scope.error = false;
@@ -43,6 +49,31 @@ angular.module('strudelWeb.desktop-viewer', ['ngRoute', 'ngResource', 'ngCookies
                 var bootstrap = function (userName, configurationName, desktopId) {
                     var desktopName = "desktop" + Date.now();
 
+                    // Find the desktop and start its tunnel in one request, falling back to one request per step
+                    // for configurations without a connect workflow
+                    connectResource.connect({
+                        'configuration': configurationName,
+                        'jobid': desktopId,
+                        'desktopname': desktopName
+                    }, {}).$promise
+                        .then(function (data) {
+                                showDesktop({
+                                    'desktopName': data.desktopName,
+                                    'password': data.password,
+                                    'port': data.localPort
+                                });
+                            },
+                            function (error) {
+                                if (error.status === 404) {
+                                    connectStepByStep(configurationName, desktopId, desktopName);
+                                } else {
+                                    $scope.errorText = "Could not connect to this desktop";
+                                    $scope.error = true;
+                                }
+                            });
+                };
+
+                var connectStepByStep = function (configurationName, desktopId, desktopName) {
                     // 1. Get the execution host of the desktop
                     execHostResource.get({
                         'jobidNumber': desktopId,
@@ -119,53 +150,55 @@ angular.module('strudelWeb.desktop-viewer', ['ngRoute', 'ngResource', 'ngCookies
                                         $scope.error = true;
                                     });
                         })
-                        // Refresh Guacamole
-                        .then(function (vncInfo) {
-                            var guacamoleFrame = document.getElementById("guacamoleFrame");
-                            var guacamoleContent = guacamoleFrame.contentDocument || guacamoleFrame.contentWindow.document;
-
-                            // Get the GUAC_AUTH cookie
-                            var guacAuthCookie = (function (cookies) {
-                                for (var i = 0; i < cookies.length; i++) {
-                                    if (cookies[i].startsWith("GUAC_AUTH=")) {
-                                        return JSON.parse(decodeURIComponent(cookies[i].split("=")[1]));
-                                    }
-                                }
-                                return null;
-                            })(guacamoleContent.cookie.split(";"));
-
-                            function redirectGuacIframe() {
-                                guacamoleContent.location.hash = "#/" + vncInfo.desktopName;
-                                guacamoleFrame.contentWindow.focus();
-                                $rootScope.$broadcast("makeToolbarInvisible");
-                                $scope.desktopReady = true;
-                            }
+                        .then(showDesktop);
+                };
 
-                            // This is the cookie that Guacamole will intercept for connection credentials
-                            // The auth plugin for guacamole inspects any cookie beginning with "vnc-credentials"
-                            var cookieExpiry = new Date();
-                            cookieExpiry.setTime(cookieExpiry.getTime() + (1 * 60 * 1000)); // 1 minute expiry
-                            $cookies.put("vnc-credentials-strudel-web", JSON.stringify(
-                                {
-                                    'name': vncInfo.desktopName,
-                                    'hostname': 'localhost',
-                                    'port': vncInfo.port.toString(),
-                                    'password': vncInfo.password,
-                                    'protocol': 'vnc'
-                                }
-                                ),
-                                {
-                                    'expires': cookieExpiry
-                                });
+                // Refresh Guacamole
+                var showDesktop = function (vncInfo) {
+                    var guacamoleFrame = document.getElementById("guacamoleFrame");
+                    var guacamoleContent = guacamoleFrame.contentDocument || guacamoleFrame.contentWindow.document;
 
-                            if (guacAuthCookie) {
-                                // Invalidate guacamole's auth token, redirect the iframe to the new desktop
-                                $http.delete($scope.guacamoleUrl + "api/tokens/" + guacAuthCookie.authToken)
-                                    .then(redirectGuacIframe);
-                            } else {
-                                redirectGuacIframe();
+                    // Get the GUAC_AUTH cookie
+                    var guacAuthCookie = (function (cookies) {
+                        for (var i = 0; i < cookies.length; i++) {
+                            if (cookies[i].startsWith("GUAC_AUTH=")) {
+                                return JSON.parse(decodeURIComponent(cookies[i].split("=")[1]));
                             }
+                        }
+                        return null;
+                    })(guacamoleContent.cookie.split(";"));
+
+                    function redirectGuacIframe() {
+                        guacamoleContent.location.hash = "#/" + vncInfo.desktopName;
+                        guacamoleFrame.contentWindow.focus();
+                        $rootScope.$broadcast("makeToolbarInvisible");
+                        $scope.desktopReady = true;
+                    }
+
+                    // This is the cookie that Guacamole will intercept for connection credentials
+                    // The auth plugin for guacamole inspects any cookie beginning with "vnc-credentials"
+                    var cookieExpiry = new Date();
+                    cookieExpiry.setTime(cookieExpiry.getTime() + (1 * 60 * 1000)); // 1 minute expiry
+                    $cookies.put("vnc-credentials-strudel-web", JSON.stringify(
+                        {
+                            'name': vncInfo.desktopName,
+                            'hostname': 'localhost',
+                            'port': vncInfo.port.toString(),
+                            'password': vncInfo.password,
+                            'protocol': 'vnc'
+                        }
+                        ),
+                        {
+                            'expires': cookieExpiry
                         });
+
+                    if (guacAuthCookie) {
+                        // Invalidate guacamole's auth token, redirect the iframe to the new desktop
+                        $http.delete($scope.guacamoleUrl + "api/tokens/" + guacAuthCookie.authToken)
+                            .then(redirectGuacIframe);
+                    } else {
+                        redirectGuacIframe();
+                    }
                 };
 
                 // Gets the session data and redirects to the login screen if the user is not logged in
@@ -0,0 +1,97 @@
+package au.org.massive.strudel_web;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by jason on 18/10/26.
+ */
+public class ExecutorPoolTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorPool pool;
+
+    @Before
+    public void setUp() {
+        // A cached thread pool stands in for virtual threads, which need a newer JVM
+        pool = ExecutorPool.createPerTask("bulkhead-test", Executors.newCachedThreadPool(), 2, 1, 5, false);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        pool.shutdown(true);
+    }
+
+    private Future<?> submitBlocked() {
+        return pool.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+        });
+    }
+
+    private void waitForActiveThreads(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getActiveThreads() < count) {
+            assertTrue("Tasks did not start", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testTasksOverTheLimitWaitAndThenRun() throws Exception {
+        Future<?> first = submitBlocked();
+        Future<?> second = submitBlocked();
+        Future<?> waiting = submitBlocked();
+        waitForActiveThreads(2);
+        assertEquals(2, pool.getMaximumThreads());
+        assertEquals(3, pool.getPoolSize());
+        assertEquals(1, pool.getQueueDepth());
+
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        waiting.get(5, TimeUnit.SECONDS);
+        assertEquals(3, pool.getCompletedTaskCount());
+        assertEquals(0, pool.getPoolSize());
+    }
+
+    @Test
+    public void testTasksOverTheQueueCapacityAreRejected() throws Exception {
+        submitBlocked();
+        submitBlocked();
+        Future<?> waiting = submitBlocked();
+        try {
+            submitBlocked();
+            fail("Accepted a task over the queue capacity");
+        } catch (PoolSaturatedException e) {
+            assertEquals(1, pool.getRejectedCount());
+        }
+
+        // Cancelling a waiting task frees its place
+        waitForActiveThreads(2);
+        waiting.cancel(true);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getPoolSize() > 2) {
+            assertTrue("Cancelled task kept its place", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertNotNull(submitBlocked());
+    }
+}
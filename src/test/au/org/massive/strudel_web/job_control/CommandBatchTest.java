@@ -0,0 +1,82 @@
+package au.org.massive.strudel_web.job_control;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by jason on 18/10/26.
+ */
+public class CommandBatchTest {
+
+    private static String runInBash(String script) throws Exception {
+        Process process = new ProcessBuilder("bash", "-s", "--").redirectErrorStream(true).start();
+        try (OutputStream in = process.getOutputStream()) {
+            in.write(script.getBytes(StandardCharsets.UTF_8));
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream out = process.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = out.read(buffer)) > 0) {
+                output.write(buffer, 0, n);
+            }
+        }
+        process.waitFor();
+        return output.toString("UTF-8");
+    }
+
+    @Test
+    public void testFramingAndSplitting() throws Exception {
+        CommandBatch batch = new CommandBatch();
+        assertEquals(0, batch.add("echo one"));
+        assertEquals(1, batch.add("printf two; exit 3"));
+        assertEquals(2, batch.add("echo error >&2"));
+        assertEquals(3, batch.add("cat"));
+        assertEquals(4, batch.add("printf 'a\\n\\nb\\n'"));
+        assertEquals(5, batch.size());
+
+        List<CommandBatch.Output> outputs = batch.split(runInBash(batch.getScript()));
+        assertEquals(5, outputs.size());
+        assertEquals("one\n", outputs.get(0).getOutput());
+        assertEquals(0, outputs.get(0).getExitStatus());
+        // An exiting command does not stop the others, and output without a trailing newline is kept as is
+        assertEquals("two", outputs.get(1).getOutput());
+        assertEquals(3, outputs.get(1).getExitStatus());
+        assertEquals("error\n", outputs.get(2).getOutput());
+        // stdin is closed, so a command reading it does not consume the rest of the script
+        assertEquals("", outputs.get(3).getOutput());
+        assertEquals("a\n\nb\n", outputs.get(4).getOutput());
+    }
+
+    @Test
+    public void testMarkersFromAnotherBatchAreOutput() throws Exception {
+        CommandBatch other = new CommandBatch();
+        other.add("true");
+        String foreignMarkers = runInBash(other.getScript());
+
+        CommandBatch batch = new CommandBatch();
+        batch.add("printf '%s' '" + foreignMarkers + "'");
+        List<CommandBatch.Output> outputs = batch.split(runInBash(batch.getScript()));
+        assertEquals(foreignMarkers, outputs.get(0).getOutput());
+    }
+
+    @Test
+    public void testIncompleteOutput() throws Exception {
+        CommandBatch batch = new CommandBatch();
+        batch.add("echo one");
+        batch.add("echo two");
+        String output = runInBash(batch.getScript());
+
+        // The connection was lost during the second command
+        List<CommandBatch.Output> outputs = batch.split(output.substring(0, output.indexOf("two") + 3));
+        assertEquals("one\n", outputs.get(0).getOutput());
+        assertNull(outputs.get(1));
+    }
+}
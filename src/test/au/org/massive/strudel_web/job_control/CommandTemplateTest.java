@@ -0,0 +1,81 @@
+package au.org.massive.strudel_web.job_control;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by jason on 18/10/26.
+ */
+public class CommandTemplateTest {
+
+    private static Map<String, String> map(String... keysAndValues) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    private static String render(String pattern, Map<String, String> defaults, Map<String, String> params) throws Exception {
+        return new CommandTemplate(pattern, defaults, Collections.<String>emptySet()).render(params);
+    }
+
+    @Test
+    public void testSuppliedAndDefaultValues() throws Exception {
+        assertEquals("qstat -u 'jason' -q 'batch'",
+                render("qstat -u ${user} -q ${queue}", map("queue", "batch"), map("user", "jason")));
+        assertEquals("qstat -q 'short'",
+                render("qstat -q ${queue}", map("queue", "batch"), map("queue", "short")));
+    }
+
+    @Test
+    public void testEscapedVariable() throws Exception {
+        assertEquals("echo ${HOME} 'x'", render("echo $${HOME} ${a}", null, map("a", "x")));
+        assertEquals("echo ${a}", render("echo $${a}", null, map("a", "x")));
+    }
+
+    @Test
+    public void testUnknownVariableIsLeftAsWritten() throws Exception {
+        assertEquals("echo ${unknown} 'x'", render("echo ${unknown} ${a}", null, map("a", "x")));
+        assertEquals("echo ${", render("echo ${", null, map()));
+    }
+
+    @Test
+    public void testInlineDefaults() throws Exception {
+        assertEquals("sleep 10", render("sleep ${time:-10}", null, map()));
+        assertEquals("sleep '20'", render("sleep ${time:-10}", null, map("time", "20")));
+        // The inline default wins over a configured default, as StrSubstitutor's first pass did
+        assertEquals("sleep 10", render("sleep ${time:-10}", map("time", "30"), map()));
+    }
+
+    @Test
+    public void testSingleQuotesInValues() throws Exception {
+        assertEquals("echo 'it'\"'\"'s'", render("echo ${a}", null, map("a", "it's")));
+        assertEquals("echo ''\"'\"''", render("echo ${a}", null, map("a", "'")));
+    }
+
+    @Test
+    public void testValuesAreNotSubstitutedAgain() throws Exception {
+        assertEquals("echo '${b}'", render("echo ${a}", map("b", "x"), map("a", "${b}")));
+    }
+
+    @Test
+    public void testRequiredParameters() throws Exception {
+        Set<String> required = Collections.singleton("jobid");
+        CommandTemplate template = new CommandTemplate("qdel ${jobid}", null, required);
+        assertEquals("qdel '1'", template.render(map("jobid", "1")));
+        try {
+            template.render(map());
+            fail("A missing required parameter was accepted");
+        } catch (MissingRequiredTaskParametersException e) {
+            // expected
+        }
+        assertEquals("qdel '2'", new CommandTemplate("qdel ${jobid}", map("jobid", "2"), required).render(map()));
+    }
+}
@@ -0,0 +1,54 @@
+package au.org.massive.strudel_web.job_control;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by jason on 18/10/26.
+ */
+public class MessageExtractorTest {
+
+    private static final MessageExtractor extractor = new MessageExtractor(Arrays.asList(
+            "(?<error>ERROR: .+)",
+            "(?<warn>WARNING: .+)",
+            // A back reference cannot be part of the combined prefilter
+            "(?<info>\\b(\\w)\\2 .+)"));
+
+    @Test
+    public void testNoMessages() {
+        assertTrue(extractor.extract("Submitted batch job 1234\n").isEmpty());
+        assertTrue(new MessageExtractor(Collections.<String>emptyList()).extract("ERROR: ignored").isEmpty());
+    }
+
+    @Test
+    public void testMessagesAreReportedInPatternOrder() {
+        List<UserMessage> messages = extractor.extract("WARNING: quota nearly full\nERROR: no such queue\n");
+        assertEquals(2, messages.size());
+        assertEquals(UserMessage.MessageType.ERROR, messages.get(0).getType());
+        assertEquals("ERROR: no such queue", messages.get(0).getMessage());
+        assertEquals(UserMessage.MessageType.WARNING, messages.get(1).getType());
+        assertEquals("WARNING: quota nearly full", messages.get(1).getMessage());
+    }
+
+    @Test
+    public void testPatternsWithBackReferences() {
+        // Found even though none of the prefiltered patterns match
+        List<UserMessage> messages = extractor.extract("zz maintenance tonight\nab not a message\n");
+        assertEquals(1, messages.size());
+        assertEquals(UserMessage.MessageType.INFORMATION, messages.get(0).getType());
+        assertEquals("zz maintenance tonight", messages.get(0).getMessage());
+    }
+
+    @Test
+    public void testRepeatedGroupNames() {
+        MessageExtractor repeated = new MessageExtractor(Arrays.asList("(?<error>quota exceeded)", "(?<error>no such queue)"));
+        List<UserMessage> messages = repeated.extract("sbatch: no such queue");
+        assertEquals(1, messages.size());
+        assertEquals("no such queue", messages.get(0).getMessage());
+    }
+}
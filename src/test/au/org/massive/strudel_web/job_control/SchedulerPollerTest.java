@@ -0,0 +1,105 @@
+package au.org.massive.strudel_web.job_control;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by jason on 18/10/26.
+ */
+public class SchedulerPollerTest {
+
+    private static final String configurationJson = "{\"loginHost\": \"login\", \"tasks\": {\"listall\": {" +
+            "\"commandPattern\": \"squeue -h -u $(whoami) -o '%i %T %L'\", " +
+            "\"resultPattern\": \"^(?<jobid>[0-9]+) (?<state>\\\\S+) (?<remainingWalltime>\\\\S+)$\"}}}";
+
+    // squeue -h -o "%u %i %T %L"
+    private static final String squeueOutput = "jason 1 RUNNING 1:00:00\n" +
+            "kim 2 PENDING 2:00:00\n" +
+            "jason 3 PENDING 3:00:00\n" +
+            "squeue: error: slurm_receive_msg: Socket timed out\n";
+
+    private static final Map<String, String> noParameters = Collections.emptyMap();
+
+    private TaskParameters listall;
+    private SchedulerPoller poller;
+
+    @Before
+    public void setUp() throws Exception {
+        AbstractSystemConfiguration configuration = JsonSystemConfiguration.getInstance(configurationJson);
+        listall = configuration.findByTaskType("listall");
+        poller = new SchedulerPoller(configuration, new SchedulerPoller.Options("squeue -h -o \"%u %i %T %L\"", 60, "RUNNING", null));
+    }
+
+    private int countRunning(String userName, String jobId) {
+        TaskResult<List<Map<String, String>>> result = poller.answer("running", userName, Collections.singletonMap("jobid", jobId));
+        return result.getCommandResult().size();
+    }
+
+    @Test
+    public void testNothingIsAnsweredBeforeTheFirstQuery() {
+        assertNull(poller.answer("listall", "jason", noParameters));
+        assertNull(poller.answer("running", "jason", Collections.singletonMap("jobid", "1")));
+    }
+
+    @Test
+    public void testListallIsAnsweredFromTheUsersLines() {
+        poller.update(squeueOutput, listall, System.nanoTime());
+
+        List<Map<String, String>> jobs = poller.answer("listall", "jason", noParameters).getCommandResult();
+        assertEquals(2, jobs.size());
+        assertEquals("1", jobs.get(0).get("jobid"));
+        assertEquals("RUNNING", jobs.get(0).get("state"));
+        assertEquals("3:00:00", jobs.get(1).get("remainingWalltime"));
+        assertEquals(1, poller.answer("listall", "kim", noParameters).getCommandResult().size());
+        // Every user's jobs are in the snapshot, so a user without any has none
+        assertTrue(poller.answer("listall", "lee", noParameters).getCommandResult().isEmpty());
+    }
+
+    @Test
+    public void testRunningIsAnsweredFromTheState() {
+        poller.update(squeueOutput, listall, System.nanoTime());
+
+        assertEquals(1, countRunning("jason", "1"));
+        assertEquals(0, countRunning("jason", "3"));
+        assertEquals(0, countRunning("jason", "2"));
+        assertEquals(0, countRunning("jason", "99"));
+        assertNull(poller.answer("running", "jason", noParameters));
+        assertNull(poller.answer("vncdisplay", "jason", Collections.singletonMap("jobid", "1")));
+    }
+
+    @Test
+    public void testStaleSnapshotFallsBackToSSH() {
+        poller.update(squeueOutput, listall, System.nanoTime() - TimeUnit.MINUTES.toNanos(4));
+        assertNull(poller.answer("listall", "jason", noParameters));
+    }
+
+    @Test
+    public void testUsersOwnChangesHideTheSnapshotUntilTheNextQuery() {
+        long before = System.nanoTime();
+        poller.update(squeueOutput, listall, before);
+
+        poller.invalidate("jason", Collections.singleton("vncdisplay"));
+        assertNotNull(poller.answer("listall", "jason", noParameters));
+
+        poller.invalidate("jason", new HashSet<>(Arrays.asList("listall", "running")));
+        assertNull(poller.answer("listall", "jason", noParameters));
+        assertNull(poller.answer("running", "jason", Collections.singletonMap("jobid", "1")));
+        assertNotNull(poller.answer("listall", "kim", noParameters));
+
+        // A query that started before the change does not include it
+        poller.update(squeueOutput, listall, before);
+        assertNull(poller.answer("listall", "jason", noParameters));
+
+        poller.update(squeueOutput, listall, System.nanoTime());
+        assertNotNull(poller.answer("listall", "jason", noParameters));
+    }
+}
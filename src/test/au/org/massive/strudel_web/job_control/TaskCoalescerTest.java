@@ -0,0 +1,145 @@
+package au.org.massive.strudel_web.job_control;
+
+import au.org.massive.strudel_web.ExecutorPool;
+import au.org.massive.strudel_web.ssh.SSHExecException;
+import org.apache.commons.exec.ExecuteWatchdog;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by jason on 18/10/26.
+ */
+public class TaskCoalescerTest {
+
+    private static final ExecutorPool pool = ExecutorPool.create("coalescer-test", 4, 16, 5);
+
+    /**
+     * A command that runs until it is released or interrupted
+     */
+    private static class BlockingExecution implements TaskCoalescer.Execution {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch killed = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+
+        @Override
+        public String run(ExecuteWatchdog watchdog) throws IOException, SSHExecException {
+            runs.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                killed.countDown();
+                throw new InterruptedIOException();
+            }
+            return "output " + runs.get();
+        }
+    }
+
+    private static Future<String> exec(ExecutorService callers, final TaskCoalescer coalescer, final String command, final TaskCoalescer.Execution execution) {
+        return callers.submit(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception {
+                return coalescer.exec("jason", "login", command, null, execution);
+            }
+
+        });
+    }
+
+    private static void waitForCoalesced(TaskCoalescer coalescer, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coalescer.getCoalescedCount() < count) {
+            assertTrue("Caller did not join the running command", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testIdenticalCommandsShareOneExecution() throws Exception {
+        TaskCoalescer coalescer = new TaskCoalescer(pool);
+        BlockingExecution execution = new BlockingExecution();
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try {
+            Future<String> first = exec(callers, coalescer, "squeue", execution);
+            assertTrue(execution.started.await(5, TimeUnit.SECONDS));
+            Future<String> second = exec(callers, coalescer, "squeue", execution);
+            waitForCoalesced(coalescer, 1);
+            execution.release.countDown();
+
+            assertEquals("output 1", first.get(5, TimeUnit.SECONDS));
+            assertEquals("output 1", second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, execution.runs.get());
+            assertEquals(1, coalescer.getExecutionCount());
+            assertEquals(0, coalescer.getInFlightCount());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDifferentCommandsAreNotShared() throws Exception {
+        TaskCoalescer coalescer = new TaskCoalescer(pool);
+        BlockingExecution execution = new BlockingExecution();
+        execution.release.countDown();
+        assertEquals("output 1", coalescer.exec("jason", "login", "squeue", null, execution));
+        assertEquals("output 2", coalescer.exec("jason", "login", "qstat", null, execution));
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void testCancellingTheFirstCallerDoesNotKillTheCommand() throws Exception {
+        TaskCoalescer coalescer = new TaskCoalescer(pool);
+        BlockingExecution execution = new BlockingExecution();
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try {
+            Future<String> first = exec(callers, coalescer, "squeue", execution);
+            assertTrue(execution.started.await(5, TimeUnit.SECONDS));
+            Future<String> second = exec(callers, coalescer, "squeue", execution);
+            waitForCoalesced(coalescer, 1);
+
+            first.cancel(true);
+            assertFalse(execution.killed.await(200, TimeUnit.MILLISECONDS));
+            execution.release.countDown();
+            assertEquals("output 1", second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, execution.runs.get());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCommandIsKilledWhenEveryCallerIsCancelled() throws Exception {
+        TaskCoalescer coalescer = new TaskCoalescer(pool);
+        BlockingExecution execution = new BlockingExecution();
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try {
+            Future<String> first = exec(callers, coalescer, "squeue", execution);
+            assertTrue(execution.started.await(5, TimeUnit.SECONDS));
+            Future<String> second = exec(callers, coalescer, "squeue", execution);
+            waitForCoalesced(coalescer, 1);
+
+            first.cancel(true);
+            second.cancel(true);
+            assertTrue(execution.killed.await(5, TimeUnit.SECONDS));
+
+            // A later caller starts a new execution rather than joining the killed one
+            BlockingExecution next = new BlockingExecution();
+            next.release.countDown();
+            assertEquals("output 1", coalescer.exec("jason", "login", "squeue", null, next));
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package au.org.massive.strudel_web.job_control;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by jason on 18/10/26.
+ */
+public class TaskResultCacheTest {
+
+    private static final String configurationJson = "{\"loginHost\": \"login\", \"tasks\": {}}";
+
+    private TaskConfiguration configuration;
+    private TaskResultCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        configuration = JsonSystemConfiguration.getInstance(configurationJson);
+        cache = new TaskResultCache(3);
+    }
+
+    private void putJob(String userName, String task, String host, String command, String jobId, int ttlSeconds) {
+        Map<String, String> row = new HashMap<>();
+        row.put("jobid", jobId);
+        List<Map<String, String>> rows = Collections.singletonList(row);
+        List<UserMessage> messages = Collections.singletonList(new UserMessage(UserMessage.MessageType.WARNING, "quota nearly full"));
+        cache.put(userName, configuration, task, host, command, new TaskResult<>(messages, rows), ttlSeconds);
+    }
+
+    private String getJob(String userName, String task, String host, String command) {
+        TaskResult<List<Map<String, String>>> result = cache.get(userName, configuration, task, host, command);
+        return result == null ? null : result.getCommandResult().get(0).get("jobid");
+    }
+
+    @Test
+    public void testCachedResultHasNoUserMessages() {
+        putJob("jason", "listall", "login", "squeue -u jason", "1", 60);
+        TaskResult<List<Map<String, String>>> result = cache.get("jason", configuration, "listall", "login", "squeue -u jason");
+        assertEquals("1", result.getCommandResult().get(0).get("jobid"));
+        // The warning was delivered with the result that was cached
+        assertTrue(result.getUserMessages().isEmpty());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testExpiredResultIsDropped() {
+        putJob("jason", "listall", "login", "squeue -u jason", "1", 0);
+        assertNull(getJob("jason", "listall", "login", "squeue -u jason"));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testResultsAreNotSharedAcrossUsersHostsOrConfigurations() throws Exception {
+        putJob("jason", "listall", "login", "squeue", "1", 60);
+        assertNull(getJob("kim", "listall", "login", "squeue"));
+        assertNull(getJob("jason", "listall", "login2", "squeue"));
+        assertNull(getJob("jason", "listall", "login", "squeue -t R"));
+        // Another configuration with the same content is a different cluster
+        TaskConfiguration other = JsonSystemConfiguration.getInstance(configurationJson);
+        assertNull(cache.get("jason", other, "listall", "login", "squeue"));
+        assertEquals("1", getJob("jason", "listall", "login", "squeue"));
+    }
+
+    @Test
+    public void testLeastRecentlyReadResultIsEvicted() {
+        putJob("jason", "vncdisplay", "node1", "cat .vnc/slurm-1.out", "1", 60);
+        putJob("jason", "vncdisplay", "node2", "cat .vnc/slurm-2.out", "2", 60);
+        putJob("jason", "vncdisplay", "node3", "cat .vnc/slurm-3.out", "3", 60);
+        getJob("jason", "vncdisplay", "node1", "cat .vnc/slurm-1.out");
+        putJob("jason", "vncdisplay", "node4", "cat .vnc/slurm-4.out", "4", 60);
+
+        assertEquals(3, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(getJob("jason", "vncdisplay", "node2", "cat .vnc/slurm-2.out"));
+        assertEquals("1", getJob("jason", "vncdisplay", "node1", "cat .vnc/slurm-1.out"));
+    }
+
+    @Test
+    public void testInvalidateDropsTheUsersTasksOnEveryHost() {
+        putJob("jason", "listall", "login", "squeue", "1", 60);
+        putJob("jason", "listall", "login2", "squeue", "1", 60);
+        putJob("kim", "listall", "login", "squeue", "2", 60);
+
+        cache.invalidate("jason", configuration, new HashSet<>(Arrays.asList("listall", "running")));
+        assertEquals(2, cache.getInvalidationCount());
+        assertNull(getJob("jason", "listall", "login", "squeue"));
+        assertNull(getJob("jason", "listall", "login2", "squeue"));
+        assertEquals("2", getJob("kim", "listall", "login", "squeue"));
+
+        cache.invalidate("kim", configuration, Collections.<String>emptySet());
+        assertEquals("2", getJob("kim", "listall", "login", "squeue"));
+    }
+}
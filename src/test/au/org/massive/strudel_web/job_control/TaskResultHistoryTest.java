@@ -0,0 +1,79 @@
+package au.org.massive.strudel_web.job_control;
+
+import au.org.massive.strudel_web.util.JsonHelper;
+import au.org.massive.strudel_web.util.RegexHelper;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by jason on 18/10/26.
+ */
+public class TaskResultHistoryTest {
+
+    // The job id is optional so that a row can lack its identity
+    private static final String listallPattern = "^(?<jobid>[0-9]+)? *(?<state>[A-Z]+)$";
+
+    private final TaskResultHistory history = new TaskResultHistory(10);
+
+    private TaskResultHistory.Comparison poll(String since, String squeueOutput) {
+        List<Map<String, String>> rows = RegexHelper.processRegexForEachLine(listallPattern, squeueOutput);
+        return history.compare("jason", null, "listall", "login", "squeue -u jason", "jobid", since, rows);
+    }
+
+    @Test
+    public void testVersionIsTheSha1OfTheJson() {
+        List<Map<String, String>> rows = RegexHelper.processRegexForEachLine(listallPattern, "1 RUNNING\n2 PENDING\n");
+        byte[] json = JsonHelper.getGson().toJson(rows).getBytes(StandardCharsets.UTF_8);
+        assertEquals(DigestUtils.sha1Hex(json), TaskResultHistory.getVersion(rows));
+        assertEquals(TaskResultHistory.getVersion(rows), poll(null, "1 RUNNING\n2 PENDING\n").getVersion());
+    }
+
+    @Test
+    public void testUnchangedResultIsNotModified() {
+        String version = poll(null, "1 RUNNING\n").getVersion();
+        TaskResultHistory.Comparison comparison = poll(version, "1 RUNNING\n");
+        assertTrue(comparison.isNotModified());
+        assertEquals(version, comparison.getVersion());
+        assertEquals(1, history.getNotModifiedCount());
+    }
+
+    @Test
+    public void testChangedResultIsSentAsADelta() {
+        String version = poll(null, "1 PENDING\n2 RUNNING\n").getVersion();
+        TaskResultHistory.Comparison comparison = poll(version, "1 RUNNING\n3 PENDING\n");
+        assertFalse(comparison.isNotModified());
+        assertEquals("{\"version\":\"" + comparison.getVersion() + "\"," +
+                        "\"added\":[{\"jobid\":\"3\",\"state\":\"PENDING\"}]," +
+                        "\"changed\":[{\"jobid\":\"1\",\"state\":\"RUNNING\"}]," +
+                        "\"removed\":[\"2\"]}",
+                JsonHelper.getGson().toJson(comparison.getDelta()));
+        assertEquals(1, history.getDeltaCount());
+    }
+
+    @Test
+    public void testResultIsSentInFullWhenNoDeltaIsPossible() {
+        String version = poll(null, "1 PENDING\n").getVersion();
+        // The client's version was never sent, or has been forgotten
+        assertNull(poll("da39a3ee5e6b4b0d3255bfef95601890afd80709", "1 RUNNING\n").getDelta());
+        // Rows are matched by job id, so the ids must be present and unique
+        assertNull(poll(version, "1 RUNNING\n1 PENDING\n").getDelta());
+        assertNull(poll(version, "RUNNING\n").getDelta());
+        assertEquals(4, history.getFullCount());
+        assertEquals(0, history.getDeltaCount());
+    }
+
+    @Test
+    public void testOnlyRecentVersionsAreKept() {
+        String first = poll(null, "1 PENDING\n").getVersion();
+        for (int i = 2; i <= 5; i++) {
+            poll(null, i + " PENDING\n");
+        }
+        assertNull(poll(first, "1 RUNNING\n").getDelta());
+    }
+}
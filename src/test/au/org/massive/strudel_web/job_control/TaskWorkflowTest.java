@@ -0,0 +1,91 @@
+package au.org.massive.strudel_web.job_control;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by jason on 18/10/26.
+ */
+public class TaskWorkflowTest {
+
+    private static final String tasksJson = "\"tasks\": {\n" +
+            "    \"listall\": {\n" +
+            "        \"commandPattern\": \"squeue -u $(whoami) -o '%i %T'\",\n" +
+            "        \"resultPattern\": \"^(?<jobid>[0-9]+) (?<state>\\\\S+)$\"\n" +
+            "    },\n" +
+            "    \"exechost\": {\n" +
+            "        \"commandPattern\": \"squeue -j ${jobid} -o '%N' | tail -n 1\",\n" +
+            "        \"resultPattern\": \"^(?<execHost>\\\\S+)\",\n" +
+            "        \"required\": [\"jobid\"]\n" +
+            "    },\n" +
+            "    \"vncdisplay\": {\n" +
+            "        \"remoteHost\": \"\",\n" +
+            "        \"commandPattern\": \"cat .vnc/slurm-${jobid}.out\",\n" +
+            "        \"resultPattern\": \"started on display .+:(?<vncDisplay>[0-9]+)\",\n" +
+            "        \"required\": [\"jobid\"]\n" +
+            "    },\n" +
+            "    \"otp\": {\n" +
+            "        \"commandPattern\": \"vncpasswd -o -display :${vncDisplay}\",\n" +
+            "        \"resultPattern\": \"password: (?<password>\\\\S+)\",\n" +
+            "        \"required\": [\"vncDisplay\"]\n" +
+            "    }\n" +
+            "}";
+
+    private static AbstractSystemConfiguration load(String workflowsJson) throws InvalidJsonConfigurationException {
+        return JsonSystemConfiguration.getInstance("{\"loginHost\": \"login\", " + tasksJson + ", \"workflows\": " + workflowsJson + "}");
+    }
+
+    @Test
+    public void testDependenciesAreInferredFromResultGroups() throws Exception {
+        TaskWorkflow connect = load("{\"connect\": {\"steps\": [" +
+                "{\"task\": \"exechost\"}, " +
+                "{\"task\": \"vncdisplay\", \"host\": \"execHost\"}, " +
+                "{\"task\": \"otp\"}, " +
+                "{\"task\": \"listall\"}]}}").getWorkflow("Connect");
+
+        assertEquals(Collections.<Integer>emptyList(), connect.getDependencies(0));
+        // Runs on the host found by exechost
+        assertEquals(Collections.singletonList(0), connect.getDependencies(1));
+        // Needs the display found by vncdisplay, and only indirectly exechost
+        assertEquals(Collections.singletonList(1), connect.getDependencies(2));
+        // Needs nothing, so runs alongside exechost
+        assertEquals(Collections.<Integer>emptyList(), connect.getDependencies(3));
+    }
+
+    @Test
+    public void testAfterAddsDependencies() throws Exception {
+        TaskWorkflow connect = load("{\"connect\": {\"steps\": [" +
+                "{\"task\": \"exechost\"}, " +
+                "{\"task\": \"otp\"}, " +
+                "{\"task\": \"listall\", \"after\": [\"OTP\", \"exechost\"]}]}}").getWorkflow("connect");
+
+        // No earlier step finds the display, so it must be passed to the workflow
+        assertEquals(Collections.<Integer>emptyList(), connect.getDependencies(1));
+        assertEquals(Arrays.asList(1, 0), connect.getDependencies(2));
+    }
+
+    @Test
+    public void testInvalidWorkflows() {
+        String[] invalid = {
+                // "after" names a later step
+                "{\"connect\": {\"steps\": [{\"task\": \"exechost\", \"after\": [\"listall\"]}, {\"task\": \"listall\"}]}}",
+                // Runs on the execution host without saying which host that is
+                "{\"connect\": {\"steps\": [{\"task\": \"vncdisplay\"}]}}",
+                "{\"connect\": {\"steps\": [{\"task\": \"nosuchtask\"}]}}",
+                "{\"connect\": {\"steps\": [{\"host\": \"execHost\"}]}}",
+                "{\"connect\": {}}"
+        };
+        for (String workflowsJson : invalid) {
+            try {
+                load(workflowsJson);
+                fail("Loaded " + workflowsJson);
+            } catch (InvalidJsonConfigurationException e) {
+                // Expected
+            }
+        }
+    }
+}
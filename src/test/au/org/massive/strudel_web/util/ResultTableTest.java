@@ -0,0 +1,71 @@
+package au.org.massive.strudel_web.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by jason on 18/10/26.
+ */
+public class ResultTableTest {
+
+    @Test
+    public void testRows() {
+        ResultTable table = new ResultTable(new String[]{"jobId", "state"}, true);
+        table.addRow(new String[]{"1", "R"});
+        table.addRow(new String[]{"2", null});
+        table.trimToSize();
+
+        assertEquals(2, table.size());
+        assertEquals("R", table.get(0).get("state"));
+        assertEquals("2", table.getValue(1, 0));
+    }
+
+    @Test
+    public void testUnmatchedColumnsAreNullValued() {
+        ResultTable table = new ResultTable(new String[]{"jobId", "state"}, false);
+        table.addRow(new String[]{"2", null});
+
+        Map<String, String> row = table.get(0);
+        assertEquals(2, row.size());
+        assertTrue(row.containsKey("state"));
+        assertNull(row.get("state"));
+        assertFalse(row.containsKey("queue"));
+        // The same map as one built per line with a HashMap
+        Map<String, String> expected = new HashMap<>();
+        expected.put("jobId", "2");
+        expected.put("state", null);
+        assertEquals(expected, row);
+        assertEquals(expected.hashCode(), row.hashCode());
+    }
+
+    @Test
+    public void testJsonMatchesListOfMaps() {
+        ResultTable table = new ResultTable(new String[]{"jobId", "state"}, false);
+        table.addRow(new String[]{"1", "R"});
+        table.addRow(new String[]{"2", null});
+
+        assertEquals("[{\"jobId\":\"1\",\"state\":\"R\"},{\"jobId\":\"2\"}]", JsonHelper.getGson().toJson(table));
+        assertEquals(JsonHelper.getGson().toJson(new ArrayList<>(table)), JsonHelper.getGson().toJson(table));
+    }
+
+    @Test
+    public void testJsonWithoutColumns() {
+        // A result pattern without named groups still yields one (empty) row per match
+        List<Map<String, String>> table = RegexHelper.processRegexForEachLine(Pattern.compile("^ok$"), new String[0], "ok\nfailed\nok\n", false);
+
+        assertEquals(2, table.size());
+        assertEquals("[{},{}]", JsonHelper.getGson().toJson(table));
+    }
+
+    @Test
+    public void testEmptyTable() {
+        assertEquals("[]", JsonHelper.getGson().toJson(new ResultTable(new String[]{"jobId"}, false)));
+    }
+}